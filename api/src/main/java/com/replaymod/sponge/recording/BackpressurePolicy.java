@@ -0,0 +1,46 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+/**
+ * Determines what happens to new packets when the queue of an asynchronous recorder is full.
+ */
+public enum BackpressurePolicy {
+
+    /**
+     * Block the networking thread until the writer has made space in the queue.
+     * No packets are lost but a slow output will slow down the connection.
+     */
+    BLOCK,
+
+    /**
+     * Drop the packet. The number of dropped packets is recorded in the meta data of the replay
+     * under the key {@code droppedPackets}. The resulting replay might not be playable.
+     */
+    DROP,
+
+    /**
+     * Move the packet to a temporary file on disk. It will be written to the outputs
+     * once the writer has caught up. No packets are lost.
+     * The file is written by the writer thread, so the packet stays in memory until the writer gets to run.
+     */
+    SPILL
+
+}
@@ -0,0 +1,46 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Compresses the packet data of zipped outputs.<br>
+ * <br>
+ * Implementations have to produce raw deflate data (RFC 1951) so the resulting replay files can be read by
+ * any zip implementation.
+ */
+public interface CompressionCodec {
+
+    /**
+     * Create a new output stream compressing all data written to it and writing the result to the specified stream.<br>
+     * Flushing the returned stream has to write all data compressed so far and end on a byte boundary without
+     * terminating the deflate stream (sync flush).<br>
+     * Closing the returned stream has to terminate the deflate stream and release all resources, however the
+     * specified stream must not be closed.<br>
+     * If the returned stream also implements {@link FullFlushable}, recordings compressed with it are indexed.
+     * @param out The output stream for the compressed data
+     * @return The compressing output stream
+     * @throws IOException if an I/O error occurred
+     */
+    OutputStream compress(OutputStream out) throws IOException;
+
+}
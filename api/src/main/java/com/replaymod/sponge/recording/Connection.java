@@ -61,4 +61,33 @@ public interface Connection {
      */
     Recorder startRecording() throws IllegalStateException;
 
+    /**
+     * Keep the packets of this connection in memory until it is closed, so a recording started later using
+     * {@link #startRecording()} still contains the login and the initial state of the world.
+     * The first packets are kept until {@code loginSize} bytes are used, afterwards only the most recent packets
+     * up to {@code size} bytes are kept. Both buffers are allocated off-heap right away.
+     * This is best effort: anything sent in between the two and dropped since (e.g. chunks loaded in the meantime)
+     * is missing from the recording, use {@link #enableHistory(int, int, boolean)} to track the state instead.
+     * Has to be called during the {@link ConnectionInitializingEvent}.
+     * @param loginSize Maximum size of the first packets in bytes
+     * @param size Maximum size of the most recent packets in bytes
+     * @throws IllegalStateException if this connection is already being recorded, its history is already kept or
+     * the recording memory limit has been reached
+     */
+    void enableHistory(int loginSize, int size) throws IllegalStateException;
+
+    /**
+     * Keep the packets of this connection in memory until it is closed, see {@link #enableHistory(int, int)}.
+     * If {@code trackState} is {@code true}, the state of the world as seen by the player is tracked as well and a
+     * recording started after the player has joined the world starts with the packets restoring it, so its replay is
+     * always playable. Tracking the state needs about as much memory as the client needs for the loaded chunks.
+     * Has to be called during the {@link ConnectionInitializingEvent}.
+     * @param loginSize Maximum size of the first packets in bytes
+     * @param size Maximum size of the most recent packets in bytes
+     * @param trackState Whether to track the state of the world
+     * @throws IllegalStateException if this connection is already being recorded, its history is already kept or
+     * the recording memory limit has been reached
+     */
+    void enableHistory(int loginSize, int size, boolean trackState) throws IllegalStateException;
+
 }
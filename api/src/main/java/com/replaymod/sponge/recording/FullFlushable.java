@@ -0,0 +1,40 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import java.io.IOException;
+
+/**
+ * An output stream returned by {@link CompressionCodec#compress(java.io.OutputStream)} which can end the compressed
+ * data at a point from which decompression can be started without any of the preceding data.<br>
+ * <br>
+ * Recorders use such points to write an index of the recording so it can be read starting at any time.
+ * Streams of codecs which don't implement this interface are not indexed.
+ */
+public interface FullFlushable {
+
+    /**
+     * Write all data compressed so far and end on a byte boundary without terminating the deflate stream.
+     * Data written afterwards must not refer to any data written before (full flush).
+     * @throws IOException if an I/O error occurred
+     */
+    void fullFlush() throws IOException;
+
+}
@@ -0,0 +1,40 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Creates the output streams of the segments of a rotating output.
+ * @see Recorder#addRotatingOutput(OutputFactory, long, long)
+ */
+public interface OutputFactory {
+
+    /**
+     * Create the output stream for the specified segment.
+     * It is closed by the recorder once the segment is complete.
+     * @param segment Index of the segment, starting at {@code 0}
+     * @return The output stream
+     * @throws IOException if an I/O error occurred
+     */
+    OutputStream createOutput(int segment) throws IOException;
+
+}
@@ -0,0 +1,200 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Arrays;
+
+/**
+ * Decides which packets are recorded based on their id, direction and size.<br>
+ * <br>
+ * For each packet id and direction, packets can be kept, dropped or sampled (only every n-th packet is kept).
+ * Additionally packets larger than a maximum size can be dropped. Packets with ids above {@link #MAX_PACKET_ID}
+ * are always kept. The ids are those of the play phase, packets of the login phase are always kept. Filters are
+ * immutable and created using a {@link Builder}, e.g.
+ * {@code PacketFilter.builder().drop(true, 0x00, 0x02).sample(true, 10, 0x29).build()} drops client bound
+ * keep-alive and chat packets and only keeps every tenth sound packet.<br>
+ * Dropping packets which are required to reconstruct the state of the world results in unplayable replays.
+ * @see Recorder#setFilter(PacketFilter)
+ */
+public final class PacketFilter {
+
+    public static final int MAX_PACKET_ID = 255;
+
+    /**
+     * Filter keeping all packets.
+     */
+    public static final PacketFilter KEEP_ALL = builder().build();
+
+    /**
+     * Sample rate of server bound packets by id followed by client bound packets.
+     * {@code 0} drops all packets, {@code 1} keeps all packets and {@code n} keeps every n-th packet.
+     */
+    private final int[] sampleRates;
+
+    /**
+     * Maximum size of server bound packets by id followed by client bound packets.
+     */
+    private final int[] maxSizes;
+
+    private PacketFilter(int[] sampleRates, int[] maxSizes) {
+        this.sampleRates = sampleRates;
+        this.maxSizes = maxSizes;
+    }
+
+    /**
+     * Create a new builder whose filter keeps all packets until configured otherwise.
+     * @return The builder
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Return how the specified packets are sampled.
+     * @param fromServer Whether the packets are client or server bound
+     * @param packetId Id of the packets
+     * @return {@code 0} if they are dropped, {@code 1} if all of them are kept and {@code n} if every n-th is kept
+     */
+    public int getSampleRate(boolean fromServer, int packetId) {
+        return packetId > MAX_PACKET_ID ? 1 : sampleRates[index(fromServer, packetId)];
+    }
+
+    /**
+     * Return the maximum size of the specified packets. Larger packets are dropped.
+     * @param fromServer Whether the packets are client or server bound
+     * @param packetId Id of the packets
+     * @return The maximum size in bytes including the packet id
+     */
+    public int getMaxSize(boolean fromServer, int packetId) {
+        return packetId > MAX_PACKET_ID ? Integer.MAX_VALUE : maxSizes[index(fromServer, packetId)];
+    }
+
+    /**
+     * Whether this filter keeps all packets.
+     * @return {@code true} if no packet is ever dropped
+     */
+    public boolean isKeepAll() {
+        for (int i = 0; i < sampleRates.length; i++) {
+            if (sampleRates[i] != 1 || maxSizes[i] != Integer.MAX_VALUE) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int index(boolean fromServer, int packetId) {
+        Preconditions.checkArgument(packetId >= 0, "Invalid packet id: %s", packetId);
+        return (fromServer ? MAX_PACKET_ID + 1 : 0) + packetId;
+    }
+
+    /**
+     * Builds packet filters. Later rules for the same packet id and direction replace earlier ones,
+     * except that sampling/dropping and the maximum size are independent of each other.
+     */
+    public static final class Builder {
+        private final int[] sampleRates = new int[(MAX_PACKET_ID + 1) * 2];
+        private final int[] maxSizes = new int[(MAX_PACKET_ID + 1) * 2];
+
+        private Builder() {
+            Arrays.fill(sampleRates, 1);
+            Arrays.fill(maxSizes, Integer.MAX_VALUE);
+        }
+
+        /**
+         * Keep all of the specified packets.
+         * @param fromServer Whether the packets are client or server bound
+         * @param packetIds Ids of the packets
+         * @return This builder
+         */
+        public Builder keep(boolean fromServer, int... packetIds) {
+            return sample(fromServer, 1, packetIds);
+        }
+
+        /**
+         * Drop all of the specified packets.
+         * @param fromServer Whether the packets are client or server bound
+         * @param packetIds Ids of the packets
+         * @return This builder
+         */
+        public Builder drop(boolean fromServer, int... packetIds) {
+            for (int packetId : packetIds) {
+                sampleRates[checkedIndex(fromServer, packetId)] = 0;
+            }
+            return this;
+        }
+
+        /**
+         * Drop all packets in the specified direction. Can be followed by {@link #keep(boolean, int...)}
+         * to only record certain packets.
+         * @param fromServer Whether client or server bound packets are dropped
+         * @return This builder
+         */
+        public Builder dropAll(boolean fromServer) {
+            int start = index(fromServer, 0);
+            Arrays.fill(sampleRates, start, start + MAX_PACKET_ID + 1, 0);
+            return this;
+        }
+
+        /**
+         * Only keep every n-th of the specified packets.
+         * @param fromServer Whether the packets are client or server bound
+         * @param rate Keep one in how many packets
+         * @param packetIds Ids of the packets
+         * @return This builder
+         */
+        public Builder sample(boolean fromServer, int rate, int... packetIds) {
+            Preconditions.checkArgument(rate > 0, "Sample rate must be positive.");
+            for (int packetId : packetIds) {
+                sampleRates[checkedIndex(fromServer, packetId)] = rate;
+            }
+            return this;
+        }
+
+        /**
+         * Drop the specified packets if they are larger than the specified size.
+         * @param fromServer Whether the packets are client or server bound
+         * @param maxSize Maximum size in bytes including the packet id
+         * @param packetIds Ids of the packets
+         * @return This builder
+         */
+        public Builder maxSize(boolean fromServer, int maxSize, int... packetIds) {
+            Preconditions.checkArgument(maxSize >= 0, "Maximum size must not be negative.");
+            for (int packetId : packetIds) {
+                maxSizes[checkedIndex(fromServer, packetId)] = maxSize;
+            }
+            return this;
+        }
+
+        /**
+         * Create the filter.
+         * @return The filter
+         */
+        public PacketFilter build() {
+            return new PacketFilter(sampleRates.clone(), maxSizes.clone());
+        }
+
+        private static int checkedIndex(boolean fromServer, int packetId) {
+            Preconditions.checkArgument(packetId <= MAX_PACKET_ID, "Invalid packet id: %s", packetId);
+            return index(fromServer, packetId);
+        }
+    }
+}
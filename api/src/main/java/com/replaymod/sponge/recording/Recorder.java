@@ -19,6 +19,7 @@
  */
 package com.replaymod.sponge.recording;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 
@@ -46,6 +47,12 @@ public interface Recorder {
      */
     ReplayMetaData getMetaData();
 
+    /**
+     * Return the metrics of this recorder. The returned object is updated live while recording.
+     * @return The metrics
+     */
+    RecordingMetrics getMetrics();
+
     /**
      * Adds a new output stream to which the replay is saved.
      * The specified output stream will be wrapped in a zip output stream to create the .mcpr file.
@@ -54,17 +61,66 @@ public interface Recorder {
      */
     void addOutput(OutputStream out) throws IOException;
 
+    /**
+     * Adds a new output which saves the replay split into multiple replay files (segments).
+     * Once the current segment has reached the maximum size or duration, it is completed with a snapshot of the
+     * meta data and the recording continues in a new segment right away. No packets are lost in between.
+     * The packet times of all segments are relative to the start of the recording, the meta data of each segment
+     * additionally contains its index ({@code segment}) and start time ({@code segmentStart}).
+     * Each segment after the first starts with the packets restoring the state of the world at its start, so it can
+     * be played on its own. Their number is stored in the meta data ({@code segmentSeedPackets}) so the packager can
+     * skip them when merging the segments. If no packets have been recorded yet, adding a rotating output starts
+     * tracking the state of the world. Otherwise segments are only seeded if the state is already tracked or the
+     * history is enabled (see {@link Connection#enableHistory(int, int, boolean)}).
+     * @param factory Factory creating the output stream of each segment
+     * @param maxSize Maximum size of a segment in bytes or {@code 0} if unlimited, checked between packets
+     * @param maxDuration Maximum duration of a segment in milliseconds or {@code 0} if unlimited
+     * @return Handle for the output which has to be passed to {@link #endRecording(RotatingOutput, ReplayMetaData)}
+     * @throws IOException if an I/O error occurred
+     */
+    RotatingOutput addRotatingOutput(OutputFactory factory, long maxSize, long maxDuration) throws IOException;
+
     /**
      * Adds a new output stream to which the replay is saved.
      * Raw packet data will be written to the specified output stream. No compression will occur.
+     * If the output stream is a {@link java.io.FileOutputStream}, packet data is written directly to its channel
+     * without being copied into an intermediate buffer.
      * Recording to the output stream can be stopped by closing the output stream.
      * @param out The output stream
      * @throws IOException if an I/O error occurred
      */
     void addRawOutput(OutputStream out) throws IOException;
 
+    /**
+     * Adds a new output which writes raw packet data into memory-mapped segment files in the specified directory.
+     * The data is committed to disk periodically by a background thread so the recording can be recovered after a
+     * crash of the server. Recording packets never waits for the disk.
+     * The segments can later be packaged into a replay file.
+     * @param directory The directory, created if it doesn't exist
+     * @return Handle for the output which has to be passed to {@link #endRecording(OutputStream, ReplayMetaData)}
+     * @throws IOException if an I/O error occurred or the directory already contains a recording
+     */
+    OutputStream addSegmentedOutput(File directory) throws IOException;
+
+    /**
+     * Adds a new output stream to which raw packet data is saved, except for large client bound packets.
+     * Those are stored once in the blob store in the specified directory, which can be shared by any number of
+     * recordings, and only referenced from the output stream. This saves space when recording many connections
+     * receiving the same packets (e.g. chunks). Once the blob store has reached its size limit, new packets are
+     * written to the output stream instead.<br>
+     * The recording can later be packaged into a replay file using the same blob store. Packets are stored before
+     * they are referenced and the blob store is forced to disk before the output stream is closed.
+     * The meta data passed to {@link #endRecording(OutputStream, ReplayMetaData)} has to be {@code null}.
+     * @param out The output stream
+     * @param blobStore The directory of the blob store, created if it doesn't exist
+     * @throws IOException if an I/O error occurred
+     */
+    void addDeduplicatedOutput(OutputStream out, File blobStore) throws IOException;
+
     /**
      * Ends the recording for the specified output stream and writes meta data. The output stream will then be closed.
+     * For {@link #addSegmentedOutput(File) segmented outputs} the meta data is optional and stored in the directory.
+     * For {@link #addDeduplicatedOutput(OutputStream, File) deduplicated outputs} it has to be {@code null}.
      * @param out The output stream
      * @param metaData Meta data for the replay or {@code null} if the output stream contains raw data
      * @throws IllegalStateException if the specified output stream is unknown (has not been added) to the recorder
@@ -72,4 +128,125 @@ public interface Recorder {
      */
     void endRecording(OutputStream out, ReplayMetaData metaData) throws IllegalStateException, IOException;
 
+    /**
+     * Ends the recording for the specified rotating output. The current segment is completed with the specified
+     * meta data (plus its index and start time) and its output stream is closed.
+     * @param out Handle of the rotating output
+     * @param metaData Meta data for the last segment
+     * @throws IllegalStateException if the specified output is unknown (has not been added) to the recorder
+     * @throws IOException if an I/O error occurred
+     */
+    void endRecording(RotatingOutput out, ReplayMetaData metaData) throws IllegalStateException, IOException;
+
+    /**
+     * Writes the specified meta data as JSON in the same format as it is stored in replay files.
+     * Use this to store the meta data of {@link #addRawOutput(OutputStream) raw} and
+     * {@link #addDeduplicatedOutput(OutputStream, File) deduplicated} outputs next to them (e.g. {@code name.json} for
+     * {@code name.tmcpr}), where the packager picks it up. The output stream is not closed.
+     * @param out The output stream
+     * @param metaData The meta data, usually from {@link #getMetaData()}
+     * @throws IOException if an I/O error occurred
+     */
+    void writeMetaData(OutputStream out, ReplayMetaData metaData) throws IOException;
+
+    /**
+     * Enables asynchronous writing for this recorder.
+     * Packets will then only be queued by the networking threads and written to the output streams by a dedicated
+     * writer thread. This prevents slow output streams from stalling the connection.<br>
+     * Only asynchronous recorders capture without locking: inbound and outbound packets are queued lock-free and
+     * never wait for each other or for {@link #getMetaData()}. Without this, every packet is written while holding
+     * the monitor of the recorder.
+     * @param queueCapacity Maximum number of packets in the queue
+     * @param policy What to do when the queue is full
+     * @throws IllegalArgumentException if the queue capacity is not positive
+     * @throws IllegalStateException if asynchronous writing has already been enabled
+     */
+    void enableAsyncWriting(int queueCapacity, BackpressurePolicy policy) throws IllegalArgumentException, IllegalStateException;
+
+    /**
+     * Sets how packets are batched before they are written to the output streams.
+     * Recorded packets are collected in a buffer which is written to all outputs at once when it is full or when the
+     * oldest packet in it has been waiting for longer than the specified delay (checked whenever a packet is recorded).
+     * Packets larger than the buffer are written directly.
+     * By default a buffer of 32KiB and a delay of one second are used.
+     * @param bufferSize Size of the buffer in bytes, {@code 0} disables batching
+     * @param maxDelay Maximum delay in milliseconds
+     * @throws IllegalArgumentException if the buffer size or delay are negative
+     * @throws IOException if an I/O error occurred while writing the current buffer
+     */
+    void setBatching(int bufferSize, long maxDelay) throws IllegalArgumentException, IOException;
+
+    /**
+     * Sets the interval at which sync points are added to the packet data of zipped outputs.
+     * At each sync point the compressed data is fully flushed, so it can be decompressed starting from there.
+     * The sync points are stored in an additional index entry of the replay file, allowing tools to seek to any
+     * time or to process a recording in parallel without decompressing it from the start.
+     * By default a sync point is added every ten seconds.
+     * Only works with codecs which are {@link FullFlushable}, such as the built-in ones.
+     * @param interval Interval in milliseconds, {@code 0} disables the index
+     * @throws IllegalArgumentException if the interval is negative
+     */
+    void setKeyframeInterval(long interval) throws IllegalArgumentException;
+
+    /**
+     * Sets the interval at which checkpoints of the state of the world as seen by the player (loaded chunks,
+     * entities, player state) are stored in zipped outputs. Readers can start at a checkpoint instead of reading the
+     * recording from its start. Checkpoints are taken at sync points, so the interval is effectively rounded up to
+     * a multiple of the {@link #setKeyframeInterval(long) keyframe interval}.
+     * Disabled by default, as tracking the state needs about as much memory as the client needs for the loaded
+     * chunks. Has to be enabled during the {@link ConnectionInitializingEvent}.
+     * @param interval Interval in milliseconds, {@code 0} disables checkpoints
+     * @throws IllegalArgumentException if the interval is negative
+     * @throws IllegalStateException if checkpoints are enabled after the first packet has been recorded
+     */
+    void setCheckpointInterval(long interval) throws IllegalArgumentException, IllegalStateException;
+
+    /**
+     * Sets the clock providing the time of recorded packets. Affects all outputs from the next packet on, the
+     * {@link #getDuration() duration} continues from its current value.<br>
+     * The core module provides the clocks: {@code MonotonicClock} (the default) for a precise time,
+     * {@code TickClock} to align the time of packets to server ticks and {@code CachedClock} which saves reading the
+     * time for every packet at the cost of lagging behind by up to a server tick.
+     * @param clock The clock
+     */
+    void setClock(RecordingClock clock);
+
+    /**
+     * Sets the version of the framing of the recorded packets. Must be called before any outputs are added.<br>
+     * Version {@code 1} (the default) stores the absolute time of each packet. Version {@code 2} starts the
+     * recording with a magic header and stores the time as difference to the previous packet, which usually saves
+     * two to three bytes per packet. Version 2 recordings are converted back to version 1 by the packager and
+     * have to be converted before being loaded by clients which only support version 1.
+     * Deduplicated outputs aren't affected.
+     * @param version The version, either {@code 1} or {@code 2}
+     * @throws IllegalArgumentException if the version isn't supported
+     * @throws IllegalStateException if outputs have already been added
+     */
+    void setFileFormatVersion(int version) throws IllegalArgumentException, IllegalStateException;
+
+    /**
+     * Sets the filter deciding which packets are recorded. Affects all outputs from the next packet on.
+     * Packets dropped by the filter are counted in the {@link RecordingMetrics#getFilteredPackets() metrics}.
+     * Packets of the login phase are always recorded, the filter only applies once the login is over.
+     * By default all packets are recorded.
+     * @param filter The filter, {@code null} to record all packets
+     */
+    void setFilter(PacketFilter filter);
+
+    /**
+     * Sets how the packet data of zipped outputs is compressed. Only affects outputs added afterwards.
+     * By default the data is compressed on the writing thread using the default level and strategy.
+     * @param level Compression level as used by {@link java.util.zip.Deflater}, {@code 0} stores the data uncompressed
+     * @param strategy Compression strategy as used by {@link java.util.zip.Deflater}
+     * @param threads Number of blocks compressed in parallel, {@code 1} disables parallel compression
+     * @throws IllegalArgumentException if the level, strategy or number of threads is invalid
+     */
+    void setCompression(int level, int strategy, int threads) throws IllegalArgumentException;
+
+    /**
+     * Sets the codec used to compress the packet data of zipped outputs. Only affects outputs added afterwards.
+     * @param codec The codec
+     */
+    void setCompression(CompressionCodec codec);
+
 }
@@ -0,0 +1,37 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+/**
+ * Source of the time of recorded packets.<br>
+ * <br>
+ * Only differences between two readings are used, so the origin of the time is arbitrary. The time must never
+ * decrease, otherwise packets are recorded with times earlier than those of previous packets.
+ * @see Recorder#setClock(RecordingClock)
+ */
+public interface RecordingClock {
+
+    /**
+     * Return the current time.
+     * @return Time in milliseconds since an arbitrary origin
+     */
+    long getTime();
+
+}
@@ -0,0 +1,134 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+/**
+ * Metrics about the cost of recording.<br>
+ * All durations are measured in nanoseconds.
+ */
+public interface RecordingMetrics {
+
+    /**
+     * Return the number of packets recorded.
+     * @param fromServer {@code true} for client bound packets, {@code false} for server bound packets
+     * @return Number of packets
+     */
+    long getPackets(boolean fromServer);
+
+    /**
+     * Return the number of bytes of packet data recorded, not including the framing.
+     * @param fromServer {@code true} for client bound packets, {@code false} for server bound packets
+     * @return Number of bytes
+     */
+    long getBytes(boolean fromServer);
+
+    /**
+     * Return the number of bytes passed to the compressors of zipped outputs.
+     * Outputs sharing a compressor are only counted once.
+     * @return Number of bytes before compression
+     */
+    long getUncompressedBytes();
+
+    /**
+     * Return the number of bytes produced by the compressors of zipped outputs.
+     * Outputs sharing a compressor are only counted once.
+     * @return Number of bytes after compression
+     */
+    long getCompressedBytes();
+
+    /**
+     * Return the number of packets dropped because the queue of the asynchronous writer was full.
+     * @return Number of dropped packets
+     * @see BackpressurePolicy#DROP
+     */
+    long getDroppedPackets();
+
+    /**
+     * Return the number of packets which were not recorded because they were dropped by the filter.
+     * @return Number of filtered packets
+     * @see Recorder#setFilter(PacketFilter)
+     */
+    long getFilteredPackets();
+
+    /**
+     * Return the number of packets currently held in memory by the queue of the asynchronous writer.
+     * Packets spilled to disk are not included.
+     * @return Number of queued packets, {@code 0} if packets are written synchronously
+     */
+    int getQueueDepth();
+
+    /**
+     * Return the memory currently held for staging packets, i.e. the batch buffer and the packet history.
+     * @return Number of bytes
+     */
+    long getStagingMemory();
+
+    /**
+     * Return the time the networking threads spent recording a packet.
+     * When writing asynchronously, this only includes the time needed to queue the packet.
+     * @return Histogram of the time per packet
+     */
+    Histogram getWriteTime();
+
+    /**
+     * Return the time the networking threads waited for the lock of the recorder before writing a packet.
+     * @return Histogram of the time per packet
+     */
+    Histogram getLockWaitTime();
+
+    /**
+     * Return the time spent writing data to the outputs.
+     * @return Histogram of the time per write
+     */
+    Histogram getFlushTime();
+
+    /**
+     * Distribution of durations.
+     * The latency histograms only contain a random sample of the packets and writes, see the README.
+     */
+    interface Histogram {
+
+        /**
+         * Return the number of recorded values.
+         * @return Number of values
+         */
+        long getCount();
+
+        /**
+         * Return the sum of all recorded values.
+         * @return Sum of all values
+         */
+        long getTotal();
+
+        /**
+         * Return the largest recorded value.
+         * @return Largest value or {@code 0} if no values have been recorded
+         */
+        long getMax();
+
+        /**
+         * Return an upper bound of the specified percentile.
+         * The bound is at most twice the actual value.
+         * @param percentile The percentile, between {@code 0} and {@code 100}
+         * @return Upper bound of the percentile or {@code 0} if no values have been recorded
+         */
+        long getPercentile(double percentile);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import org.spongepowered.api.Game;
+import org.spongepowered.api.MinecraftVersion;
+import org.spongepowered.api.entity.living.player.Player;
+
+/**
+ * A connection which isn't backed by an actual network connection.
+ * Packets are passed to its recorder by calling {@link BenchmarkRecorder#writePacket(boolean, io.netty.buffer.ByteBuf)}
+ * directly.
+ */
+public class BenchmarkConnection implements Connection {
+
+    /**
+     * The game instance.
+     */
+    private final Game game;
+
+    /**
+     * The recorder capturing the packets of this connection.
+     * This is {@code null} until {@link #startRecording()} or {@link #enableHistory(int, int)} is called.
+     */
+    private BenchmarkRecorder recorder;
+
+    /**
+     * Whether {@link #startRecording()} has been called. Until then, the {@link #recorder} only keeps the history.
+     */
+    private boolean recording;
+
+    public BenchmarkConnection(Game game) {
+        this.game = game;
+    }
+
+    @Override
+    public boolean isAlive() {
+        return true;
+    }
+
+    @Override
+    public Optional<Player> getPlayer() {
+        return Optional.absent();
+    }
+
+    @Override
+    public MinecraftVersion getMcVersion() {
+        return game.getPlatform().getMinecraftVersion();
+    }
+
+    @Override
+    public synchronized Optional<Recorder> getRecorder() {
+        return recording ? Optional.<Recorder>of(recorder) : Optional.<Recorder>absent();
+    }
+
+    /**
+     * Return the recorder capturing the packets of this connection, even if it only keeps the history.
+     * @return The recorder or {@code null} if neither recording nor keeping the history
+     */
+    public synchronized BenchmarkRecorder getCapturingRecorder() {
+        return recorder;
+    }
+
+    @Override
+    public synchronized BenchmarkRecorder startRecording() throws IllegalStateException {
+        Preconditions.checkState(!recording, "Already recording.");
+        if (recorder == null) {
+            recorder = new BenchmarkRecorder(game, this);
+            recorder.register();
+        }
+        recording = true;
+        return recorder;
+    }
+
+    @Override
+    public void enableHistory(int loginSize, int size) throws IllegalStateException {
+        enableHistory(loginSize, size, false);
+    }
+
+    @Override
+    public synchronized void enableHistory(int loginSize, int size, boolean trackState) throws IllegalStateException {
+        Preconditions.checkState(recorder == null, "Already recording.");
+        BenchmarkRecorder recorder = new BenchmarkRecorder(game, this);
+        recorder.enableHistory(loginSize, size, trackState);
+        recorder.register();
+        this.recorder = recorder;
+    }
+
+    /**
+     * Recorder of a {@link BenchmarkConnection}.
+     */
+    public static class BenchmarkRecorder extends AbstractRecorder<BenchmarkConnection> {
+        public BenchmarkRecorder(Game game, BenchmarkConnection connection) {
+            super(game, connection);
+        }
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Defaults;
+import org.spongepowered.api.Game;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/**
+ * Creates a {@link Game} instance sufficient for the recorder to run outside of a server.<br>
+ * Every method returning an interface returns another such instance, methods returning strings return
+ * the method name and all other methods return {@code null} or the default value of their primitive type.
+ */
+public final class BenchmarkGame {
+
+    private BenchmarkGame() {
+    }
+
+    public static Game create() {
+        return create(Game.class);
+    }
+
+    private static <T> T create(Class<T> type) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, new Handler()));
+    }
+
+    private static class Handler implements InvocationHandler {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Class<?> returnType = method.getReturnType();
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == args[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        return "Benchmark" + proxy.getClass().getInterfaces()[0].getSimpleName();
+                }
+            }
+            if (returnType == String.class) {
+                return method.getName();
+            } else if (returnType.isInterface()) {
+                return create(returnType);
+            } else {
+                return Defaults.defaultValue(returnType);
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the framing of packets, i.e. writing the timestamp and length as variable-length integers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FramingBenchmark {
+
+    /**
+     * Number of distinct frames written. Must be a power of two.
+     */
+    private static final int FRAME_COUNT = 1024;
+
+    /**
+     * Duration of the recording in milliseconds. Longer recordings result in longer timestamps.
+     */
+    @Param({"60000", "36000000"})
+    public long duration;
+
+    @Param({"SMALL", "MIXED", "LARGE"})
+    public PacketDistribution distribution;
+
+    private final byte[] header = new byte[15];
+
+    private long[] times;
+
+    private int[] lengths;
+
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        times = new long[FRAME_COUNT];
+        lengths = new int[FRAME_COUNT];
+        for (int i = 0; i < FRAME_COUNT; i++) {
+            times[i] = (long) (random.nextDouble() * duration);
+            lengths[i] = distribution.nextSize(random);
+        }
+    }
+
+    @Benchmark
+    public int writeFrameHeader() {
+        int index = next++ & (FRAME_COUNT - 1);
+        int offset = AbstractRecorder.writeVar(header, 0, times[index] << 1 | (index & 1));
+        return AbstractRecorder.writeVar(header, offset, lengths[index]);
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.replaymod.sponge.recording.BenchmarkConnection.BenchmarkRecorder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the creation of the meta data and its serialization to JSON as done when ending a recording.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class MetaDataBenchmark {
+
+    /**
+     * Number of players which have been in the replay.
+     */
+    @Param({"0", "10", "100"})
+    public int players;
+
+    private BenchmarkRecorder recorder;
+
+    private ReplayMetaData metaData;
+
+    @Setup
+    public void setup() {
+        recorder = new BenchmarkConnection(BenchmarkGame.create()).startRecording();
+        Random random = new Random(0);
+        for (int i = 0; i < players; i++) {
+            recorder.playersInReplay.add(new UUID(random.nextLong(), random.nextLong()));
+        }
+        metaData = recorder.getMetaData();
+    }
+
+    @TearDown
+    public void tearDown() {
+        recorder.connectionClosed();
+    }
+
+    @Benchmark
+    public ReplayMetaData getMetaData() {
+        return recorder.getMetaData();
+    }
+
+    @Benchmark
+    public String toJson() {
+        return recorder.toJson(metaData);
+    }
+
+    @Benchmark
+    public String getMetaDataAsJson() {
+        return recorder.toJson(recorder.getMetaData());
+    }
+}
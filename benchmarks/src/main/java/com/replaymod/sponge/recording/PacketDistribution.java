@@ -0,0 +1,98 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.util.Random;
+
+/**
+ * Synthetic distributions of packet sizes used by the benchmarks.<br>
+ * The content of each packet is a packet id followed by bytes of low entropy so it compresses roughly like real
+ * packet data.
+ */
+public enum PacketDistribution {
+    /**
+     * Only small packets (2 to 64 bytes) such as movement, keep alive and entity updates.
+     */
+    SMALL {
+        @Override
+        protected int nextSize(Random random) {
+            return 2 + random.nextInt(63);
+        }
+    },
+    /**
+     * Mostly small packets, some medium sized ones (up to 1KiB) and a few large ones (up to 32KiB, e.g. chunks).
+     * This is what a player moving around in the world usually produces.
+     */
+    MIXED {
+        @Override
+        protected int nextSize(Random random) {
+            int p = random.nextInt(100);
+            if (p < 70) {
+                return 2 + random.nextInt(63);
+            } else if (p < 95) {
+                return 64 + random.nextInt(961);
+            } else {
+                return 1024 + random.nextInt(31 * 1024 + 1);
+            }
+        }
+    },
+    /**
+     * Only large packets (8KiB to 64KiB) such as chunk data sent when joining or teleporting.
+     */
+    LARGE {
+        @Override
+        protected int nextSize(Random random) {
+            return 8 * 1024 + random.nextInt(56 * 1024 + 1);
+        }
+    };
+
+    /**
+     * Return the size of the next packet.
+     * @param random The source of randomness
+     * @return Size of the packet in bytes
+     */
+    protected abstract int nextSize(Random random);
+
+    /**
+     * Create packets following this distribution.
+     * The same seed always results in the same packets.
+     * @param count Number of packets
+     * @param seed Seed for the random number generator
+     * @param direct Whether to use direct buffers instead of heap buffers
+     * @return The packets
+     */
+    public ByteBuf[] createPackets(int count, long seed, boolean direct) {
+        Random random = new Random(seed);
+        ByteBuf[] packets = new ByteBuf[count];
+        for (int i = 0; i < count; i++) {
+            int size = nextSize(random);
+            ByteBuf packet = direct ? Unpooled.directBuffer(size) : Unpooled.buffer(size);
+            packet.writeByte(random.nextInt(0x40));
+            for (int j = 1; j < size; j++) {
+                packet.writeByte(random.nextInt(16));
+            }
+            packets[i] = packet;
+        }
+        return packets;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.replaymod.sponge.recording.BenchmarkConnection.BenchmarkRecorder;
+import io.netty.buffer.ByteBuf;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link AbstractRecorder#writePacket(boolean, ByteBuf)} with different numbers and kinds of outputs.<br>
+ * All outputs discard the data written to them, so only the cost of framing, batching and compression is measured.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RecorderBenchmark {
+
+    /**
+     * Number of distinct packets written. Must be a power of two.
+     */
+    private static final int PACKET_COUNT = 1024;
+
+    public enum OutputType {
+        /**
+         * Outputs added via {@link Recorder#addOutput(java.io.OutputStream)}.
+         */
+        ZIP,
+        /**
+         * Outputs added via {@link Recorder#addRawOutput(java.io.OutputStream)}.
+         */
+        RAW
+    }
+
+    @Param({"0", "1", "4"})
+    public int outputs;
+
+    @Param({"ZIP", "RAW"})
+    public OutputType outputType;
+
+    @Param({"SMALL", "MIXED", "LARGE"})
+    public PacketDistribution distribution;
+
+    @Param({"false", "true"})
+    public boolean direct;
+
+    private BenchmarkRecorder recorder;
+
+    private ByteBuf[] packets;
+
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        recorder = new BenchmarkConnection(BenchmarkGame.create()).startRecording();
+        for (int i = 0; i < outputs; i++) {
+            if (outputType == OutputType.ZIP) {
+                recorder.addOutput(new DiscardingOutputStream());
+            } else {
+                recorder.addRawOutput(new DiscardingOutputStream());
+            }
+        }
+        packets = distribution.createPackets(PACKET_COUNT, 0, direct);
+    }
+
+    @TearDown
+    public void tearDown() {
+        recorder.connectionClosed();
+        for (ByteBuf packet : packets) {
+            packet.release();
+        }
+    }
+
+    @Benchmark
+    public void writePacket() throws IOException {
+        int index = next++ & (PACKET_COUNT - 1);
+        // Most packets are sent by the server
+        recorder.writePacket((index & 3) != 0, packets[index]);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording.spongecommon;
+
+import com.replaymod.sponge.recording.BenchmarkGame;
+import com.replaymod.sponge.recording.DiscardingOutputStream;
+import com.replaymod.sponge.recording.PacketDistribution;
+import com.replaymod.sponge.recording.Recorder;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the handlers of the {@link SpongeRecorder} by passing packets through an {@link EmbeddedChannel}
+ * whose pipeline resembles the one of a Minecraft server connection.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+public class HandlerBenchmark {
+
+    /**
+     * Number of distinct packets written. Must be a power of two.
+     */
+    private static final int PACKET_COUNT = 1024;
+
+    @Param({"SMALL", "MIXED", "LARGE"})
+    public PacketDistribution distribution;
+
+    private EmbeddedChannel channel;
+
+    private Recorder recorder;
+
+    private ByteBuf[] packets;
+
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        channel = new EmbeddedChannel(new PassThroughHandler());
+        ChannelPipeline pipeline = channel.pipeline();
+        for (String name : new String[]{"timeout", "splitter", "decompress", "decoder",
+                "prepender", "compress", "encoder", "packet_handler"}) {
+            pipeline.addLast(name, new PassThroughHandler());
+        }
+
+        recorder = new SpongeConnection(BenchmarkGame.create(), channel).startRecording();
+        recorder.addRawOutput(new DiscardingOutputStream());
+        packets = distribution.createPackets(PACKET_COUNT, 0, false);
+    }
+
+    @TearDown
+    public void tearDown() {
+        channel.finish();
+        ((SpongeRecorder) recorder).connectionClosed();
+        for (ByteBuf packet : packets) {
+            packet.release();
+        }
+    }
+
+    @Benchmark
+    public void outbound() {
+        channel.writeOutbound(packets[next++ & (PACKET_COUNT - 1)].retain());
+        ((ByteBuf) channel.readOutbound()).release();
+    }
+
+    @Benchmark
+    public void inbound() {
+        channel.writeInbound(packets[next++ & (PACKET_COUNT - 1)].retain());
+        ((ByteBuf) channel.readInbound()).release();
+    }
+
+    /**
+     * Stands in for the handlers of the Minecraft server.
+     */
+    @ChannelHandler.Sharable
+    private static class PassThroughHandler extends ChannelDuplexHandler {
+    }
+}
@@ -19,28 +19,62 @@
  */
 package com.replaymod.sponge.recording;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.Iterables;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.spongepowered.api.Game;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.zip.Deflater;
 
 /**
  * An abstract recorder implementing common methods.
  */
 public abstract class AbstractRecorder<T extends Connection> implements Recorder {
 
+    /**
+     * Array per thread through which staged data is copied to output streams, which require an array.
+     */
+    private static final ThreadLocal<byte[]> STREAM_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[DEFAULT_BATCH_SIZE];
+        }
+    };
+
     public static final String FILE_FORMAT = "BIMCPR";
     public static final int FILE_FORMAT_VERSION = 1;
+    public static final int COMPACT_FILE_FORMAT_VERSION = 2;
+
+    public static final int DEFAULT_BATCH_SIZE = 32 * 1024;
+    public static final long DEFAULT_MAX_BATCH_DELAY = 1000;
+    public static final long DEFAULT_KEYFRAME_INTERVAL = 10000;
+    public static final CompressionCodec DEFAULT_COMPRESSION =
+            new DeflateCodec(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY);
+
+    /**
+     * Key in the meta data of a segment of a rotating output for the number of packets at its start which only
+     * restore the state of the world. These have to be skipped when merging it with the previous segments.
+     */
+    public static final String SEED_PACKETS_KEY = "segmentSeedPackets";
 
     /**
      * The game instance.
@@ -53,10 +87,17 @@ public abstract class AbstractRecorder<T extends Connection> implements Recorder
     private final T connection;
 
     /**
-     * Time in milliseconds at which this recorder started.
+     * Wall clock time in milliseconds at which this recorder started.
      */
     private final long startTime = System.currentTimeMillis();
 
+    /**
+     * Clock returning the {@link #getDuration() duration} of the recording.
+     * Wraps the clock set by {@link #setClock(RecordingClock)}, offset so that it starts at the duration at which
+     * it was set.
+     */
+    private volatile RecordingClock clock;
+
     /**
      * Set of UUIDs of all players visible in the recording.
      * Subclasses should add all players as they appear.
@@ -64,9 +105,26 @@ public abstract class AbstractRecorder<T extends Connection> implements Recorder
     protected final Set<UUID> playersInReplay = Collections.newSetFromMap(new ConcurrentHashMap<UUID, Boolean>());
 
     /**
-     * Map every output stream it its zip output stream so we can later add more entries when closing before it.
+     * UUID of the player whose connection is recorded, once the login has succeeded.
+     */
+    private volatile UUID recordingPlayer;
+
+    /**
+     * Map every output stream to its zip writer so we can later add more entries when closing it.
      */
-    private final Map<OutputStream, ZipOutputStream> outputs = new HashMap<OutputStream, ZipOutputStream>();
+    private final Map<OutputStream, ZipWriter> outputs = new HashMap<OutputStream, ZipWriter>();
+
+    /**
+     * The recording entries of all {@link #outputs zipped} outputs.
+     * Outputs added at the same time share one entry so the packet data is only compressed once for all of them.
+     */
+    private final List<SharedZipEntry> recordingEntries = new ArrayList<SharedZipEntry>();
+
+    /**
+     * All zipped outputs which are split into multiple replay files. Their current segments share the
+     * {@link #recordingEntries recording entries} with the {@link #outputs zipped} outputs.
+     */
+    private final List<RotatingZipOutput> rotatingOutputs = new ArrayList<RotatingZipOutput>();
 
     /**
      * List of all raw output streams. Those are the output stream which receive the packet data.
@@ -74,10 +132,149 @@ public abstract class AbstractRecorder<T extends Connection> implements Recorder
     private final List<OutputStream> rawOutputs = new ArrayList<OutputStream>();
 
     /**
-     * Combines all of the {@link #rawOutputs raw} and {@link #outputs zipped} outputs for convenient writing.
+     * Map of raw output streams which are backed by a file channel to that channel.
+     * Packet data is written directly to the channel without copying it into a byte array first.
+     */
+    private final Map<OutputStream, FileChannel> channelOutputs = new HashMap<OutputStream, FileChannel>();
+
+    /**
+     * Map of deduplicated output streams to their buffered stream and blob store.
+     * The buffered streams are flushed together with the {@link #batch}.
+     */
+    private final Map<OutputStream, DeduplicatedOutput> deduplicatedOutputs =
+            new HashMap<OutputStream, DeduplicatedOutput>();
+
+    /**
+     * Digest used to hash packet data stored in blob stores. Created when first needed.
+     */
+    private MessageDigest digest;
+
+    /**
+     * Writes to all of the {@link #rawOutputs raw}, {@link #channelOutputs channel} and {@link #outputs zipped}
+     * outputs for convenient writing. Data written to it is batched together with the packet data.
+     * It is not written to {@link #deduplicatedOutputs deduplicated} outputs.
+     */
+    private final DataOutputStream combinedOutput = new DataOutputStream(new BatchOutputStream());
+
+    /**
+     * Version of the framing of the packet data, see {@link #setFileFormatVersion(int)}.
+     */
+    private int fileFormatVersion = FILE_FORMAT_VERSION;
+
+    /**
+     * Whether the time of the next packet has to be written as absolute time instead of the difference to
+     * {@link #lastTime}. Only used by the {@link #COMPACT_FILE_FORMAT_VERSION compact format}.
+     * This is the case for the first packet of each output and after each sync point.
+     */
+    private boolean absoluteTime = true;
+
+    /**
+     * Time of the last packet written to the outputs.
+     */
+    private long lastTime;
+
+    /**
+     * Buffer for the frame header (time, direction and length) of the packet being written.
+     */
+    private final byte[] header = new byte[15];
+
+    /**
+     * Direct buffer collecting framed packets until they are written to the outputs in one go or {@code null} if
+     * there aren't any. Allocated from the {@link RecordingMemory} when needed and released once written.
+     * Packets which don't fit into it are written directly, as are all packets while the memory limit is reached.
+     */
+    private ByteBuf batch;
+
+    /**
+     * Capacity of the {@link #batch} in bytes.
+     */
+    private int batchCapacity = DEFAULT_BATCH_SIZE;
+
+    /**
+     * Time of the first packet in the {@link #batch}.
      */
-    private final DataOutputStream combinedOutput = new DataOutputStream(
-            new MultiOutputStream(Iterables.concat(outputs.values(), rawOutputs)));
+    private long batchStartTime;
+
+    /**
+     * Maximum time in milliseconds a packet is kept in the {@link #batch}.
+     */
+    private long maxBatchDelay = DEFAULT_MAX_BATCH_DELAY;
+
+    /**
+     * Interval in milliseconds between sync points of the recording entries or {@code 0} if they aren't indexed.
+     */
+    private long keyframeInterval = DEFAULT_KEYFRAME_INTERVAL;
+
+    /**
+     * Time at or after which the next sync point is added to the recording entries.
+     */
+    private long nextKeyframeTime;
+
+    /**
+     * Interval in milliseconds between checkpoints or {@code 0} if none are taken.
+     */
+    private long checkpointInterval;
+
+    /**
+     * Time of the first sync point at which the next checkpoint is taken.
+     */
+    private long nextCheckpointTime;
+
+    /**
+     * State of the world tracked for checkpoints and the history or {@code null} if neither has been enabled.
+     */
+    private ViewerState viewerState;
+
+    /**
+     * Checkpoints taken so far or {@code null} if checkpoints have never been enabled.
+     */
+    private CheckpointStore checkpoints;
+
+    /**
+     * Whether the connection has been closed.
+     */
+    private boolean closed;
+
+    /**
+     * Whether this recorder is registered with the {@link RecordingCoordinator}, see {@link #register()}.
+     */
+    private boolean registered;
+
+    /**
+     * Codec used to compress the packet data of zipped outputs added from now on.
+     */
+    private CompressionCodec compression = DEFAULT_COMPRESSION;
+
+    /**
+     * Buffers passed to {@link GatheringByteChannel#write(ByteBuffer[])}, the first one wraps the {@link #header}.
+     */
+    private ByteBuffer[] gatherBuffers = new ByteBuffer[]{ByteBuffer.wrap(header)};
+
+    /**
+     * Writer used for asynchronous writing or {@code null} if packets are written synchronously.
+     */
+    private volatile AsyncPacketWriter asyncWriter;
+
+    /**
+     * Compiled {@link PacketFilter} or {@code null} if all packets are recorded.
+     */
+    private volatile CompiledFilter filter;
+
+    /**
+     * Whether packets of the login phase are being recorded. They use different packet ids than those of the play
+     * phase which the {@link #filter} is keyed by, so it is bypassed until the login is over.
+     */
+    private volatile boolean loginPhase;
+
+    /**
+     * Recent packets written to outputs added later or {@code null} if no history is kept.
+     */
+    private PacketHistory history;
+
+    /**
+     * Metrics of this recorder.
+     */
+    private final RecorderMetrics metrics = new RecorderMetrics();
 
     /**
      * Creates a new abstract recorder.
@@ -88,6 +285,41 @@ public abstract class AbstractRecorder<T extends Connection> implements Recorder
     public AbstractRecorder(Game game, T connection) {
         this.game = game;
         this.connection = connection;
+        setClock(MonotonicClock.getInstance());
+    }
+
+    /**
+     * Set the UUID of the player whose connection is recorded. It is stored in the meta data of the replay as
+     * {@code recordingPlayer}.
+     * @param uuid UUID of the player
+     */
+    public void setRecordingPlayer(UUID uuid) {
+        this.recordingPlayer = Preconditions.checkNotNull(uuid, "uuid");
+    }
+
+    /**
+     * Register this recorder as active with the {@link RecordingCoordinator} so its metrics are reported.
+     * Connections call this once the recorder has been constructed and starts capturing packets. Adding an output
+     * registers the recorder again if it has become idle in the meantime.<br>
+     * Does nothing if it is already registered or its connection has been closed.
+     */
+    public synchronized void register() {
+        if (!registered && !closed) {
+            registered = true;
+            RecordingCoordinator.getInstance().register(this);
+        }
+    }
+
+    /**
+     * Unregister this recorder from the {@link RecordingCoordinator} once the last output has been ended and
+     * no history is kept, so recorders whose connection is never closed aren't kept forever.
+     */
+    private void unregisterIfIdle() {
+        if (registered && history == null && outputs.isEmpty() && rotatingOutputs.isEmpty() && rawOutputs.isEmpty()
+                && channelOutputs.isEmpty() && deduplicatedOutputs.isEmpty()) {
+            registered = false;
+            RecordingCoordinator.getInstance().unregister(this);
+        }
     }
 
     @Override
@@ -97,7 +329,7 @@ public abstract class AbstractRecorder<T extends Connection> implements Recorder
 
     @Override
     public long getDuration() {
-        return System.currentTimeMillis() - startTime;
+        return clock.getTime();
     }
 
     @Override
@@ -107,12 +339,16 @@ public abstract class AbstractRecorder<T extends Connection> implements Recorder
         // Constants
         metaData.set("singleplayer", false);
         metaData.set("fileFormat", FILE_FORMAT);
-        metaData.set("fileFormatVersion", FILE_FORMAT_VERSION);
+        metaData.set("fileFormatVersion", fileFormatVersion);
 
         // Current replay
         metaData.set("date", startTime);
         metaData.set("duration", getDuration());
         metaData.set("players", playersInReplay);
+        UUID recordingPlayer = this.recordingPlayer;
+        if (recordingPlayer != null) {
+            metaData.set("recordingPlayer", recordingPlayer.toString());
+        }
         metaData.set("mcversion", connection.getMcVersion().getName());
 
         // Generator
@@ -123,41 +359,432 @@ public abstract class AbstractRecorder<T extends Connection> implements Recorder
         String generator = String.format("%s %s on %s (%s)", recordingName, recordingVersion, spongeName, spongeVersion);
         metaData.set("generator", generator);
 
+        // Asynchronous writing
+        long droppedPackets = metrics.getDroppedPackets();
+        if (droppedPackets > 0) {
+            metaData.set("droppedPackets", droppedPackets);
+        }
+
         return metaData;
     }
 
     @Override
-    public void addOutput(OutputStream out) throws IOException {
-        ZipOutputStream zipOut = new ZipOutputStream(out);
-        zipOut.putNextEntry(new ZipEntry("recording.tmcpr"));
+    public RecorderMetrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public synchronized void addOutput(OutputStream out) throws IOException {
+        register();
+        flushAsyncWriter();
+        flushBatch();
+        ZipWriter zipOut = new ZipWriter(out);
+        seedHistory(addZipEntry(zipOut));
         outputs.put(out, zipOut);
+        absoluteTime = true;
     }
 
     @Override
-    public void addRawOutput(OutputStream out) {
-        rawOutputs.add(out);
+    public synchronized RotatingOutput addRotatingOutput(OutputFactory factory, long maxSize, long maxDuration)
+            throws IOException {
+        register();
+        RotatingZipOutput out = new RotatingZipOutput(factory, maxSize, maxDuration);
+        flushAsyncWriter();
+        flushBatch();
+        if (viewerState == null && metrics.getPackets(true) == 0) {
+            // Track the state of the world from the start so the following segments can be seeded with it
+            viewerState = new ViewerState();
+        }
+        seedHistory(addZipEntry(out.nextSegment(getDuration())));
+        absoluteTime = true;
+        rotatingOutputs.add(out);
+        return out;
     }
 
     @Override
-    public void endRecording(OutputStream out, ReplayMetaData metaData) throws IllegalStateException, IOException {
-        if (metaData == null) {
-            Preconditions.checkState(rawOutputs.remove(out), "Specified output is unknown or meta data is missing.");
+    public synchronized void addRawOutput(OutputStream out) throws IOException {
+        register();
+        flushAsyncWriter();
+        flushBatch();
+        if (fileFormatVersion == COMPACT_FILE_FORMAT_VERSION) {
+            out.write(CompactFrameInputStream.MAGIC);
+        }
+        seedHistory(out);
+        absoluteTime = true;
+        if (out instanceof FileOutputStream) {
+            channelOutputs.put(out, ((FileOutputStream) out).getChannel());
+        } else {
+            rawOutputs.add(out);
+        }
+    }
+
+    @Override
+    public synchronized OutputStream addSegmentedOutput(File directory) throws IOException {
+        SegmentedOutputStream out = new SegmentedOutputStream(directory);
+        addRawOutput(out);
+        return out;
+    }
+
+    @Override
+    public synchronized void addDeduplicatedOutput(OutputStream out, File blobStore) throws IOException {
+        register();
+        flushAsyncWriter();
+        flushBatch();
+        final BufferedOutputStream bufferedOut = new BufferedOutputStream(out, DEFAULT_BATCH_SIZE);
+        bufferedOut.write(DeduplicatedInputStream.MAGIC);
+        // The history is not deduplicated, none of its packets are references
+        if (history != null) {
+            forEachHistoryPacket(getDuration(), new PacketHandler() {
+                @Override
+                public void handle(long time, boolean fromServer, ByteBuf data) throws IOException {
+                    int headerLength = writeVar(header, 0, time << 1 | (fromServer ? 0 : 1));
+                    headerLength = writeVar(header, headerLength, (long) data.readableBytes() << 1);
+                    bufferedOut.write(header, 0, headerLength);
+                    data.getBytes(data.readerIndex(), bufferedOut, data.readableBytes());
+                }
+            });
+        }
+        deduplicatedOutputs.put(out, new DeduplicatedOutput(bufferedOut, BlobStore.open(blobStore)));
+    }
+
+    @Override
+    public synchronized void endRecording(OutputStream out, ReplayMetaData metaData) throws IllegalStateException, IOException {
+        flushAsyncWriter();
+        flushBatch();
+        if (out instanceof SegmentedOutputStream && rawOutputs.remove(out)) {
+            SegmentedOutputStream segmentedOut = (SegmentedOutputStream) out;
+            segmentedOut.close();
+            if (metaData != null) {
+                segmentedOut.writeMetaData(toJson(metaData));
+            }
+        } else if (metaData == null && deduplicatedOutputs.containsKey(out)) {
+            DeduplicatedOutput output = deduplicatedOutputs.remove(out);
+            try {
+                // The blobs have to be on disk before any of the references to them
+                output.store.force();
+                output.out.close();
+            } finally {
+                output.store.close();
+            }
+        } else if (metaData == null) {
+            Preconditions.checkState(rawOutputs.remove(out) || channelOutputs.remove(out) != null,
+                    "Specified output is unknown or meta data is missing.");
             out.flush();
             out.close();
         } else {
-            ZipOutputStream zipOut = outputs.remove(out);
+            ZipWriter zipOut = outputs.remove(out);
             if (zipOut == null) {
                 throw new IllegalStateException("Specified output is unknown or contains raw data.");
             }
+            finishZipOutput(zipOut, metaData);
 
-            zipOut.closeEntry();
+            out.flush();
+            out.close();
+            if (closed && outputs.isEmpty() && rotatingOutputs.isEmpty()) {
+                releaseCheckpoints();
+            }
+        }
+        unregisterIfIdle();
+    }
+
+    @Override
+    public synchronized void endRecording(RotatingOutput out, ReplayMetaData metaData) throws IllegalStateException, IOException {
+        flushAsyncWriter();
+        flushBatch();
+        Preconditions.checkState(rotatingOutputs.remove(out), "Specified output is unknown.");
+        RotatingZipOutput rotatingOut = (RotatingZipOutput) out;
+        metaData = new ReplayMetaData(metaData);
+        metaData.set("segment", rotatingOut.getSegment());
+        metaData.set("segmentStart", rotatingOut.getSegmentStartTime());
+        metaData.set(SEED_PACKETS_KEY, rotatingOut.getSeedPackets());
+        finishZipOutput(rotatingOut.getZip(), metaData);
+        rotatingOut.closeSegment();
+        if (closed && outputs.isEmpty() && rotatingOutputs.isEmpty()) {
+            releaseCheckpoints();
+        }
+        unregisterIfIdle();
+    }
 
-            zipOut.putNextEntry(new ZipEntry("metaData.json"));
-            zipOut.write(toJson(metaData).getBytes());
-            zipOut.closeEntry();
+    @Override
+    public void writeMetaData(OutputStream out, ReplayMetaData metaData) throws IOException {
+        out.write(toJson(metaData).getBytes(Charsets.UTF_8));
+        out.flush();
+    }
 
-            zipOut.flush();
-            zipOut.close();
+    /**
+     * Start the recording entry in the specified zip file.
+     * It shares the last recording entry if no packets have been written to it yet.
+     * @param zipOut The zip file
+     * @return The recording entry of the zip file
+     * @throws IOException if an I/O error occurred
+     */
+    private SharedZipEntry addZipEntry(ZipWriter zipOut) throws IOException {
+        SharedZipEntry entry = recordingEntries.isEmpty() ? null : recordingEntries.get(recordingEntries.size() - 1);
+        if (entry == null || !entry.isEmpty() || entry.getCodec() != compression) {
+            // Packets have already been written or the compression changed, the new output needs its own stream
+            entry = new SharedZipEntry("recording.tmcpr", compression, metrics,
+                    fileFormatVersion == COMPACT_FILE_FORMAT_VERSION ? CompactFrameInputStream.MAGIC : new byte[0]);
+            recordingEntries.add(entry);
+        }
+        entry.addTarget(zipOut);
+        return entry;
+    }
+
+    /**
+     * Write the packets of the {@link #history} (if any) to the specified output which has just been added.
+     * @param out The output
+     * @throws IOException if an I/O error occurred
+     */
+    private void seedHistory(OutputStream out) throws IOException {
+        if (history == null) {
+            return;
+        }
+        if (fileFormatVersion == FILE_FORMAT_VERSION && !isStateSeeded()) {
+            history.writeTo(out);
+            return;
+        }
+        forEachHistoryPacket(getDuration(), new SeedWriter(out));
+    }
+
+    /**
+     * Write the packets restoring the current state of the world to the recording entry of a segment which has just
+     * been started, so it can be played on its own. Uses the packets of the {@link #history} instead if the state
+     * isn't tracked or the player hasn't joined the world yet.
+     * @param out The recording entry of the segment
+     * @param time Time in milliseconds since the start of the recording at which the segment starts
+     * @return The number of packets written
+     * @throws IOException if an I/O error occurred
+     */
+    private int seedSegment(OutputStream out, long time) throws IOException {
+        SeedWriter writer = new SeedWriter(out);
+        forEachHistoryPacket(time, writer);
+        return writer.packets;
+    }
+
+    /**
+     * Close the recording entry of the specified zip file and write its index, the meta data and the central
+     * directory. The underlying output stream is not closed.
+     * @param zipOut The zip file
+     * @param metaData Meta data of the replay
+     * @throws IOException if an I/O error occurred
+     */
+    private void finishZipOutput(ZipWriter zipOut, ReplayMetaData metaData) throws IOException {
+        for (Iterator<SharedZipEntry> iter = recordingEntries.iterator(); iter.hasNext(); ) {
+            SharedZipEntry entry = iter.next();
+            if (entry.hasTarget(zipOut)) {
+                entry.closeTarget(zipOut);
+                entry.writeIndex(zipOut);
+                if (checkpoints != null) {
+                    checkpoints.writeTo(zipOut, entry.getIndex());
+                }
+                if (entry.isClosed()) {
+                    iter.remove();
+                }
+                break;
+            }
+        }
+
+        zipOut.writeEntry("metaData.json", toJson(metaData).getBytes());
+        zipOut.finish();
+    }
+
+    /**
+     * Close the current segment of all rotating outputs which have reached their maximum size or duration and
+     * continue in a new one. The meta data of the closed segments is a snapshot of the current meta data.
+     * @param time Time of the packet about to be written in milliseconds since the start of the recording
+     * @throws IOException if an I/O error occurred
+     */
+    private void rotateOutputs(long time) throws IOException {
+        for (Iterator<RotatingZipOutput> iter = rotatingOutputs.iterator(); iter.hasNext(); ) {
+            RotatingZipOutput out = iter.next();
+            if (out.shouldRotate(time)) {
+                flushBatch();
+                ReplayMetaData metaData = getMetaData();
+                metaData.set("duration", time);
+                metaData.set("segment", out.getSegment());
+                metaData.set("segmentStart", out.getSegmentStartTime());
+                metaData.set(SEED_PACKETS_KEY, out.getSeedPackets());
+                finishZipOutput(out.getZip(), metaData);
+                out.closeSegment();
+                try {
+                    out.setSeedPackets(seedSegment(addZipEntry(out.nextSegment(time)), time));
+                    absoluteTime = true;
+                } catch (IOException e) {
+                    // The output is gone, don't try again for every packet
+                    iter.remove();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keep the most recent packets in memory and write them to all outputs added from now on before any new packets.
+     * This allows outputs added long after the start of the recording to still contain the login and initial state,
+     * however anything dropped from the history is missing, see {@link PacketHistory}.
+     * If the state of the world is tracked, outputs are seeded with the packets restoring it instead once the player
+     * has joined the world, so their replays are always playable.
+     * The memory is released once the connection has been closed.
+     * @param loginCapacity Size of the buffer for the first packets in bytes
+     * @param capacity Size of the ring buffer for the most recent packets in bytes
+     * @param trackState Whether to track the state of the world (as for checkpoints)
+     * @throws IllegalStateException if the history is already being kept or the recording memory limit has been reached
+     * @see PacketHistory
+     */
+    public synchronized void enableHistory(int loginCapacity, int capacity, boolean trackState)
+            throws IllegalStateException {
+        Preconditions.checkState(history == null, "History already enabled.");
+        if (trackState && viewerState == null) {
+            Preconditions.checkState(metrics.getPackets(true) == 0, "Packets have already been recorded.");
+            viewerState = new ViewerState();
+        }
+        history = new PacketHistory(getAllocator(), metrics, loginCapacity, capacity);
+    }
+
+    @Override
+    public synchronized void enableAsyncWriting(int queueCapacity, BackpressurePolicy policy) {
+        Preconditions.checkArgument(queueCapacity > 0, "Queue capacity must be positive.");
+        Preconditions.checkNotNull(policy, "policy");
+        Preconditions.checkState(asyncWriter == null, "Asynchronous writing already enabled.");
+        Executor writer = RecordingCoordinator.getInstance().getWriter(getWriterAffinity());
+        asyncWriter = new AsyncPacketWriter(this, metrics, writer, queueCapacity, policy);
+        metrics.setAsyncWriter(asyncWriter);
+    }
+
+    /**
+     * Return the key by which this recorder is assigned to a writer thread when writing asynchronously.
+     * Recorders with the same key share a writer thread. Subclasses should return the networking thread
+     * (or event loop) of their connection.
+     * @return The affinity key
+     */
+    protected Object getWriterAffinity() {
+        return this;
+    }
+
+    /**
+     * Called when the recorded connection has been closed. No more packets will be recorded afterwards,
+     * outputs which have not yet been ended can still be ended.
+     */
+    public void connectionClosed() {
+        synchronized (this) {
+            if (registered) {
+                registered = false;
+                RecordingCoordinator.getInstance().unregister(this);
+            }
+        }
+        MetricsRegistry.getInstance().retire(metrics);
+        synchronized (this) {
+            if (history != null) {
+                history.release();
+                history = null;
+            }
+            closed = true;
+            viewerState = null;
+            if (outputs.isEmpty() && rotatingOutputs.isEmpty()) {
+                releaseCheckpoints();
+            }
+        }
+    }
+
+    /**
+     * Delete the {@link #checkpoints} once no more zipped outputs can be finished.
+     */
+    private void releaseCheckpoints() {
+        if (checkpoints != null) {
+            checkpoints.release();
+            checkpoints = null;
+        }
+    }
+
+    @Override
+    public synchronized void setBatching(int bufferSize, long maxDelay) throws IOException {
+        Preconditions.checkArgument(bufferSize >= 0, "Buffer size must not be negative.");
+        Preconditions.checkArgument(maxDelay >= 0, "Maximum delay must not be negative.");
+        flushBatch();
+        batchCapacity = bufferSize;
+        maxBatchDelay = maxDelay;
+    }
+
+    @Override
+    public synchronized void setKeyframeInterval(long interval) {
+        Preconditions.checkArgument(interval >= 0, "Interval must not be negative.");
+        keyframeInterval = interval;
+        nextKeyframeTime = getDuration() + interval;
+    }
+
+    @Override
+    public synchronized void setCheckpointInterval(long interval) {
+        Preconditions.checkArgument(interval >= 0, "Interval must not be negative.");
+        if (interval > 0 && checkpoints == null) {
+            if (viewerState == null) {
+                Preconditions.checkState(metrics.getPackets(true) == 0, "Packets have already been recorded.");
+                viewerState = new ViewerState();
+            }
+            checkpoints = new CheckpointStore();
+        }
+        checkpointInterval = interval;
+        nextCheckpointTime = getDuration() + interval;
+    }
+
+    @Override
+    public synchronized void setClock(final RecordingClock clock) {
+        Preconditions.checkNotNull(clock, "clock");
+        final long offset = (this.clock == null ? 0 : getDuration()) - clock.getTime();
+        this.clock = new RecordingClock() {
+            @Override
+            public long getTime() {
+                return clock.getTime() + offset;
+            }
+        };
+    }
+
+    @Override
+    public synchronized void setFileFormatVersion(int version) {
+        Preconditions.checkArgument(version == FILE_FORMAT_VERSION || version == COMPACT_FILE_FORMAT_VERSION,
+                "Unsupported file format version: %s", version);
+        Preconditions.checkState(outputs.isEmpty() && rotatingOutputs.isEmpty() && rawOutputs.isEmpty()
+                        && channelOutputs.isEmpty(),
+                "Outputs have already been added.");
+        fileFormatVersion = version;
+    }
+
+    @Override
+    public synchronized void setFilter(PacketFilter filter) {
+        if (filter == null || filter.isKeepAll()) {
+            this.filter = null;
+            return;
+        }
+        this.filter = new CompiledFilter(filter);
+    }
+
+    @Override
+    public synchronized void setCompression(int level, int strategy, int threads) {
+        Preconditions.checkArgument(level >= Deflater.DEFAULT_COMPRESSION && level <= Deflater.BEST_COMPRESSION,
+                "Invalid compression level: %s", level);
+        Preconditions.checkArgument(strategy == Deflater.DEFAULT_STRATEGY || strategy == Deflater.FILTERED
+                || strategy == Deflater.HUFFMAN_ONLY, "Invalid compression strategy: %s", strategy);
+        Preconditions.checkArgument(threads > 0, "Number of threads must be positive.");
+        if (threads == 1) {
+            compression = new DeflateCodec(level, strategy);
+        } else {
+            compression = new ParallelDeflateCodec(level, strategy, threads, ParallelDeflateCodec.DEFAULT_BLOCK_SIZE);
+        }
+    }
+
+    @Override
+    public synchronized void setCompression(CompressionCodec codec) {
+        compression = Preconditions.checkNotNull(codec, "codec");
+    }
+
+    /**
+     * Write all packets queued by the asynchronous writer (if any) so they end up in the outputs
+     * which exist at the time they were recorded.
+     * @throws IOException if an I/O error occurred
+     */
+    private void flushAsyncWriter() throws IOException {
+        AsyncPacketWriter asyncWriter = this.asyncWriter;
+        if (asyncWriter != null) {
+            asyncWriter.flush();
         }
     }
 
@@ -167,7 +794,7 @@ public abstract class AbstractRecorder<T extends Connection> implements Recorder
      * @return The JSON string
      */
     @SuppressWarnings("unchecked")
-    private String toJson(ReplayMetaData metaData) {
+    String toJson(ReplayMetaData metaData) {
         JSONObject data = new JSONObject();
         for (String key : metaData.keys()) {
             Object value = metaData.get(key).get();
@@ -191,67 +818,566 @@ public abstract class AbstractRecorder<T extends Connection> implements Recorder
         return combinedOutput;
     }
 
+    /**
+     * Set whether packets of the login phase are being recorded, in which case the {@link #filter} is bypassed.
+     * Implementations recording the login set this until the first packet of the play phase is written.
+     * @param loginPhase {@code true} during the login phase, {@code false} afterwards
+     */
+    protected void setLoginPhase(boolean loginPhase) {
+        this.loginPhase = loginPhase;
+    }
+
+    /**
+     * Write the specified packet data to the output streams unless it is dropped by the {@link #filter}.
+     * If asynchronous writing is enabled, the packet is only queued and written later by the writer thread.
+     * The reader index of the packet data is not modified.
+     * @param fromServer Whether the packet is client or server bound
+     * @param data The packet data (packet id and payload)
+     */
+    protected void writePacket(boolean fromServer, ByteBuf data) throws IOException {
+        CompiledFilter filter = this.filter;
+        if (filter != null && !loginPhase && !filter.isKept(fromServer, data)) {
+            metrics.recordFiltered();
+            return;
+        }
+        writeUnfilteredPacket(fromServer, data);
+    }
+
+    /**
+     * Write the specified packet data to the output streams without applying the filter.
+     * If asynchronous writing is enabled, the packet is only queued and written later by the writer thread without
+     * taking any locks. Otherwise it is written right away while holding the monitor of this recorder.
+     * The reader index of the packet data is not modified.
+     * @param fromServer Whether the packet is client or server bound
+     * @param data The packet data (packet id and payload)
+     */
+    protected void writeUnfilteredPacket(boolean fromServer, ByteBuf data) throws IOException {
+        boolean sampled = metrics.sampleLatency();
+        long start = sampled ? System.nanoTime() : 0;
+        long time = getDuration();
+        metrics.recordPacket(fromServer, data.readableBytes());
+        AsyncPacketWriter asyncWriter = this.asyncWriter;
+        if (asyncWriter != null) {
+            asyncWriter.enqueue(time, fromServer, data);
+        } else {
+            long acquired;
+            synchronized (this) {
+                acquired = sampled ? System.nanoTime() : 0;
+                writePacket(time, fromServer, data);
+            }
+            if (sampled) {
+                // Recorded outside of the monitor so the histogram doesn't extend the time the lock is held
+                metrics.getLockWaitTime().record(acquired - start);
+            }
+        }
+        if (sampled) {
+            metrics.getWriteTime().record(System.nanoTime() - start);
+        }
+    }
+
     /**
      * Write the specified packet data to the output streams.
+     * The reader index of the packet data is not modified.
+     * @param time Time of the packet in milliseconds since the start of the recording
      * @param fromServer Whether the packet is client or server bound
      * @param data The packet data (packet id and payload)
      */
-    protected synchronized void writePacket(boolean fromServer, ByteBuf data) throws IOException {
-        DataOutputStream out = getCombinedOutput();
-        long timeAndDirection = getDuration() << 1 | (fromServer ? 0 : 1);
-        writeVar(out, timeAndDirection);
+    synchronized void writePacket(long time, boolean fromServer, ByteBuf data) throws IOException {
+        int index = data.readerIndex();
         int length = data.readableBytes();
-        writeVar(out, length);
-        data.readBytes(out, length);
+        if (!rotatingOutputs.isEmpty()) {
+            // New segments are seeded with the history and state from before this packet
+            rotateOutputs(time);
+        }
+        if (history != null) {
+            history.add(time, fromServer, data);
+        }
+        if (!deduplicatedOutputs.isEmpty()) {
+            writeDeduplicated(time, fromServer, data, index, length);
+        }
+        if (time >= nextKeyframeTime && keyframeInterval > 0) {
+            addKeyframe(time);
+        }
+        if (viewerState != null && fromServer) {
+            viewerState.update(data);
+        }
+
+        int headerLength = writeVar(header, 0, encodeTime(time) | (fromServer ? 0 : 1));
+        headerLength = writeVar(header, headerLength, length);
+
+        if (headerLength + length > batchCapacity) {
+            // Too large for batching, write it directly
+            flushBatch();
+            writeDirectly(headerLength, data, index, length);
+            return;
+        }
+
+        if (batch != null && batch.writerIndex() + headerLength + length > batchCapacity) {
+            flushBatch();
+        }
+        if (batch == null) {
+            batch = allocateBatch();
+            if (batch == null) {
+                // Memory limit reached, write it directly
+                writeDirectly(headerLength, data, index, length);
+                return;
+            }
+            batchStartTime = time;
+        }
+        batch.writeBytes(header, 0, headerLength);
+        batch.writeBytes(data, index, length);
+        if (time - batchStartTime >= maxBatchDelay) {
+            flushBatch();
+        }
+    }
+
+    /**
+     * Encode the time of the packet being written for its frame header.
+     * @param time Time of the packet in milliseconds since the start of the recording
+     * @return The time shifted left to make room for the direction in the lowest bit
+     */
+    private long encodeTime(long time) {
+        if (fileFormatVersion == FILE_FORMAT_VERSION) {
+            return time << 1;
+        }
+        long value;
+        if (absoluteTime || time < lastTime) {
+            value = time << 2 | 2;
+            absoluteTime = false;
+        } else {
+            value = time - lastTime << 2;
+        }
+        lastTime = time;
+        return value;
     }
 
-    private void writeVar(OutputStream out, long var) throws IOException {
+    /**
+     * Write the contents of the {@link #batch} to all outputs.
+     * @throws IOException if an I/O error occurred
+     */
+    private void flushBatch() throws IOException {
+        ByteBuf batch = this.batch;
+        if (batch == null) {
+            return;
+        }
+        this.batch = null;
+        boolean sampled = metrics.sampleLatency();
+        long start = sampled ? System.nanoTime() : 0;
+        try {
+            writeToStreams(batch, 0, batch.writerIndex());
+            writeToChannels(batch, 0, batch.writerIndex());
+        } finally {
+            RecordingMemory.getInstance().release(batch, metrics);
+        }
+        for (DeduplicatedOutput output : deduplicatedOutputs.values()) {
+            output.out.flush();
+        }
+        if (sampled) {
+            metrics.getFlushTime().record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Allocate a new {@link #batch}. Output streams require an array, so it is only a direct buffer if all outputs
+     * are channels, which write it without copying it first.
+     * @return The batch or {@code null} if the recording memory limit has been reached
+     */
+    private ByteBuf allocateBatch() {
+        boolean direct = recordingEntries.isEmpty() && rawOutputs.isEmpty();
+        return RecordingMemory.getInstance().allocate(getAllocator(), batchCapacity, direct, metrics);
+    }
+
+    /**
+     * Return the allocator for the staging buffers of this recorder. Subclasses should return the allocator
+     * of their connection.
+     * @return The allocator
+     */
+    protected ByteBufAllocator getAllocator() {
+        return PooledByteBufAllocator.DEFAULT;
+    }
+
+    /**
+     * Pass the packets of the {@link #history} (if any) to the specified handler.
+     * Once the player has joined the world and its state is tracked, these are the packets restoring the current
+     * state (all at the specified time) instead of the packets kept in memory, even without a history.
+     * @param time Time of the packets restoring the state
+     * @param handler The handler
+     * @throws IOException if an I/O error occurred
+     */
+    private void forEachHistoryPacket(long time, PacketHandler handler) throws IOException {
+        if (isStateSeeded()) {
+            for (byte[] packet : viewerState.getPackets()) {
+                handler.handle(time, true, Unpooled.wrappedBuffer(packet));
+            }
+        } else if (history != null) {
+            history.forEach(handler);
+        }
+    }
+
+    /**
+     * Whether outputs added now are seeded with the state of the world instead of the packets of the history.
+     * @return {@code true} if the state is tracked and the player has joined the world
+     */
+    private boolean isStateSeeded() {
+        return viewerState != null && viewerState.isPlaying();
+    }
+
+    /**
+     * Add a sync point in front of the packet being written to all recording entries.
+     * @param time Time of the packet in milliseconds since the start of the recording
+     * @throws IOException if an I/O error occurred
+     */
+    private void addKeyframe(long time) throws IOException {
+        flushBatch();
+        for (SharedZipEntry entry : recordingEntries) {
+            entry.addSyncPoint(time);
+        }
+        nextKeyframeTime = time + keyframeInterval;
+        absoluteTime = true;
+        if (checkpointInterval > 0 && time >= nextCheckpointTime && viewerState != null && viewerState.isPlaying()) {
+            // Only the snapshot is taken here, the checkpoint is written and deflated in the background
+            checkpoints.add(time, viewerState.getPackets(), fileFormatVersion);
+            nextCheckpointTime = time + checkpointInterval;
+        }
+    }
+
+    /**
+     * Write the specified packet to all {@link #deduplicatedOutputs deduplicated} outputs.
+     * Large client bound packets are stored in the blob store of each output and only referenced by their hash,
+     * unless the blob store is full.
+     * @param time Time of the packet in milliseconds since the start of the recording
+     * @param fromServer Whether the packet is client or server bound
+     * @param data The packet data
+     * @param index Index of the first byte of the packet data
+     * @param length Length of the packet data
+     * @throws IOException if an I/O error occurred
+     */
+    private void writeDeduplicated(long time, boolean fromServer, ByteBuf data, int index, int length)
+            throws IOException {
+        boolean reference = fromServer && length >= BlobStore.MIN_BLOB_SIZE;
+        byte[] hash = null;
+        if (reference) {
+            if (digest == null) {
+                digest = BlobStore.newDigest();
+            }
+            for (ByteBuffer buffer : data.nioBuffers(index, length)) {
+                digest.update(buffer);
+            }
+            hash = digest.digest();
+        }
+
+        int timeLength = writeVar(header, 0, time << 1 | (fromServer ? 0 : 1));
+        for (DeduplicatedOutput output : deduplicatedOutputs.values()) {
+            // Blobs which don't fit into the store anymore are written inline
+            boolean stored = reference && output.store.put(hash, data, index, length);
+            int headerLength = writeVar(header, timeLength, (long) length << 1 | (stored ? 1 : 0));
+            output.out.write(header, 0, headerLength);
+            if (stored) {
+                output.out.write(hash);
+            } else {
+                data.getBytes(index, output.out, length);
+            }
+        }
+    }
+
+    /**
+     * Write the specified data to all {@link #outputs zipped} and {@link #rawOutputs raw} output streams.
+     * @param b The data
+     * @param off Offset in the array
+     * @param len Number of bytes
+     * @throws IOException if an I/O error occurred
+     */
+    private void writeToStreams(byte[] b, int off, int len) throws IOException {
+        for (SharedZipEntry entry : recordingEntries) {
+            entry.write(b, off, len);
+        }
+        for (OutputStream out : rawOutputs) {
+            out.write(b, off, len);
+        }
+    }
+
+    /**
+     * Write the specified data to all {@link #outputs zipped} and {@link #rawOutputs raw} output streams.
+     * Data which isn't backed by an array is copied through the {@link #STREAM_BUFFER} of the current thread.
+     * @param buf The data
+     * @param index Index of the first byte
+     * @param len Number of bytes
+     * @throws IOException if an I/O error occurred
+     */
+    private void writeToStreams(ByteBuf buf, int index, int len) throws IOException {
+        if (recordingEntries.isEmpty() && rawOutputs.isEmpty()) {
+            return;
+        }
+        if (buf.hasArray()) {
+            writeToStreams(buf.array(), buf.arrayOffset() + index, len);
+            return;
+        }
+        byte[] array = STREAM_BUFFER.get();
+        while (len > 0) {
+            int count = Math.min(len, array.length);
+            buf.getBytes(index, array, 0, count);
+            writeToStreams(array, 0, count);
+            index += count;
+            len -= count;
+        }
+    }
+
+    /**
+     * Write the specified data to all {@link #channelOutputs channel} outputs.
+     * @param buf The data
+     * @param index Index of the first byte
+     * @param len Number of bytes
+     * @throws IOException if an I/O error occurred
+     */
+    private void writeToChannels(ByteBuf buf, int index, int len) throws IOException {
+        for (FileChannel channel : channelOutputs.values()) {
+            ByteBuffer nioBuffer = buf.nioBuffer(index, len);
+            while (nioBuffer.hasRemaining()) {
+                channel.write(nioBuffer);
+            }
+        }
+    }
+
+    /**
+     * Write the specified data to all {@link #channelOutputs channel} outputs.
+     * @param b The data
+     * @param off Offset in the array
+     * @param len Number of bytes
+     * @throws IOException if an I/O error occurred
+     */
+    private void writeToChannels(byte[] b, int off, int len) throws IOException {
+        for (FileChannel channel : channelOutputs.values()) {
+            ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+        }
+    }
+
+    /**
+     * Write the {@link #header} followed by the specified packet data to all outputs without batching.
+     * @param headerLength Length of the header
+     * @param data The packet data
+     * @param index Index of the first byte of the packet data
+     * @param length Length of the packet data
+     * @throws IOException if an I/O error occurred
+     */
+    private void writeDirectly(int headerLength, ByteBuf data, int index, int length) throws IOException {
+        boolean sampled = metrics.sampleLatency();
+        long start = sampled ? System.nanoTime() : 0;
+        if (!recordingEntries.isEmpty() || !rawOutputs.isEmpty()) {
+            writeToStreams(header, 0, headerLength);
+            writeToStreams(data, index, length);
+        }
+
+        if (!channelOutputs.isEmpty()) {
+            gatherBuffers[0].clear().limit(headerLength);
+            ByteBuffer[] buffers = getGatherBuffers(data, index, length);
+            for (FileChannel channel : channelOutputs.values()) {
+                for (ByteBuffer buffer : buffers) {
+                    buffer.reset();
+                }
+                long remaining = headerLength + length;
+                while (remaining > 0) {
+                    remaining -= channel.write(buffers);
+                }
+            }
+        }
+        if (sampled) {
+            metrics.getFlushTime().record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Return the buffers for writing the {@link #header} and the specified packet data to a gathering channel.
+     * The position of each buffer is {@link ByteBuffer#mark() marked}.
+     * The returned array is reused for subsequent packets.
+     * @param data The packet data
+     * @param index Index of the first byte of the packet data
+     * @param length Length of the packet data
+     * @return Array of buffers with the header buffer at index 0
+     */
+    private ByteBuffer[] getGatherBuffers(ByteBuf data, int index, int length) {
+        if (data.nioBufferCount() == 1) {
+            if (gatherBuffers.length != 2) {
+                gatherBuffers = Arrays.copyOf(gatherBuffers, 2);
+            }
+            gatherBuffers[1] = data.nioBuffer(index, length);
+        } else {
+            ByteBuffer[] dataBuffers = data.nioBuffers(index, length);
+            if (gatherBuffers.length != dataBuffers.length + 1) {
+                gatherBuffers = Arrays.copyOf(gatherBuffers, dataBuffers.length + 1);
+            }
+            System.arraycopy(dataBuffers, 0, gatherBuffers, 1, dataBuffers.length);
+        }
+        for (ByteBuffer buffer : gatherBuffers) {
+            buffer.mark();
+        }
+        return gatherBuffers;
+    }
+
+    /**
+     * Write the specified value as a variable-length integer to the buffer.
+     * @param buf The buffer
+     * @param offset Index at which to start writing
+     * @param var The value
+     * @return Index after the last byte written
+     */
+    static int writeVar(byte[] buf, int offset, long var) {
         do {
             int b = (int) (var & 0x7F);
             var >>>= 7;
             if (var > 0) {
                 b |= 0x80;
             }
-            out.write(b);
+            buf[offset++] = (byte) b;
         } while (var > 0);
+        return offset;
+    }
+
+    /**
+     * A deduplicated output and the blob store for its large packets.
+     */
+    /**
+     * A {@link PacketFilter} compiled into one rule per packet id and direction together with the counters used for
+     * sampling, so both are replaced at once when the filter is set.
+     */
+    private static final class CompiledFilter {
+
+        /**
+         * Rules indexed by packet id, server bound packets first. The upper 32 bits of each rule are the maximum
+         * size, the lower ones the sample rate.
+         */
+        private final long[] rules = new long[(PacketFilter.MAX_PACKET_ID + 1) * 2];
+
+        /**
+         * Number of packets seen per rule for sampling. Packets might be recorded by multiple threads, e.g. when
+         * writing a packet directly while another one is written by the networking thread.
+         */
+        private final AtomicIntegerArray counters = new AtomicIntegerArray(rules.length);
+
+        public CompiledFilter(PacketFilter filter) {
+            for (int i = 0; i < rules.length; i++) {
+                boolean fromServer = i > PacketFilter.MAX_PACKET_ID;
+                int packetId = i & PacketFilter.MAX_PACKET_ID;
+                rules[i] = (long) filter.getMaxSize(fromServer, packetId) << 32
+                        | filter.getSampleRate(fromServer, packetId);
+            }
+        }
+
+        /**
+         * Whether the specified packet is kept by the filter.
+         * Only peeks at the packet id, the packet data is neither copied nor modified.
+         * @param fromServer Whether the packet is client or server bound
+         * @param data The packet data (packet id and payload)
+         * @return {@code true} if the packet should be recorded, {@code false} if it is dropped
+         */
+        public boolean isKept(boolean fromServer, ByteBuf data) {
+            int index = data.readerIndex();
+            int length = data.readableBytes();
+            if (length == 0) {
+                return true;
+            }
+            int packetId = data.getByte(index) & 0xff;
+            if (packetId > 0x7f) {
+                // Ids up to MAX_PACKET_ID take two bytes with the second one being 1
+                if (length < 2 || data.getByte(index + 1) != 1) {
+                    return true;
+                }
+            }
+            int i = fromServer ? PacketFilter.MAX_PACKET_ID + 1 + packetId : packetId;
+            long rule = rules[i];
+            if (length > rule >>> 32) {
+                return false;
+            }
+            int sampleRate = (int) rule;
+            return sampleRate == 1
+                    || sampleRate != 0 && (counters.getAndIncrement(i) & Integer.MAX_VALUE) % sampleRate == 0;
+        }
+    }
+
+    private static class DeduplicatedOutput {
+        private final OutputStream out;
+        private final BlobStore store;
+
+        public DeduplicatedOutput(OutputStream out, BlobStore store) {
+            this.out = out;
+            this.store = store;
+        }
     }
 
     /**
-     * Convenient output stream for writing to multiple streams.
+     * Writes packets seeding a new output, framed as in the recording entries of this recorder.
      */
-    private static class MultiOutputStream extends OutputStream {
+    private class SeedWriter implements PacketHandler {
+        private final OutputStream out;
+        private boolean absolute = true;
+        private long last;
 
-        private final Iterable<OutputStream> outputs;
+        /**
+         * Number of packets written.
+         */
+        private int packets;
 
-        public MultiOutputStream(Iterable<OutputStream> outputs) {
-            this.outputs = outputs;
+        public SeedWriter(OutputStream out) {
+            this.out = out;
         }
 
         @Override
-        public void write(int b) throws IOException {
-            for (OutputStream out : outputs) {
-                out.write(b);
+        public void handle(long time, boolean fromServer, ByteBuf data) throws IOException {
+            long value;
+            if (fileFormatVersion == FILE_FORMAT_VERSION) {
+                value = time << 1;
+            } else {
+                value = absolute || time < last ? time << 2 | 2 : time - last << 2;
+                absolute = false;
+                last = time;
             }
+            int headerLength = writeVar(header, 0, value | (fromServer ? 0 : 1));
+            headerLength = writeVar(header, headerLength, data.readableBytes());
+            out.write(header, 0, headerLength);
+            data.getBytes(data.readerIndex(), out, data.readableBytes());
+            packets++;
         }
+    }
+
+    /**
+     * Output stream appending to the {@link #batch}.
+     */
+    private class BatchOutputStream extends OutputStream {
+
+        private final byte[] singleByte = new byte[1];
 
         @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            for (OutputStream out : outputs) {
-                out.write(b, off, len);
+        public void write(int b) throws IOException {
+            synchronized (AbstractRecorder.this) {
+                singleByte[0] = (byte) b;
+                write(singleByte, 0, 1);
             }
         }
 
         @Override
-        public void flush() throws IOException {
-            for (OutputStream out : outputs) {
-                out.flush();
+        public void write(byte[] b, int off, int len) throws IOException {
+            synchronized (AbstractRecorder.this) {
+                if (batch != null && batch.writerIndex() + len > batchCapacity) {
+                    flushBatch();
+                }
+                if (len <= batchCapacity && batch == null) {
+                    batch = allocateBatch();
+                }
+                if (len > batchCapacity || batch == null) {
+                    writeToStreams(b, off, len);
+                    writeToChannels(b, off, len);
+                } else {
+                    batch.writeBytes(b, off, len);
+                }
             }
         }
 
         @Override
-        public void close() throws IOException {
-            for (OutputStream out : outputs) {
-                out.close();
+        public void flush() throws IOException {
+            synchronized (AbstractRecorder.this) {
+                flushBatch();
             }
         }
     }
@@ -0,0 +1,326 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Throwables;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Queues packets of a recorder and writes them on a separate writer thread.<br>
+ * <br>
+ * Queueing a packet does not acquire any monitor locks, so networking threads never wait for each other or the
+ * writer thread, unless {@link BackpressurePolicy#BLOCK} is used and the queue is full.<br>
+ * <br>
+ * With {@link BackpressurePolicy#SPILL}, packets which don't fit into the queue are still queued in memory but are
+ * moved to the spill file by the writer thread before it writes any packets, so the networking threads never do
+ * file I/O.<br>
+ * <br>
+ * If writing fails for any reason, the writer is failed: the failure is logged, all queued packets are discarded
+ * and every following packet is rejected with an {@link IOException}.
+ */
+class AsyncPacketWriter {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(AsyncPacketWriter.class);
+
+    /**
+     * Maximum number of packets written per run of the writer task. Afterwards the task is rescheduled so other
+     * recorders sharing the writer thread get their turn.
+     */
+    private static final int MAX_PACKETS_PER_RUN = 256;
+
+    private final AbstractRecorder<?> recorder;
+    private final RecorderMetrics metrics;
+    private final Executor writer;
+    private final BackpressurePolicy policy;
+    private final int capacity;
+
+    /**
+     * Queue of packets waiting to be written.
+     */
+    private final Queue<QueuedPacket> queue = new ConcurrentLinkedQueue<QueuedPacket>();
+
+    /**
+     * One permit per free slot in the queue. Spilled packets do not occupy a slot.
+     */
+    private final Semaphore freeSlots;
+
+    /**
+     * Whether the writer task is currently scheduled or running.
+     */
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    /**
+     * Temporary file for packets which didn't fit into the queue. Only used by {@link BackpressurePolicy#SPILL}.
+     */
+    private final SpillFile spillFile;
+
+    /**
+     * Number of queued packets which didn't fit into the queue and have not yet been moved to the {@link #spillFile}.
+     */
+    private final AtomicInteger overflow = new AtomicInteger();
+
+    /**
+     * The first exception which occurred while writing. Rethrown to the networking thread on the next packet.
+     */
+    private volatile Throwable failure;
+
+    private final Runnable writerTask = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                writeQueued(MAX_PACKETS_PER_RUN);
+            } catch (Throwable t) {
+                // Already handled by writeQueued, there is no one to rethrow it to on the writer thread
+            } finally {
+                scheduled.set(false);
+                if (!queue.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    };
+
+    public AsyncPacketWriter(AbstractRecorder<?> recorder, RecorderMetrics metrics, Executor writer, int capacity,
+                             BackpressurePolicy policy) {
+        this.recorder = recorder;
+        this.metrics = metrics;
+        this.writer = writer;
+        this.policy = policy;
+        this.capacity = capacity;
+        this.freeSlots = new Semaphore(capacity);
+        this.spillFile = policy == BackpressurePolicy.SPILL ? new SpillFile() : null;
+    }
+
+    /**
+     * Return the number of packets currently held in memory by the queue. Spilled packets are not included.
+     * @return Number of queued packets
+     */
+    public int getQueueDepth() {
+        return capacity - freeSlots.availablePermits() + overflow.get();
+    }
+
+    /**
+     * Return the exception which failed this writer.
+     * @return The first exception thrown while writing or {@code null} if no write has failed
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Queue the specified packet. The reader index of the packet data is not modified.
+     * @param time Time of the packet in milliseconds since the start of the recording
+     * @param fromServer Whether the packet is client or server bound
+     * @param data The packet data (packet id and payload)
+     * @throws IOException if a previous write failed
+     */
+    public void enqueue(long time, boolean fromServer, ByteBuf data) throws IOException {
+        Throwable failure = this.failure;
+        if (failure != null) {
+            throw new IOException("Asynchronous write failed.", failure);
+        }
+
+        QueuedPacket packet;
+        if (freeSlots.tryAcquire()) {
+            packet = new QueuedPacket(time, fromServer, data.slice().retain());
+        } else {
+            switch (policy) {
+                case BLOCK:
+                    try {
+                        freeSlots.acquire();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted while waiting for queue space.");
+                    }
+                    packet = new QueuedPacket(time, fromServer, data.slice().retain());
+                    break;
+                case DROP:
+                    metrics.recordDropped();
+                    return;
+                case SPILL:
+                    packet = new QueuedPacket(time, fromServer, data.slice().retain());
+                    packet.overflow = true;
+                    overflow.incrementAndGet();
+                    break;
+                default:
+                    throw new AssertionError(policy);
+            }
+        }
+        queue.offer(packet);
+        schedule();
+    }
+
+    /**
+     * Synchronously write all packets which are currently queued.
+     * Does nothing if the writer has already failed, the queued packets have been discarded in that case.
+     * @throws IOException if an I/O error occurred
+     */
+    public void flush() throws IOException {
+        writeQueued(Integer.MAX_VALUE);
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            writer.execute(writerTask);
+        }
+    }
+
+    /**
+     * Write queued packets to the recorder.
+     * Holds the lock of the recorder so packets are written in order even if {@link #flush()} is called
+     * concurrently to the writer task. Any exception {@link #fail(Throwable) fails} this writer.
+     * @param limit Maximum number of packets to write
+     * @throws IOException if an I/O error occurred
+     */
+    private void writeQueued(int limit) throws IOException {
+        synchronized (recorder) {
+            if (failure != null) {
+                // Packets queued concurrently to the failure
+                discardQueued();
+                return;
+            }
+            try {
+                if (overflow.get() > 0) {
+                    spillOverflow();
+                }
+                QueuedPacket packet;
+                for (int i = 0; i < limit && (packet = queue.poll()) != null; i++) {
+                    if (packet.data == null) {
+                        byte[] data = spillFile.read(packet.spillPosition, packet.spillLength);
+                        spillFile.release(packet.spillLength);
+                        recorder.writePacket(packet.time, packet.fromServer, Unpooled.wrappedBuffer(data));
+                    } else {
+                        release(packet);
+                        try {
+                            recorder.writePacket(packet.time, packet.fromServer, packet.data);
+                        } finally {
+                            packet.data.release();
+                        }
+                    }
+                }
+            } catch (Throwable t) {
+                fail(t);
+                Throwables.propagateIfPossible(t, IOException.class);
+                throw new IOException("Asynchronous write failed.", t);
+            }
+        }
+    }
+
+    /**
+     * Move all queued packets which didn't fit into the queue to the {@link #spillFile}.
+     * Only called by the writer holding the lock of the recorder, the networking threads no longer access
+     * packets once they have been queued.
+     * @throws IOException if an I/O error occurred
+     */
+    private void spillOverflow() throws IOException {
+        for (QueuedPacket packet : queue) {
+            if (packet.overflow && packet.data != null) {
+                ByteBuf data = packet.data;
+                packet.spillLength = data.readableBytes();
+                packet.spillPosition = spillFile.append(data);
+                packet.data = null;
+                overflow.decrementAndGet();
+                data.release();
+            }
+        }
+    }
+
+    /**
+     * Release the queue slot or overflow count held by the specified in-memory packet once it has been dequeued.
+     * @param packet The packet
+     */
+    private void release(QueuedPacket packet) {
+        if (packet.overflow) {
+            overflow.decrementAndGet();
+        } else {
+            freeSlots.release();
+        }
+    }
+
+    /**
+     * Fail this writer. The first failure is logged and rethrown to the networking threads on the next packet,
+     * all queued packets are discarded.
+     * Must only be called while holding the lock of the recorder.
+     * @param t The cause of the failure
+     */
+    private void fail(Throwable t) {
+        if (failure == null) {
+            failure = t;
+            LOGGER.error("Asynchronous writing of a recording failed, no more packets will be recorded.", t);
+        }
+        try {
+            discardQueued();
+        } catch (Throwable suppressed) {
+            t.addSuppressed(suppressed);
+        }
+    }
+
+    /**
+     * Drop all queued packets, e.g. after this writer has failed.
+     * Must only be called while holding the lock of the recorder.
+     * @throws IOException if releasing the spill file failed
+     */
+    private void discardQueued() throws IOException {
+        QueuedPacket packet;
+        while ((packet = queue.poll()) != null) {
+            metrics.recordDropped();
+            if (packet.data == null) {
+                spillFile.release(packet.spillLength);
+            } else {
+                release(packet);
+                packet.data.release();
+            }
+        }
+    }
+
+    /**
+     * A packet in the queue. Either holds a retained slice of the packet data or the position of the packet
+     * in the spill file. Only the writer moves packets to the spill file.
+     */
+    private static class QueuedPacket {
+        private final long time;
+        private final boolean fromServer;
+        /**
+         * Whether the packet didn't fit into the queue and should be moved to the spill file.
+         */
+        private boolean overflow;
+        private ByteBuf data;
+        private long spillPosition = -1;
+        private int spillLength;
+
+        public QueuedPacket(long time, boolean fromServer, ByteBuf data) {
+            this.time = time;
+            this.fromServer = fromServer;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,456 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.HashCode;
+import io.netty.buffer.ByteBuf;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Content-addressed store for packet data shared by multiple recordings.<br>
+ * <br>
+ * Blobs are identified by the SHA-256 hash of their content and appended to one of {@link #SHARDS} pack files in
+ * the store directory, chosen by the first byte of the hash. Each shard has its own lock, so recorders storing
+ * different blobs at the same time rarely wait for each other. Each record in a pack file consists of the hash,
+ * the length as a 32-bit integer and the content. An incomplete record at the end of a pack file (e.g. after a
+ * crash) is discarded when the store is opened.<br>
+ * <br>
+ * Blobs are written to their pack file before {@link #put} returns, so a recording written after storing its blobs
+ * never references a missing blob if the server crashes. The pack files are only forced to disk by
+ * {@link #force()}, recorders do so before closing a recording which references them.<br>
+ * <br>
+ * The store only grows up to its size limit (1 GiB by default, {@code -Dspongerecording.blobs.limit=<bytes>}).
+ * Once a shard is full, its blobs are no longer stored and have to be written inline by the caller. The index
+ * of each shard maps the first 128 bits of each hash to the position of its record in a compact table, so its
+ * memory is bounded by the size limit as well: about 50 bytes per stored blob of at least
+ * {@link #MIN_BLOB_SIZE} bytes.
+ */
+public class BlobStore implements Closeable {
+
+    /**
+     * Number of pack files the blobs are distributed across.
+     */
+    public static final int SHARDS = 16;
+
+    public static final long DEFAULT_LIMIT = 1024 * 1024 * 1024;
+
+    /**
+     * Length of the hash identifying a blob.
+     */
+    public static final int HASH_LENGTH = 32;
+
+    /**
+     * Packets smaller than this are not worth deduplicating as the reference would be about as large.
+     */
+    public static final int MIN_BLOB_SIZE = 1024;
+
+    private static final int RECORD_HEADER_SIZE = HASH_LENGTH + 4;
+
+    /**
+     * Stores opened by {@link #open(File)} which haven't been closed by all of their users.
+     */
+    private static final Map<File, BlobStore> openStores = new HashMap<File, BlobStore>();
+
+    /**
+     * Return the store in the specified directory. All recorders share the same instance for the same directory.
+     * Each call has to be paired with a call to {@link #close()}, the store is closed once all of its users have
+     * closed it.
+     * @param directory The directory, created if it doesn't exist
+     * @return The store
+     * @throws IOException if an I/O error occurred
+     */
+    public static synchronized BlobStore open(File directory) throws IOException {
+        File key = directory.getCanonicalFile();
+        BlobStore store = openStores.get(key);
+        if (store == null) {
+            store = new BlobStore(key, Long.getLong("spongerecording.blobs.limit", DEFAULT_LIMIT));
+            openStores.put(key, store);
+        }
+        store.references++;
+        return store;
+    }
+
+    /**
+     * Whether the specified directory contains a blob store.
+     * @param directory The directory
+     * @return {@code true} if it contains at least one pack file, {@code false} otherwise
+     */
+    public static boolean exists(File directory) {
+        for (int i = 0; i < SHARDS; i++) {
+            if (getPackFile(directory, i).isFile()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the pack file of the specified shard.
+     * @param directory Directory of the store
+     * @param shard Index of the shard
+     * @return The pack file
+     */
+    public static File getPackFile(File directory, int shard) {
+        return new File(directory, String.format("blobs-%x.dat", shard));
+    }
+
+    /**
+     * Create a new message digest for computing the hashes of blobs.
+     * @return The message digest
+     */
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError("SHA-256 is required to be supported.", e);
+        }
+    }
+
+    private final File directory;
+    private final Shard[] shards = new Shard[SHARDS];
+
+    /**
+     * Number of users of a store returned by {@link #open(File)} which haven't closed it yet.
+     * Guarded by the class lock, {@code 0} for stores not shared using {@link #open(File)}.
+     */
+    private int references;
+
+    /**
+     * Open the store in the specified directory using the default size limit.
+     * Use {@link #open(File)} instead to share the store with other recorders.
+     * @param directory The directory, created if it doesn't exist
+     * @throws IOException if an I/O error occurred
+     */
+    public BlobStore(File directory) throws IOException {
+        this(directory, DEFAULT_LIMIT);
+    }
+
+    /**
+     * Open the store in the specified directory.
+     * Use {@link #open(File)} instead to share the store with other recorders.
+     * @param directory The directory, created if it doesn't exist
+     * @param limit Maximum size of all pack files together in bytes
+     * @throws IOException if an I/O error occurred
+     */
+    public BlobStore(File directory, long limit) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory);
+        }
+        this.directory = directory;
+        try {
+            for (int i = 0; i < SHARDS; i++) {
+                shards[i] = new Shard(getPackFile(directory, i), limit / SHARDS);
+            }
+        } catch (IOException | RuntimeException e) {
+            closeShards();
+            throw e;
+        }
+    }
+
+    /**
+     * Return the directory of this store.
+     * @return The directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Whether the blob with the specified hash is in this store.
+     * @param hash The hash
+     * @return {@code true} if the blob is stored, {@code false} otherwise
+     */
+    public boolean contains(byte[] hash) {
+        Shard shard = getShard(hash);
+        synchronized (shard) {
+            return shard.find(hash) != -1;
+        }
+    }
+
+    /**
+     * Store the specified data unless a blob with the same hash is already stored.
+     * @param hash SHA-256 hash of the data
+     * @param data The data, the reader index is not modified
+     * @param offset Index of the first byte of the blob
+     * @param length Length of the blob
+     * @return {@code true} if the blob is stored (it has been added or was already stored), {@code false} if it
+     * doesn't fit into the store and has to be written inline
+     * @throws IOException if an I/O error occurred
+     */
+    public boolean put(byte[] hash, ByteBuf data, int offset, int length) throws IOException {
+        Preconditions.checkArgument(hash.length == HASH_LENGTH, "Invalid hash length: %s", hash.length);
+        Shard shard = getShard(hash);
+        synchronized (shard) {
+            return shard.find(hash) != -1 || shard.append(hash, data, offset, length);
+        }
+    }
+
+    /**
+     * Return the content of the blob with the specified hash.
+     * @param hash The hash
+     * @return The content
+     * @throws IOException if an I/O error occurred or the blob is not in this store
+     */
+    public byte[] get(byte[] hash) throws IOException {
+        Shard shard = getShard(hash);
+        long position;
+        synchronized (shard) {
+            position = shard.find(hash);
+        }
+        if (position == -1) {
+            throw new IOException("Blob " + HashCode.fromBytes(hash) + " not found in " + directory);
+        }
+        ByteBuffer length = ByteBuffer.allocate(4);
+        shard.readFully(length, position + HASH_LENGTH);
+        byte[] blob = new byte[length.getInt(0)];
+        shard.readFully(ByteBuffer.wrap(blob), position + RECORD_HEADER_SIZE);
+        return blob;
+    }
+
+    /**
+     * Force all blobs added since the last call to disk, so they survive a crash of the operating system.
+     * @throws IOException if an I/O error occurred
+     */
+    public void force() throws IOException {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                if (shard.dirty) {
+                    shard.pack.force(true);
+                    shard.dirty = false;
+                }
+            }
+        }
+    }
+
+    private Shard getShard(byte[] hash) {
+        return shards[(hash[0] & 0xff) % SHARDS];
+    }
+
+    /**
+     * Close this store. If it has been returned by {@link #open(File)}, it is only closed once all of its users
+     * have closed it.
+     * @throws IOException if an I/O error occurred
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (BlobStore.class) {
+            if (references > 0) {
+                if (--references > 0) {
+                    return;
+                }
+                openStores.remove(directory);
+            }
+        }
+        closeShards();
+    }
+
+    private void closeShards() throws IOException {
+        IOException exception = null;
+        for (Shard shard : shards) {
+            if (shard != null) {
+                try {
+                    synchronized (shard) {
+                        shard.pack.close();
+                    }
+                } catch (IOException e) {
+                    exception = e;
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    /**
+     * One pack file and the index of the blobs in it.
+     */
+    private static class Shard {
+        private final FileChannel pack;
+        private final long limit;
+        private final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+
+        /**
+         * First and second 64 bits of the hash of the blob in each slot of the index, two entries per slot.
+         */
+        private long[] keys = new long[2 * 64];
+
+        /**
+         * Position of the record of the blob in each slot plus one, {@code 0} if the slot is empty.
+         */
+        private long[] positions = new long[64];
+
+        /**
+         * Number of blobs in the index.
+         */
+        private int count;
+
+        /**
+         * Length of the pack file up to the end of the last complete record.
+         */
+        private long size;
+
+        /**
+         * Whether blobs have been appended since the pack file was last forced to disk.
+         */
+        private boolean dirty;
+
+        public Shard(File file, long limit) throws IOException {
+            this.pack = FileChannel.open(file.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.limit = limit;
+            try {
+                readIndex();
+            } catch (IOException | RuntimeException e) {
+                pack.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Read the index from the pack file and drop any incomplete record at its end.
+         * @throws IOException if an I/O error occurred
+         */
+        private void readIndex() throws IOException {
+            long length = pack.size();
+            long position = 0;
+            byte[] hash = new byte[HASH_LENGTH];
+            while (position + RECORD_HEADER_SIZE <= length) {
+                header.clear();
+                readFully(header, position);
+                int blobLength = header.getInt(HASH_LENGTH);
+                if (blobLength < 0 || position + RECORD_HEADER_SIZE + blobLength > length) {
+                    break;
+                }
+                header.position(0);
+                header.get(hash);
+                if (find(hash) == -1) {
+                    insert(hash, position);
+                }
+                position += RECORD_HEADER_SIZE + blobLength;
+            }
+            if (position != length) {
+                pack.truncate(position);
+            }
+            size = position;
+        }
+
+        /**
+         * Append the specified blob to the pack file unless that would exceed the limit.
+         * @return {@code true} if it has been appended, {@code false} if the shard is full
+         */
+        public boolean append(byte[] hash, ByteBuf data, int offset, int length) throws IOException {
+            long position = size;
+            if (position + RECORD_HEADER_SIZE + length > limit) {
+                return false;
+            }
+            header.clear();
+            header.put(hash).putInt(length).flip();
+            while (header.hasRemaining()) {
+                position += pack.write(header, position);
+            }
+            for (ByteBuffer buffer : data.nioBuffers(offset, length)) {
+                while (buffer.hasRemaining()) {
+                    position += pack.write(buffer, position);
+                }
+            }
+            insert(hash, size);
+            size = position;
+            dirty = true;
+            return true;
+        }
+
+        /**
+         * Return the position of the record of the blob with the specified hash.
+         * @return The position or {@code -1} if it isn't stored
+         */
+        public long find(byte[] hash) {
+            long key0 = getLong(hash, 0);
+            long key1 = getLong(hash, 8);
+            int mask = positions.length - 1;
+            for (int slot = (int) key1 & mask; positions[slot] != 0; slot = slot + 1 & mask) {
+                if (keys[2 * slot] == key0 && keys[2 * slot + 1] == key1) {
+                    return positions[slot] - 1;
+                }
+            }
+            return -1;
+        }
+
+        private void insert(byte[] hash, long position) {
+            if (++count * 4 > positions.length * 3) {
+                grow();
+            }
+            put(getLong(hash, 0), getLong(hash, 8), position + 1);
+        }
+
+        private void put(long key0, long key1, long position) {
+            int mask = positions.length - 1;
+            int slot = (int) key1 & mask;
+            while (positions[slot] != 0) {
+                slot = slot + 1 & mask;
+            }
+            keys[2 * slot] = key0;
+            keys[2 * slot + 1] = key1;
+            positions[slot] = position;
+        }
+
+        private void grow() {
+            long[] oldKeys = keys;
+            long[] oldPositions = positions;
+            keys = new long[oldKeys.length * 2];
+            positions = new long[oldPositions.length * 2];
+            for (int slot = 0; slot < oldPositions.length; slot++) {
+                if (oldPositions[slot] != 0) {
+                    put(oldKeys[2 * slot], oldKeys[2 * slot + 1], oldPositions[slot]);
+                }
+            }
+        }
+
+        public void readFully(ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                int read = pack.read(buffer, position);
+                if (read == -1) {
+                    throw new EOFException();
+                }
+                position += read;
+            }
+        }
+
+        private static long getLong(byte[] b, int offset) {
+            long value = 0;
+            for (int i = offset; i < offset + 8; i++) {
+                value = value << 8 | b[i] & 0xff;
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A coarse monotonic clock which is read from memory instead of the operating system.<br>
+ * <br>
+ * The time of the {@link MonotonicClock} is only taken again by the first read after {@link #update()} has been
+ * called, so reading it for every recorded packet doesn't cost a call to {@link System#nanoTime()}. There is no
+ * thread of its own: the platform updates it once per server tick and recorders whenever their networking thread
+ * has finished reading from the connection. The time therefore lags behind by up to a server tick, use it via
+ * {@link Recorder#setClock(RecordingClock)} if that doesn't matter for the recording.
+ */
+public final class CachedClock implements RecordingClock {
+
+    private static final CachedClock INSTANCE = new CachedClock();
+
+    public static CachedClock getInstance() {
+        return INSTANCE;
+    }
+
+    private final AtomicLong time = new AtomicLong();
+
+    /**
+     * Whether the {@link #time} has to be taken again by the next read.
+     */
+    private volatile boolean stale = true;
+
+    private CachedClock() {
+    }
+
+    /**
+     * Let the next read take the current time again. Cheap enough to be called from the event loop.
+     */
+    public void update() {
+        if (!stale) {
+            stale = true;
+        }
+    }
+
+    @Override
+    public long getTime() {
+        if (stale) {
+            stale = false;
+            // Readers might race each other, never let the time decrease
+            long now = MonotonicClock.getInstance().getTime();
+            long previous;
+            do {
+                previous = time.get();
+            } while (previous < now && !time.compareAndSet(previous, now));
+        }
+        return time.get();
+    }
+}
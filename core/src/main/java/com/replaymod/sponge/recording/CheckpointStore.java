@@ -0,0 +1,258 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.io.CountingOutputStream;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Checkpoints of the {@link ViewerState} taken while recording, each one stored as its own entry in replay files.
+ * <br><br>
+ * Checkpoints are taken at sync points of the {@link RecordingIndex index}. A reader can start with the packets of
+ * the checkpoint and continue reading the recording from the sync point at the same time, instead of reading the
+ * whole recording up to it, see {@link ReplayReader#openAt(java.io.File, long)}. Each checkpoint is stored in the
+ * entry {@code checkpoints/<time>.tmcpr} in the same file format version as the recording.<br>
+ * The checkpoints are deflated into a temporary file once taken and copied into each replay file when it is
+ * finished, so they don't have to be kept in memory. Taking a checkpoint only takes a snapshot of the packets of the
+ * state, they are written and deflated in the background.
+ */
+public class CheckpointStore {
+
+    public static final String ENTRY_PREFIX = "checkpoints/";
+    public static final String ENTRY_SUFFIX = ".tmcpr";
+
+    /**
+     * Threads writing the checkpoints of all stores.
+     */
+    private static final ExecutorService WRITERS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            new ThreadFactoryBuilder().setNameFormat("SpongeRecording Checkpoints #%d").setDaemon(true).build());
+
+    private final List<Checkpoint> checkpoints = new ArrayList<Checkpoint>();
+    private File file;
+    private FileChannel channel;
+
+    /**
+     * Checkpoints which are still being written in the background.
+     */
+    private final List<Future<Void>> pending = new ArrayList<Future<Void>>();
+
+    /**
+     * Whether the store has been released.
+     */
+    private boolean released;
+
+    /**
+     * Return the name of the entry of the checkpoint at the specified time.
+     * @param time Time of the checkpoint in milliseconds since the start of the recording
+     * @return The entry name
+     */
+    public static String getEntryName(long time) {
+        return ENTRY_PREFIX + time + ENTRY_SUFFIX;
+    }
+
+    /**
+     * Return the number of checkpoints taken so far.
+     * @return Number of checkpoints
+     */
+    public synchronized int size() {
+        return checkpoints.size() + pending.size();
+    }
+
+    /**
+     * Take a checkpoint of a state. It is written in the background, errors are thrown by
+     * {@link #writeTo(ZipWriter, RecordingIndex)}.
+     * @param time Time of the checkpoint in milliseconds since the start of the recording
+     * @param packets The packets restoring the state, see {@link ViewerState#getPackets()}
+     * @param fileFormatVersion File format version of the recording
+     */
+    public synchronized void add(final long time, final List<byte[]> packets, final int fileFormatVersion) {
+        if (released) {
+            return;
+        }
+        pending.add(WRITERS.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                write(time, packets, fileFormatVersion);
+                return null;
+            }
+        }));
+    }
+
+    /**
+     * Write a checkpoint to the temporary file.
+     * @param time Time of the checkpoint in milliseconds since the start of the recording
+     * @param packets The packets restoring the state
+     * @param fileFormatVersion File format version of the recording
+     * @throws IOException if an I/O error occurred
+     */
+    private synchronized void write(long time, List<byte[]> packets, int fileFormatVersion) throws IOException {
+        if (released) {
+            return;
+        }
+        if (channel == null) {
+            file = File.createTempFile("spongerecording", ".checkpoints");
+            file.deleteOnExit();
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+        long position = channel.position();
+        CountingOutputStream compressed = new CountingOutputStream(
+                new BufferedOutputStream(Channels.newOutputStream(channel)));
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            CRC32 crc = new CRC32();
+            DeflaterOutputStream deflaterOut = new DeflaterOutputStream(compressed, deflater);
+            CountingOutputStream uncompressed = new CountingOutputStream(new CheckedOutputStream(deflaterOut, crc));
+            ViewerState.writeTo(uncompressed, packets, time, fileFormatVersion);
+            uncompressed.flush();
+            deflaterOut.finish();
+            compressed.flush();
+            checkpoints.add(new Checkpoint(time, position, compressed.getCount(), crc.getValue(),
+                    uncompressed.getCount()));
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Write all checkpoints which are at a sync point of the specified index as entries to the zip file.
+     * Waits for the checkpoints which are still being written first.
+     * @param zip The zip file
+     * @param index Index of the recording in the zip file
+     * @throws IOException if an I/O error occurred, also while writing any of the checkpoints
+     */
+    public void writeTo(ZipWriter zip, RecordingIndex index) throws IOException {
+        awaitPending();
+        synchronized (this) {
+            writeEntries(zip, index);
+        }
+    }
+
+    /**
+     * Wait for all checkpoints which are being written in the background.
+     * @throws IOException if an I/O error occurred while writing any of them
+     */
+    private void awaitPending() throws IOException {
+        List<Future<Void>> futures;
+        synchronized (this) {
+            futures = new ArrayList<Future<Void>>(pending);
+            pending.clear();
+        }
+        IOException error = null;
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for checkpoints.", e);
+            } catch (ExecutionException e) {
+                if (error == null) {
+                    error = new IOException("Failed to write checkpoint.", e.getCause());
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void writeEntries(ZipWriter zip, RecordingIndex index) throws IOException {
+        byte[] buf = new byte[64 * 1024];
+        for (Checkpoint checkpoint : checkpoints) {
+            int i = index.find(checkpoint.time);
+            if (i == -1 || index.getTime(i) != checkpoint.time) {
+                // The zip file has been added after the checkpoint or there's no sync point at its time
+                continue;
+            }
+            zip.putNextEntry(getEntryName(checkpoint.time));
+            long position = checkpoint.position;
+            long end = position + checkpoint.compressedSize;
+            while (position < end) {
+                ByteBuffer buffer = ByteBuffer.wrap(buf, 0, (int) Math.min(buf.length, end - position));
+                int read = channel.read(buffer, position);
+                if (read < 0) {
+                    throw new EOFException("Checkpoint file truncated.");
+                }
+                zip.writeCompressed(buf, 0, read);
+                position += read;
+            }
+            zip.closeEntry(checkpoint.crc, checkpoint.size);
+        }
+    }
+
+    /**
+     * Delete the temporary file. No checkpoints can be taken or written afterwards, those which are still being
+     * written in the background are discarded.
+     * If it can't be deleted right away, it is deleted once the JVM exits.
+     */
+    public synchronized void release() {
+        released = true;
+        for (Future<Void> future : pending) {
+            future.cancel(false);
+        }
+        pending.clear();
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+            file.delete();
+            file = null;
+        }
+        checkpoints.clear();
+    }
+
+    private static class Checkpoint {
+        private final long time;
+        private final long position;
+        private final long compressedSize;
+        private final long crc;
+        private final long size;
+
+        public Checkpoint(long time, long position, long compressedSize, long crc, long size) {
+            this.time = time;
+            this.position = position;
+            this.compressedSize = compressedSize;
+            this.crc = crc;
+            this.size = size;
+        }
+    }
+}
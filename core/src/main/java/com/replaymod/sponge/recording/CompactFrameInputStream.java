@@ -0,0 +1,173 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads a recording in file format version 2 and converts it to version 1.<br>
+ * <br>
+ * A version 2 recording starts with the {@link #MAGIC} and is followed by frames similar to those of version 1.
+ * Instead of the time shifted left by one, the first variable-length integer of each frame contains the time
+ * shifted left by two. The second lowest bit is set if the time is absolute, otherwise it is the difference to the
+ * time of the previous frame. The lowest bit is the direction as in version 1.<br>
+ * An incomplete frame at the end of the recording is discarded.
+ */
+public class CompactFrameInputStream extends InputStream {
+
+    /**
+     * Magic bytes at the start of every version 2 recording.
+     */
+    public static final byte[] MAGIC = "TMCPRV02".getBytes(Charsets.US_ASCII);
+
+    private final InputStream in;
+    private final byte[] singleByte = new byte[1];
+
+    /**
+     * Time of the previous frame.
+     */
+    private long time;
+
+    /**
+     * The current frame in the version 1 format.
+     */
+    private byte[] frame = new byte[0];
+    private int framePosition;
+    private int frameLength;
+    private boolean eof;
+
+    /**
+     * Create a new input stream converting the version 2 recording.
+     * @param in The version 2 recording, including the magic bytes
+     * @throws IOException if an I/O error occurred or the input is not a version 2 recording
+     */
+    public CompactFrameInputStream(InputStream in) throws IOException {
+        this.in = in;
+        byte[] magic = new byte[MAGIC.length];
+        ByteStreams.readFully(in, magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a version 2 recording.");
+        }
+    }
+
+    /**
+     * Decode the time of a version 2 frame.
+     * @param timeAndDirection The first variable-length integer of the frame
+     * @param previousTime Time of the previous frame
+     * @return Time of the frame in milliseconds since the start of the recording
+     */
+    public static long decodeTime(long timeAndDirection, long previousTime) {
+        long time = timeAndDirection >>> 2;
+        return (timeAndDirection & 2) != 0 ? time : previousTime + time;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (framePosition == frameLength && !nextFrame()) {
+            return -1;
+        }
+        len = Math.min(len, frameLength - framePosition);
+        System.arraycopy(frame, framePosition, b, off, len);
+        framePosition += len;
+        return len;
+    }
+
+    /**
+     * Read the next frame and convert it to version 1.
+     * @return {@code false} if there are no more complete frames, {@code true} otherwise
+     * @throws IOException if an I/O error occurred
+     */
+    private boolean nextFrame() throws IOException {
+        if (eof) {
+            return false;
+        }
+        try {
+            long timeAndDirection = readVar(true);
+            if (timeAndDirection == -1) {
+                eof = true;
+                return false;
+            }
+            long length = readVar(false);
+            if (length > Integer.MAX_VALUE - 20) {
+                throw new IOException("Invalid packet length: " + length);
+            }
+            if (frame.length < 20 + length) {
+                frame = new byte[(int) Math.max(20 + length, frame.length * 2)];
+            }
+            time = decodeTime(timeAndDirection, time);
+            frameLength = AbstractRecorder.writeVar(frame, 0, time << 1 | (timeAndDirection & 1));
+            frameLength = AbstractRecorder.writeVar(frame, frameLength, length);
+            ByteStreams.readFully(in, frame, frameLength, (int) length);
+            frameLength += length;
+            framePosition = 0;
+            return true;
+        } catch (EOFException e) {
+            // Incomplete frame at the end of the recording
+            eof = true;
+            return false;
+        }
+    }
+
+    /**
+     * Read a variable-length integer.
+     * @param allowEnd Whether the end of the stream may be reached before the first byte
+     * @return The value or {@code -1} if the end of the stream has been reached
+     * @throws IOException if an I/O error occurred or the stream ended in the middle of the integer
+     */
+    private long readVar(boolean allowEnd) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b == -1) {
+                if (shift == 0 && allowEnd) {
+                    return -1;
+                }
+                throw new EOFException();
+            }
+            if (shift > 63) {
+                throw new IOException("Variable-length integer too long.");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.io.ByteStreams;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Reads a deduplicated recording and restores the raw packet data.<br>
+ * <br>
+ * A deduplicated recording starts with the {@link #MAGIC} and is followed by frames similar to those of raw
+ * recordings. The length is shifted left by one, the lowest bit being set if the packet data is stored in a
+ * {@link BlobStore}. In that case, the frame contains the hash of the packet data instead of the data itself.<br>
+ * An incomplete frame at the end of the recording is discarded.
+ */
+public class DeduplicatedInputStream extends InputStream {
+
+    /**
+     * Magic bytes at the start of every deduplicated recording.
+     */
+    public static final byte[] MAGIC = "TMCPRDDP".getBytes(Charsets.US_ASCII);
+
+    private final InputStream in;
+    private final BlobStore store;
+
+    private final byte[] hash = new byte[BlobStore.HASH_LENGTH];
+    private final byte[] singleByte = new byte[1];
+
+    /**
+     * The current frame in the raw format.
+     */
+    private byte[] frame = new byte[0];
+    private int framePosition;
+    private int frameLength;
+    private boolean eof;
+
+    /**
+     * Create a new input stream reading the deduplicated recording.
+     * @param in The deduplicated recording, including the magic bytes
+     * @param store The store containing the deduplicated packet data
+     * @throws IOException if an I/O error occurred or the input is not a deduplicated recording
+     */
+    public DeduplicatedInputStream(InputStream in, BlobStore store) throws IOException {
+        this.in = in;
+        this.store = store;
+        byte[] magic = new byte[MAGIC.length];
+        ByteStreams.readFully(in, magic);
+        if (!Arrays.equals(magic, MAGIC)) {
+            throw new IOException("Not a deduplicated recording.");
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (framePosition == frameLength && !nextFrame()) {
+            return -1;
+        }
+        len = Math.min(len, frameLength - framePosition);
+        System.arraycopy(frame, framePosition, b, off, len);
+        framePosition += len;
+        return len;
+    }
+
+    /**
+     * Read the next frame and convert it to the raw format.
+     * @return {@code false} if there are no more complete frames, {@code true} otherwise
+     * @throws IOException if an I/O error occurred
+     */
+    private boolean nextFrame() throws IOException {
+        if (eof) {
+            return false;
+        }
+        try {
+            long timeAndDirection = readVar(true);
+            if (timeAndDirection == -1) {
+                eof = true;
+                return false;
+            }
+            long lengthAndReference = readVar(false);
+            if (lengthAndReference >>> 1 > Integer.MAX_VALUE - 20) {
+                throw new IOException("Invalid packet length: " + (lengthAndReference >>> 1));
+            }
+            int length = (int) (lengthAndReference >>> 1);
+            byte[] data;
+            if ((lengthAndReference & 1) != 0) {
+                ByteStreams.readFully(in, hash);
+                data = store.get(hash);
+                if (data.length != length) {
+                    throw new IOException("Blob " + HashCode.fromBytes(hash) + " has length " + data.length
+                            + " but " + length + " was expected.");
+                }
+            } else {
+                data = null;
+            }
+
+            if (frame.length < 20 + length) {
+                frame = new byte[Math.max(20 + length, frame.length * 2)];
+            }
+            frameLength = AbstractRecorder.writeVar(frame, 0, timeAndDirection);
+            frameLength = AbstractRecorder.writeVar(frame, frameLength, length);
+            if (data == null) {
+                ByteStreams.readFully(in, frame, frameLength, length);
+            } else {
+                System.arraycopy(data, 0, frame, frameLength, length);
+            }
+            frameLength += length;
+            framePosition = 0;
+            return true;
+        } catch (EOFException e) {
+            // Incomplete frame at the end of the recording
+            eof = true;
+            return false;
+        }
+    }
+
+    /**
+     * Read a variable-length integer.
+     * @param allowEnd Whether the end of the stream may be reached before the first byte
+     * @return The value or {@code -1} if the end of the stream has been reached
+     * @throws IOException if an I/O error occurred or the stream ended in the middle of the integer
+     */
+    private long readVar(boolean allowEnd) throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.read();
+            if (b == -1) {
+                if (shift == 0 && allowEnd) {
+                    return -1;
+                }
+                throw new EOFException();
+            }
+            if (shift > 63) {
+                throw new IOException("Variable-length integer too long.");
+            }
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses data on the writing thread using a {@link Deflater}.
+ */
+public class DeflateCodec implements CompressionCodec {
+
+    private final int level;
+    private final int strategy;
+
+    /**
+     * Create a new deflate codec.
+     * @param level Compression level, see {@link Deflater#setLevel(int)}
+     * @param strategy Compression strategy, see {@link Deflater#setStrategy(int)}
+     */
+    public DeflateCodec(int level, int strategy) {
+        this.level = level;
+        this.strategy = strategy;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+        Deflater deflater = new Deflater(level, true);
+        deflater.setStrategy(strategy);
+        return new DeflateOutputStream(out, deflater);
+    }
+
+    @Override
+    public String toString() {
+        return "deflate(level=" + level + ", strategy=" + strategy + ")";
+    }
+
+    /**
+     * Deflating output stream which sync-flushes on {@link #flush()} and doesn't close the underlying stream.
+     */
+    private static class DeflateOutputStream extends OutputStream implements FullFlushable {
+        private final OutputStream out;
+        private final Deflater deflater;
+        private final byte[] buf = new byte[64 * 1024];
+        private final byte[] singleByte = new byte[1];
+        private boolean closed;
+
+        public DeflateOutputStream(OutputStream out, Deflater deflater) {
+            this.out = out;
+            this.deflater = deflater;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            singleByte[0] = (byte) b;
+            write(singleByte, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            deflater.setInput(b, off, len);
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            deflate(Deflater.SYNC_FLUSH);
+        }
+
+        @Override
+        public void fullFlush() throws IOException {
+            deflate(Deflater.FULL_FLUSH);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    out.write(buf, 0, deflater.deflate(buf));
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+
+        private void deflate(int flush) throws IOException {
+            int len;
+            do {
+                len = deflater.deflate(buf, 0, buf.length, flush);
+                out.write(buf, 0, len);
+            } while (len == buf.length);
+        }
+    }
+}
@@ -23,6 +23,8 @@ import org.spongepowered.api.Game;
 import org.spongepowered.api.entity.living.player.Player;
 import org.spongepowered.api.plugin.PluginContainer;
 
+import java.util.UUID;
+
 /**
  * Represents a platform for the current sponge implementation.
  */
@@ -46,4 +48,11 @@ public interface Implementation {
      * TODO: Temporary. Figure out if/how to use data api.
      */
     Connection getConnection(Player player);
+
+    /**
+     * Return the connection of the online player with the specified UUID.
+     * @param uuid UUID of the player
+     * @return The connection or {@code null} if no such player is online
+     */
+    Connection getConnection(UUID uuid);
 }
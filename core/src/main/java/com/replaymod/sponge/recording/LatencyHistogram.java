@@ -0,0 +1,117 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram with one bucket per power of two.<br>
+ * Recording a value is lock-free and does not allocate, so it's cheap enough to be used on networking threads.
+ */
+public class LatencyHistogram implements RecordingMetrics.Histogram {
+
+    /**
+     * Bucket {@code i} counts the values which are {@code i} bits long, i.e. between {@code 2^(i-1)} and
+     * {@code 2^i - 1}. Bucket {@code 0} counts zeros.
+     */
+    private final AtomicLongArray buckets = new AtomicLongArray(64);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Record the specified value. Negative values are recorded as zero.
+     * @param value The value
+     */
+    public void record(long value) {
+        value = Math.max(value, 0);
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        total.addAndGet(value);
+        long currentMax;
+        while (value > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, value)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Add all values of the specified histogram to this one.
+     * @param other The other histogram, must be a {@link LatencyHistogram}
+     */
+    public void add(RecordingMetrics.Histogram other) {
+        Preconditions.checkArgument(other instanceof LatencyHistogram, "Unsupported histogram: %s", other);
+        LatencyHistogram histogram = (LatencyHistogram) other;
+        for (int i = 0; i < 64; i++) {
+            long count = histogram.buckets.get(i);
+            if (count != 0) {
+                buckets.addAndGet(i, count);
+            }
+        }
+        total.addAndGet(histogram.total.get());
+        long otherMax = histogram.max.get();
+        long currentMax;
+        while (otherMax > (currentMax = max.get())) {
+            if (max.compareAndSet(currentMax, otherMax)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < 64; i++) {
+            count += buckets.get(i);
+        }
+        return count;
+    }
+
+    @Override
+    public long getTotal() {
+        return total.get();
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    @Override
+    public long getPercentile(double percentile) {
+        Preconditions.checkArgument(percentile >= 0 && percentile <= 100, "Percentile out of range: %s", percentile);
+        long[] counts = new long[64];
+        long count = 0;
+        for (int i = 0; i < 64; i++) {
+            count += counts[i] = buckets.get(i);
+        }
+        long target = Math.max(1, (long) Math.ceil(count * percentile / 100));
+        for (int i = 0; i < 64; i++) {
+            target -= counts[i];
+            if (target <= 0) {
+                long upperBound = i == 0 ? 0 : (1L << i) - 1;
+                return Math.min(upperBound, getMax());
+            }
+        }
+        return 0;
+    }
+}
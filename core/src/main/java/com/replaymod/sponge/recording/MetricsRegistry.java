@@ -0,0 +1,257 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.io.Files;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+import org.spongepowered.api.entity.living.player.Player;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregates the metrics of all recorders on this server.<br>
+ * <br>
+ * Metrics can be pulled using {@link #getAggregate()} and {@link #getRecorderMetrics()} or periodically be written
+ * to a log and a JSON file using {@link #startReporting(long, TimeUnit, Logger, File)}.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry INSTANCE = new MetricsRegistry(RecordingCoordinator.getInstance());
+
+    /**
+     * Return the registry of all recorders.
+     * @return The registry
+     */
+    public static MetricsRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    private final RecordingCoordinator coordinator;
+
+    /**
+     * Sum of the metrics of all recorders whose connection has been closed.
+     */
+    private final MetricsSnapshot retired = new MetricsSnapshot();
+
+    /**
+     * The task writing the reports or {@code null} if not reporting.
+     */
+    private ScheduledFuture<?> reportingTask;
+
+    private ScheduledExecutorService reportingExecutor;
+
+    public MetricsRegistry(RecordingCoordinator coordinator) {
+        this.coordinator = coordinator;
+    }
+
+    /**
+     * Add the metrics of the specified recorder to the totals once its connection has been closed.
+     * @param metrics Metrics of the recorder
+     */
+    public synchronized void retire(RecordingMetrics metrics) {
+        retired.addCounters(metrics);
+    }
+
+    /**
+     * Return the sum of the metrics of all recorders, including those whose connection has been closed.
+     * The queue depth only includes active recorders. Recorders whose outputs have all been ended are only
+     * included again once they are given a new output or their connection has been closed.
+     * @return Snapshot of the aggregated metrics
+     */
+    public MetricsSnapshot getAggregate() {
+        MetricsSnapshot aggregate = new MetricsSnapshot();
+        synchronized (this) {
+            aggregate.addCounters(retired);
+        }
+        for (AbstractRecorder<?> recorder : coordinator.getRecorders()) {
+            aggregate.add(recorder.getMetrics());
+        }
+        return aggregate;
+    }
+
+    /**
+     * Return the metrics of all active recorders.
+     * @return Map of all active recorders to their live metrics
+     */
+    public Map<Recorder, RecordingMetrics> getRecorderMetrics() {
+        Map<Recorder, RecordingMetrics> result = new LinkedHashMap<Recorder, RecordingMetrics>();
+        for (AbstractRecorder<?> recorder : coordinator.getRecorders()) {
+            result.put(recorder, recorder.getMetrics());
+        }
+        return result;
+    }
+
+    /**
+     * Converts the aggregated metrics and the metrics of all active recorders to a JSON string.
+     * @return The JSON string
+     */
+    @SuppressWarnings("unchecked")
+    public String toJson() {
+        JSONObject data = new JSONObject();
+        data.put("time", System.currentTimeMillis());
+        data.put("aggregate", toJson(getAggregate()));
+        data.put("memoryUsed", RecordingMemory.getInstance().getUsed());
+        data.put("memoryLimit", RecordingMemory.getInstance().getLimit());
+        JSONArray recorders = new JSONArray();
+        for (Map.Entry<Recorder, RecordingMetrics> e : getRecorderMetrics().entrySet()) {
+            JSONObject recorder = toJson(e.getValue());
+            Optional<Player> player = e.getKey().getConnection().getPlayer();
+            if (player.isPresent()) {
+                recorder.put("player", player.get().getName());
+                recorder.put("uuid", player.get().getUniqueId().toString());
+            }
+            recorder.put("duration", e.getKey().getDuration());
+            recorders.add(recorder);
+        }
+        data.put("recorders", recorders);
+        return data.toString();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject toJson(RecordingMetrics metrics) {
+        JSONObject data = new JSONObject();
+        data.put("serverPackets", metrics.getPackets(true));
+        data.put("clientPackets", metrics.getPackets(false));
+        data.put("serverBytes", metrics.getBytes(true));
+        data.put("clientBytes", metrics.getBytes(false));
+        data.put("uncompressedBytes", metrics.getUncompressedBytes());
+        data.put("compressedBytes", metrics.getCompressedBytes());
+        data.put("droppedPackets", metrics.getDroppedPackets());
+        data.put("filteredPackets", metrics.getFilteredPackets());
+        data.put("queueDepth", metrics.getQueueDepth());
+        data.put("stagingMemory", metrics.getStagingMemory());
+        data.put("writeTime", toJson(metrics.getWriteTime()));
+        data.put("lockWaitTime", toJson(metrics.getLockWaitTime()));
+        data.put("flushTime", toJson(metrics.getFlushTime()));
+        return data;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static JSONObject toJson(RecordingMetrics.Histogram histogram) {
+        JSONObject data = new JSONObject();
+        data.put("count", histogram.getCount());
+        data.put("total", histogram.getTotal());
+        data.put("p50", histogram.getPercentile(50));
+        data.put("p99", histogram.getPercentile(99));
+        data.put("max", histogram.getMax());
+        return data;
+    }
+
+    /**
+     * Start writing the aggregated metrics to the log and all metrics to a JSON file periodically.
+     * Replaces any previously started reporting.
+     * @param period Time between two reports
+     * @param unit Unit of the period
+     * @param logger Logger for a summary of the aggregated metrics or {@code null} to not log them
+     * @param jsonFile File which is replaced with the JSON metrics or {@code null} to not write them
+     */
+    public synchronized void startReporting(long period, TimeUnit unit, final Logger logger, final File jsonFile) {
+        Preconditions.checkArgument(period > 0, "Period must be positive.");
+        stopReporting();
+        if (reportingExecutor == null) {
+            reportingExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("SpongeRecording Metrics").setDaemon(true).build());
+        }
+        reportingTask = reportingExecutor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                if (logger != null) {
+                    logger.info(getSummary());
+                }
+                if (jsonFile != null) {
+                    try {
+                        writeJson(jsonFile);
+                    } catch (IOException e) {
+                        if (logger != null) {
+                            logger.warn("Failed to write recording metrics to " + jsonFile, e);
+                        }
+                    }
+                }
+            }
+        }, period, period, unit);
+    }
+
+    /**
+     * Stop writing the metrics periodically.
+     */
+    public synchronized void stopReporting() {
+        if (reportingTask != null) {
+            reportingTask.cancel(false);
+            reportingTask = null;
+        }
+    }
+
+    /**
+     * Return a one-line summary of the aggregated metrics.
+     * @return The summary
+     */
+    public String getSummary() {
+        MetricsSnapshot aggregate = getAggregate();
+        return String.format("Recording %d connections: %d/%d packets (%d/%d KiB) sent/received, "
+                        + "%d KiB compressed to %d KiB, write time p50=%dus p99=%dus max=%dus, "
+                        + "lock wait p99=%dus, flush p99=%dus, %d queued, %d dropped",
+                coordinator.getRecorders().size(),
+                aggregate.getPackets(true), aggregate.getPackets(false),
+                aggregate.getBytes(true) / 1024, aggregate.getBytes(false) / 1024,
+                aggregate.getUncompressedBytes() / 1024, aggregate.getCompressedBytes() / 1024,
+                toMicros(aggregate.getWriteTime().getPercentile(50)),
+                toMicros(aggregate.getWriteTime().getPercentile(99)),
+                toMicros(aggregate.getWriteTime().getMax()),
+                toMicros(aggregate.getLockWaitTime().getPercentile(99)),
+                toMicros(aggregate.getFlushTime().getPercentile(99)),
+                aggregate.getQueueDepth(), aggregate.getDroppedPackets());
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Replace the specified file with the current metrics in JSON format.
+     * The file is replaced atomically if supported by the file system.
+     * @param file The file
+     * @throws IOException if an I/O error occurred
+     */
+    public void writeJson(File file) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        Files.write(toJson(), tmpFile, Charsets.UTF_8);
+        try {
+            java.nio.file.Files.move(tmpFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            java.nio.file.Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+}
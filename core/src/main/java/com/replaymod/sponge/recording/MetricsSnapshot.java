@@ -0,0 +1,124 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+/**
+ * Sum of the metrics of multiple recorders at one point in time.
+ */
+public class MetricsSnapshot implements RecordingMetrics {
+
+    private long serverPackets;
+    private long clientPackets;
+    private long serverBytes;
+    private long clientBytes;
+    private long uncompressedBytes;
+    private long compressedBytes;
+    private long droppedPackets;
+    private long filteredPackets;
+    private int queueDepth;
+    private long stagingMemory;
+    private final LatencyHistogram writeTime = new LatencyHistogram();
+    private final LatencyHistogram lockWaitTime = new LatencyHistogram();
+    private final LatencyHistogram flushTime = new LatencyHistogram();
+
+    /**
+     * Add the current values of the specified metrics to this snapshot.
+     * @param metrics The metrics, their histograms must be {@link LatencyHistogram}s
+     */
+    void add(RecordingMetrics metrics) {
+        addCounters(metrics);
+        queueDepth += metrics.getQueueDepth();
+        stagingMemory += metrics.getStagingMemory();
+    }
+
+    /**
+     * Add the current values of the specified metrics except for the queue depth and staging memory to this
+     * snapshot.
+     * @param metrics The metrics, their histograms must be {@link LatencyHistogram}s
+     */
+    void addCounters(RecordingMetrics metrics) {
+        serverPackets += metrics.getPackets(true);
+        clientPackets += metrics.getPackets(false);
+        serverBytes += metrics.getBytes(true);
+        clientBytes += metrics.getBytes(false);
+        uncompressedBytes += metrics.getUncompressedBytes();
+        compressedBytes += metrics.getCompressedBytes();
+        droppedPackets += metrics.getDroppedPackets();
+        filteredPackets += metrics.getFilteredPackets();
+        writeTime.add(metrics.getWriteTime());
+        lockWaitTime.add(metrics.getLockWaitTime());
+        flushTime.add(metrics.getFlushTime());
+    }
+
+    @Override
+    public long getPackets(boolean fromServer) {
+        return fromServer ? serverPackets : clientPackets;
+    }
+
+    @Override
+    public long getBytes(boolean fromServer) {
+        return fromServer ? serverBytes : clientBytes;
+    }
+
+    @Override
+    public long getUncompressedBytes() {
+        return uncompressedBytes;
+    }
+
+    @Override
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    @Override
+    public long getDroppedPackets() {
+        return droppedPackets;
+    }
+
+    @Override
+    public long getFilteredPackets() {
+        return filteredPackets;
+    }
+
+    @Override
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    @Override
+    public long getStagingMemory() {
+        return stagingMemory;
+    }
+
+    @Override
+    public LatencyHistogram getWriteTime() {
+        return writeTime;
+    }
+
+    @Override
+    public LatencyHistogram getLockWaitTime() {
+        return lockWaitTime;
+    }
+
+    @Override
+    public LatencyHistogram getFlushTime() {
+        return flushTime;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+
+/**
+ * Handles packets read by a {@link ReplayReader}.
+ */
+public interface PacketHandler {
+
+    /**
+     * Handle the specified packet.
+     * The packet data is only valid during this call, its buffer is reused for the following packets.
+     * @param time Time of the packet in milliseconds since the start of the recording
+     * @param fromServer Whether the packet is client or server bound
+     * @param data The packet data (packet id and payload)
+     * @throws IOException if an I/O error occurred
+     */
+    void handle(long time, boolean fromServer, ByteBuf data) throws IOException;
+
+}
@@ -0,0 +1,215 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Preconditions;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Keeps the packets of a connection in memory so they can be written to outputs added later.<br>
+ * <br>
+ * The packets are stored framed exactly as in raw recordings in two direct (off-heap) buffers of fixed size:
+ * The first packets of the connection (the login phase, joining the world and the initial chunks) are kept until
+ * the login buffer is full, all following packets are kept in a ring buffer which drops the oldest packets once
+ * it is full. This is best effort and doesn't guarantee a playable replay: anything sent in between the two and
+ * dropped from the ring buffer (e.g. chunks loaded in the meantime) is missing. Recorders which also track the
+ * {@link ViewerState} seed outputs with its packets instead once the player has joined the world.
+ */
+public class PacketHistory {
+
+    private final ByteBuf login;
+    private final ByteBuf ring;
+
+    /**
+     * Metrics the memory of the buffers is accounted to or {@code null}.
+     */
+    private final RecorderMetrics metrics;
+
+    /**
+     * Whether a packet did not fit into the {@link #login} buffer anymore and all packets go to the ring buffer.
+     */
+    private boolean loginComplete;
+
+    /**
+     * Index in the {@link #ring} of the first byte of the oldest packet.
+     */
+    private int head;
+
+    /**
+     * Number of bytes in the {@link #ring}.
+     */
+    private int size;
+
+    /**
+     * Buffer for the frame header of the packet being added and a wrapper around it.
+     */
+    private final byte[] header = new byte[15];
+    private final ByteBuf headerBuf = Unpooled.wrappedBuffer(header);
+
+    /**
+     * Create a new history. Its buffers are allocated from the {@link RecordingMemory}.
+     * @param allocator The allocator of the connection
+     * @param metrics Metrics of the recorder the memory is accounted to or {@code null}
+     * @param loginCapacity Size of the buffer for the first packets in bytes
+     * @param capacity Size of the ring buffer for the most recent packets in bytes
+     * @throws IllegalStateException if the recording memory limit has been reached
+     */
+    public PacketHistory(ByteBufAllocator allocator, RecorderMetrics metrics, int loginCapacity, int capacity)
+            throws IllegalStateException {
+        Preconditions.checkArgument(loginCapacity >= 0, "Login capacity must not be negative.");
+        Preconditions.checkArgument(capacity > 0, "Capacity must be positive.");
+        this.metrics = metrics;
+        RecordingMemory memory = RecordingMemory.getInstance();
+        this.login = memory.allocate(allocator, loginCapacity, metrics);
+        Preconditions.checkState(login != null, "Recording memory limit reached.");
+        this.ring = memory.allocate(allocator, capacity, metrics);
+        if (ring == null) {
+            memory.release(login, metrics);
+            throw new IllegalStateException("Recording memory limit reached.");
+        }
+    }
+
+    /**
+     * Return the number of bytes of all packets in this history.
+     * @return The number of bytes
+     */
+    public int getSize() {
+        return login.readableBytes() + size;
+    }
+
+    /**
+     * Return the number of bytes of direct memory used by this history.
+     * @return The number of bytes
+     */
+    public int getCapacity() {
+        return login.capacity() + ring.capacity();
+    }
+
+    /**
+     * Add the specified packet. Packets larger than the ring buffer are not kept.
+     * The reader index of the packet data is not modified.
+     * @param time Time of the packet in milliseconds since the start of the recording
+     * @param fromServer Whether the packet is client or server bound
+     * @param data The packet data (packet id and payload)
+     */
+    public void add(long time, boolean fromServer, ByteBuf data) {
+        int length = data.readableBytes();
+        int headerLength = AbstractRecorder.writeVar(header, 0, time << 1 | (fromServer ? 0 : 1));
+        headerLength = AbstractRecorder.writeVar(header, headerLength, length);
+        int frameLength = headerLength + length;
+
+        if (!loginComplete) {
+            if (login.writableBytes() >= frameLength) {
+                login.writeBytes(header, 0, headerLength);
+                login.writeBytes(data, data.readerIndex(), length);
+                return;
+            }
+            loginComplete = true;
+        }
+
+        if (frameLength > ring.capacity()) {
+            return;
+        }
+        while (size + frameLength > ring.capacity()) {
+            dropOldest();
+        }
+        int tail = (head + size) % ring.capacity();
+        tail = setBytes(tail, headerBuf, 0, headerLength);
+        setBytes(tail, data, data.readerIndex(), length);
+        size += frameLength;
+    }
+
+    /**
+     * Write all packets in this history to the specified stream, framed as in raw recordings.
+     * @param out The output stream
+     * @throws IOException if an I/O error occurred
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        login.getBytes(0, out, login.readableBytes());
+        int first = Math.min(size, ring.capacity() - head);
+        ring.getBytes(head, out, first);
+        ring.getBytes(0, out, size - first);
+    }
+
+    /**
+     * Pass all packets in this history to the specified handler.
+     * @param handler The handler
+     * @throws IOException if an I/O error occurred
+     */
+    public void forEach(PacketHandler handler) throws IOException {
+        int first = Math.min(size, ring.capacity() - head);
+        ByteBuf packets = Unpooled.wrappedBuffer(login.slice(),
+                ring.slice(head, first), ring.slice(0, size - first));
+        new ReplayReader(new ByteBufInputStream(packets)).readAll(handler);
+    }
+
+    /**
+     * Release the buffers of this history. It must not be used afterwards.
+     */
+    public void release() {
+        RecordingMemory.getInstance().release(login, metrics);
+        RecordingMemory.getInstance().release(ring, metrics);
+    }
+
+    /**
+     * Copy the specified bytes into the ring buffer, wrapping around at its end.
+     * @param index Index in the ring buffer
+     * @param src The source buffer
+     * @param srcIndex Index of the first byte in the source buffer
+     * @param length Number of bytes
+     * @return Index in the ring buffer after the last byte
+     */
+    private int setBytes(int index, ByteBuf src, int srcIndex, int length) {
+        int first = Math.min(length, ring.capacity() - index);
+        ring.setBytes(index, src, srcIndex, first);
+        ring.setBytes(0, src, srcIndex + first, length - first);
+        return (index + length) % ring.capacity();
+    }
+
+    /**
+     * Remove the oldest packet from the ring buffer.
+     */
+    private void dropOldest() {
+        int capacity = ring.capacity();
+        int index = head;
+        while ((ring.getByte(index) & 0x80) != 0) {
+            index = (index + 1) % capacity; // Time and direction
+        }
+        index = (index + 1) % capacity;
+        int length = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = ring.getByte(index);
+            length |= (b & 0x7f) << shift;
+            shift += 7;
+            index = (index + 1) % capacity;
+        } while ((b & 0x80) != 0);
+        int frameLength = (index - head + capacity) % capacity + length;
+        head = (head + frameLength) % capacity;
+        size -= frameLength;
+    }
+}
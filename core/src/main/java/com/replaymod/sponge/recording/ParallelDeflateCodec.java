@@ -0,0 +1,250 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses data in blocks which are deflated in parallel.<br>
+ * <br>
+ * Like pigz, each block is compressed independently using the last 32KiB of the preceding data as preset dictionary
+ * and is terminated by a sync flush. Concatenating the compressed blocks results in a single deflate stream
+ * which only compresses marginally worse than one produced by a single {@link Deflater}.
+ */
+public class ParallelDeflateCodec implements CompressionCodec {
+
+    /**
+     * Size of the deflate window and therefore the maximum useful dictionary size.
+     */
+    private static final int WINDOW_SIZE = 32 * 1024;
+
+    public static final int DEFAULT_BLOCK_SIZE = 128 * 1024;
+
+    /**
+     * Threads compressing the blocks of all parallel deflate streams.
+     */
+    private static final ExecutorService COMPRESSORS = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(),
+            new ThreadFactoryBuilder().setNameFormat("SpongeRecording Compressor #%d").setDaemon(true).build());
+
+    private final int level;
+    private final int strategy;
+    private final int threads;
+    private final int blockSize;
+
+    /**
+     * Create a new parallel deflate codec.
+     * @param level Compression level, see {@link Deflater#setLevel(int)}
+     * @param strategy Compression strategy, see {@link Deflater#setStrategy(int)}
+     * @param threads Maximum number of blocks of one stream compressed at the same time
+     * @param blockSize Size of each block in bytes
+     */
+    public ParallelDeflateCodec(int level, int strategy, int threads, int blockSize) {
+        this.level = level;
+        this.strategy = strategy;
+        this.threads = threads;
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public OutputStream compress(OutputStream out) {
+        return new ParallelDeflateOutputStream(out);
+    }
+
+    @Override
+    public String toString() {
+        return "parallel-deflate(level=" + level + ", strategy=" + strategy
+                + ", threads=" + threads + ", blockSize=" + blockSize + ")";
+    }
+
+    private class ParallelDeflateOutputStream extends OutputStream implements FullFlushable {
+        private final OutputStream out;
+
+        /**
+         * Compressed blocks in the order they have to be written.
+         */
+        private final Queue<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+
+        /**
+         * The last (up to) 32KiB of the data submitted so far.
+         */
+        private final byte[] window = new byte[WINDOW_SIZE];
+        private int windowSize;
+
+        private final byte[] singleByte = new byte[1];
+        private byte[] block = new byte[blockSize];
+        private int blockLength;
+        private boolean closed;
+
+        public ParallelDeflateOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            singleByte[0] = (byte) b;
+            write(singleByte, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                int count = Math.min(len, block.length - blockLength);
+                System.arraycopy(b, off, block, blockLength, count);
+                blockLength += count;
+                off += count;
+                len -= count;
+                if (blockLength == block.length) {
+                    submit(false);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (blockLength > 0) {
+                submit(false);
+            }
+            writeCompleted(0);
+        }
+
+        @Override
+        public void fullFlush() throws IOException {
+            flush();
+            // Blocks compressed without a dictionary don't refer to any preceding data
+            windowSize = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            submit(true);
+            writeCompleted(0);
+        }
+
+        /**
+         * Submit the current block for compression and start a new one.
+         * @param last Whether this is the last block of the stream
+         * @throws IOException if an I/O error occurred
+         */
+        private void submit(boolean last) throws IOException {
+            final byte[] data = block;
+            final int length = blockLength;
+            final byte[] dictionary = Arrays.copyOf(window, windowSize);
+            final boolean finish = last;
+            pending.add(COMPRESSORS.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return compressBlock(data, length, dictionary, finish);
+                }
+            }));
+
+            // Update the window with the data of this block
+            if (length >= WINDOW_SIZE) {
+                System.arraycopy(data, length - WINDOW_SIZE, window, 0, WINDOW_SIZE);
+                windowSize = WINDOW_SIZE;
+            } else {
+                int keep = Math.min(windowSize, WINDOW_SIZE - length);
+                System.arraycopy(window, windowSize - keep, window, 0, keep);
+                System.arraycopy(data, 0, window, keep, length);
+                windowSize = keep + length;
+            }
+
+            block = new byte[blockSize];
+            blockLength = 0;
+            writeCompleted(threads);
+        }
+
+        /**
+         * Write compressed blocks to the output stream in order.
+         * Blocks which are already done are always written, beyond that waits until at most the specified number
+         * of blocks is still pending.
+         * @param maxPending Maximum number of pending blocks
+         * @throws IOException if an I/O error occurred
+         */
+        private void writeCompleted(int maxPending) throws IOException {
+            Future<byte[]> next;
+            while ((next = pending.peek()) != null && (next.isDone() || pending.size() > maxPending)) {
+                try {
+                    out.write(next.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for compression.");
+                } catch (ExecutionException e) {
+                    throw new IOException("Compression failed.", e.getCause());
+                }
+                pending.remove();
+            }
+        }
+    }
+
+    /**
+     * Compress a single block.
+     * @param data The block data
+     * @param length Length of the block data
+     * @param dictionary The data preceding this block, used as preset dictionary
+     * @param last Whether this is the last block and the deflate stream should be terminated
+     * @return The compressed block
+     */
+    private byte[] compressBlock(byte[] data, int length, byte[] dictionary, boolean last) {
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setStrategy(strategy);
+            if (dictionary.length > 0) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(data, 0, length);
+            if (last) {
+                deflater.finish();
+            }
+            byte[] buf = new byte[length + (length >> 3) + 64];
+            int written = 0;
+            while (true) {
+                if (written == buf.length) {
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                written += deflater.deflate(buf, written, buf.length - written,
+                        last ? Deflater.NO_FLUSH : Deflater.SYNC_FLUSH);
+                if (last ? deflater.finished() : written < buf.length) {
+                    break;
+                }
+            }
+            return Arrays.copyOf(buf, written);
+        } finally {
+            deflater.end();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live metrics of a single recorder.
+ * Updated by the recorder while writing, can be read from any thread.
+ */
+public class RecorderMetrics implements RecordingMetrics {
+
+    /**
+     * On average, one in this many packets and flushes is timed for the latency histograms.
+     * Timing a packet costs several {@link System#nanoTime()} calls on the networking threads.
+     * 1 times every packet, 0 disables the latency histograms.
+     */
+    private static final int LATENCY_SAMPLING = Integer.getInteger("spongerecording.metrics.sampling", 64);
+
+    private final LongAdder serverPackets = new LongAdder();
+    private final LongAdder clientPackets = new LongAdder();
+    private final LongAdder serverBytes = new LongAdder();
+    private final LongAdder clientBytes = new LongAdder();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder droppedPackets = new LongAdder();
+    private final LongAdder filteredPackets = new LongAdder();
+    private final LongAdder stagingMemory = new LongAdder();
+    private final LatencyHistogram writeTime = new LatencyHistogram();
+    private final LatencyHistogram lockWaitTime = new LatencyHistogram();
+    private final LatencyHistogram flushTime = new LatencyHistogram();
+
+    /**
+     * The asynchronous writer of the recorder or {@code null} if packets are written synchronously.
+     */
+    private volatile AsyncPacketWriter asyncWriter;
+
+    /**
+     * Return whether the current packet or flush should be timed for the latency histograms.
+     * Uses a thread local random, so the networking threads don't contend on a shared counter.
+     * @return {@code true} if the caller should record its latency
+     */
+    boolean sampleLatency() {
+        return LATENCY_SAMPLING > 0 && (LATENCY_SAMPLING == 1 || ThreadLocalRandom.current().nextInt(LATENCY_SAMPLING) == 0);
+    }
+
+    void recordPacket(boolean fromServer, int length) {
+        if (fromServer) {
+            serverPackets.increment();
+            serverBytes.add(length);
+        } else {
+            clientPackets.increment();
+            clientBytes.add(length);
+        }
+    }
+
+    void recordUncompressed(int length) {
+        uncompressedBytes.add(length);
+    }
+
+    void recordCompressed(int length) {
+        compressedBytes.add(length);
+    }
+
+    void recordDropped() {
+        droppedPackets.increment();
+    }
+
+    void recordFiltered() {
+        filteredPackets.increment();
+    }
+
+    void recordStagingMemory(long bytes) {
+        stagingMemory.add(bytes);
+    }
+
+    void setAsyncWriter(AsyncPacketWriter asyncWriter) {
+        this.asyncWriter = asyncWriter;
+    }
+
+    @Override
+    public long getPackets(boolean fromServer) {
+        return (fromServer ? serverPackets : clientPackets).sum();
+    }
+
+    @Override
+    public long getBytes(boolean fromServer) {
+        return (fromServer ? serverBytes : clientBytes).sum();
+    }
+
+    @Override
+    public long getUncompressedBytes() {
+        return uncompressedBytes.sum();
+    }
+
+    @Override
+    public long getCompressedBytes() {
+        return compressedBytes.sum();
+    }
+
+    @Override
+    public long getDroppedPackets() {
+        return droppedPackets.sum();
+    }
+
+    @Override
+    public long getFilteredPackets() {
+        return filteredPackets.sum();
+    }
+
+    @Override
+    public int getQueueDepth() {
+        AsyncPacketWriter asyncWriter = this.asyncWriter;
+        return asyncWriter == null ? 0 : asyncWriter.getQueueDepth();
+    }
+
+    @Override
+    public long getStagingMemory() {
+        return stagingMemory.sum();
+    }
+
+    @Override
+    public LatencyHistogram getWriteTime() {
+        return writeTime;
+    }
+
+    @Override
+    public LatencyHistogram getLockWaitTime() {
+        return lockWaitTime;
+    }
+
+    @Override
+    public LatencyHistogram getFlushTime() {
+        return flushTime;
+    }
+}
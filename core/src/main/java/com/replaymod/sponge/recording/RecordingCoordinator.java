@@ -0,0 +1,131 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps track of all active recorders and owns the writer threads used for asynchronous writing.<br>
+ * <br>
+ * Recorders are assigned to writer threads by an affinity key, usually the event loop of their connection.
+ * All recorders with the same key share one writer thread so packets captured on one networking thread are
+ * always written by the same writer thread.<br>
+ * <br>
+ * The lock-free hand-off only applies to recorders with {@link AbstractRecorder#enableAsyncWriting asynchronous
+ * writing}. Synchronous recorders are still registered here but write each packet on the networking thread while
+ * holding their own monitor.
+ */
+public class RecordingCoordinator {
+
+    private static final RecordingCoordinator INSTANCE =
+            new RecordingCoordinator(Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * Return the coordinator shared by all recorders.
+     * @return The coordinator
+     */
+    public static RecordingCoordinator getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * All active recorders, see {@link AbstractRecorder#register()}.
+     */
+    private final Set<AbstractRecorder<?>> recorders =
+            Collections.newSetFromMap(new ConcurrentHashMap<AbstractRecorder<?>, Boolean>());
+
+    /**
+     * The writer threads, each one a single thread executor.
+     */
+    private final ExecutorService[] writers;
+
+    /**
+     * Writer thread assigned to each affinity key. Keys are weakly referenced so they can be garbage collected.
+     */
+    private final ConcurrentMap<Object, Executor> assignments = new MapMaker().weakKeys().makeMap();
+
+    /**
+     * Index of the writer thread the next new affinity key is assigned to.
+     */
+    private final AtomicInteger nextWriter = new AtomicInteger();
+
+    public RecordingCoordinator(int writerThreads) {
+        ThreadFactory threadFactory = new ThreadFactoryBuilder()
+                .setNameFormat("SpongeRecording Writer #%d").setDaemon(true).build();
+        writers = new ExecutorService[writerThreads];
+        for (int i = 0; i < writerThreads; i++) {
+            writers[i] = Executors.newSingleThreadExecutor(threadFactory);
+        }
+    }
+
+    /**
+     * Register the specified recorder as active.
+     * @param recorder The recorder
+     */
+    public void register(AbstractRecorder<?> recorder) {
+        recorders.add(recorder);
+    }
+
+    /**
+     * Unregister the specified recorder after its connection has been closed or its last output has been ended.
+     * @param recorder The recorder
+     */
+    public void unregister(AbstractRecorder<?> recorder) {
+        recorders.remove(recorder);
+    }
+
+    /**
+     * Return all active recorders.
+     * @return Unmodifiable view of all active recorders
+     */
+    public Collection<AbstractRecorder<?>> getRecorders() {
+        return Collections.unmodifiableSet(recorders);
+    }
+
+    /**
+     * Return the writer thread for the specified affinity key.
+     * The first time a key is seen, it is assigned to the writer threads in a round-robin fashion.
+     * @param affinity The affinity key
+     * @return Executor running tasks on the writer thread
+     */
+    public Executor getWriter(Object affinity) {
+        Executor writer = assignments.get(affinity);
+        if (writer == null) {
+            writer = writers[(nextWriter.getAndIncrement() & Integer.MAX_VALUE) % writers.length];
+            Executor previous = assignments.putIfAbsent(affinity, writer);
+            if (previous != null) {
+                writer = previous;
+            }
+        }
+        return writer;
+    }
+}
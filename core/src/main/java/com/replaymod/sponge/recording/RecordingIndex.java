@@ -0,0 +1,175 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Preconditions;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * Index of the sync points of a compressed recording entry.<br>
+ * <br>
+ * At each sync point the compressed data has been {@link FullFlushable fully flushed} right before a packet, so a
+ * new raw inflater can start decompressing at its compressed offset. All packets after a sync point were recorded
+ * at or after its time and all packets before it at or before its time. The start of the entry is always a sync
+ * point and is not part of the index.<br>
+ * <br>
+ * The index is stored as {@link #ENTRY_NAME} next to the recording: the {@link #VERSION}, the number of sync points
+ * and for each of them its time, uncompressed offset and compressed offset, all in big-endian order.
+ * As all sync points have the same size, the entry itself can be binary searched as well.
+ */
+public class RecordingIndex {
+
+    public static final String ENTRY_NAME = "recording.index";
+    public static final int VERSION = 1;
+
+    private long[] times = new long[16];
+    private long[] offsets = new long[16];
+    private long[] compressedOffsets = new long[16];
+    private int size;
+
+    /**
+     * Add a new sync point. If the last sync point has the same offset, it is replaced.
+     * @param time Time in milliseconds since the start of the recording
+     * @param offset Offset in the uncompressed data
+     * @param compressedOffset Offset in the compressed data
+     */
+    public void add(long time, long offset, long compressedOffset) {
+        if (size > 0) {
+            Preconditions.checkArgument(offset >= offsets[size - 1], "Offsets have to be increasing.");
+            if (offset == offsets[size - 1]) {
+                size--;
+            }
+        }
+        if (size == times.length) {
+            times = Arrays.copyOf(times, size * 2);
+            offsets = Arrays.copyOf(offsets, size * 2);
+            compressedOffsets = Arrays.copyOf(compressedOffsets, size * 2);
+        }
+        times[size] = time;
+        offsets[size] = offset;
+        compressedOffsets[size] = compressedOffset;
+        size++;
+    }
+
+    /**
+     * Return the number of sync points.
+     * @return The number of sync points
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Return the time of the specified sync point.
+     * @param i Index of the sync point
+     * @return Time in milliseconds since the start of the recording
+     */
+    public long getTime(int i) {
+        Preconditions.checkElementIndex(i, size);
+        return times[i];
+    }
+
+    /**
+     * Return the offset of the specified sync point in the uncompressed data.
+     * @param i Index of the sync point
+     * @return The uncompressed offset
+     */
+    public long getOffset(int i) {
+        Preconditions.checkElementIndex(i, size);
+        return offsets[i];
+    }
+
+    /**
+     * Return the offset of the specified sync point in the compressed data.
+     * @param i Index of the sync point
+     * @return The compressed offset
+     */
+    public long getCompressedOffset(int i) {
+        Preconditions.checkElementIndex(i, size);
+        return compressedOffsets[i];
+    }
+
+    /**
+     * Find the last sync point at or before the specified time.
+     * Reading from there is guaranteed to not skip any packet recorded at or after the time.
+     * @param time Time in milliseconds since the start of the recording
+     * @return Index of the sync point or {@code -1} if reading has to start at the beginning of the entry
+     */
+    public int find(long time) {
+        int low = 0;
+        int high = size - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (times[mid] <= time) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    /**
+     * Serialize this index as stored in the {@link #ENTRY_NAME index entry}.
+     * @return The serialized index
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8 + size * 24);
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(VERSION);
+            out.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                out.writeLong(times[i]);
+                out.writeLong(offsets[i]);
+                out.writeLong(compressedOffsets[i]);
+            }
+        } catch (IOException e) {
+            throw new AssertionError(e); // Can't happen with a ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Read an index from the contents of its {@link #ENTRY_NAME entry}.
+     * @param in The uncompressed contents of the entry
+     * @return The index
+     * @throws IOException if an I/O error occurred or the index has an unsupported version
+     */
+    public static RecordingIndex read(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        int version = dataIn.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported index version: " + version);
+        }
+        int count = dataIn.readInt();
+        RecordingIndex index = new RecordingIndex();
+        for (int i = 0; i < count; i++) {
+            index.add(dataIn.readLong(), dataIn.readLong(), dataIn.readLong());
+        }
+        return index;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Accounts the memory used by all recorders for staging packets and enforces a global limit.<br>
+ * <br>
+ * Staging buffers (the batch of each recorder and packet histories) are allocated from the allocator of the
+ * recorded connection, usually Netty's pooled allocator, so they don't cause garbage collections no matter how many
+ * connections are recorded. They are direct buffers, except for batches written to output streams, which require
+ * an array. Once the limit is reached, no more buffers are handed out and recorders fall back to
+ * writing packets without staging them.<br>
+ * The limit can be set using {@code -Dspongerecording.memory.limit=<bytes>}.
+ */
+public class RecordingMemory {
+
+    public static final long DEFAULT_LIMIT = 256 * 1024 * 1024;
+
+    private static final RecordingMemory INSTANCE =
+            new RecordingMemory(Long.getLong("spongerecording.memory.limit", DEFAULT_LIMIT));
+
+    /**
+     * Return the memory accounting shared by all recorders.
+     * @return The memory accounting
+     */
+    public static RecordingMemory getInstance() {
+        return INSTANCE;
+    }
+
+    private final long limit;
+
+    /**
+     * Number of bytes currently allocated.
+     */
+    private final AtomicLong used = new AtomicLong();
+
+    public RecordingMemory(long limit) {
+        this.limit = limit;
+    }
+
+    /**
+     * Return the maximum number of bytes allocated at the same time.
+     * @return The limit in bytes
+     */
+    public long getLimit() {
+        return limit;
+    }
+
+    /**
+     * Return the number of bytes currently allocated by all recorders.
+     * @return Number of bytes
+     */
+    public long getUsed() {
+        return used.get();
+    }
+
+    /**
+     * Allocate a direct buffer of fixed capacity unless that would exceed the limit.
+     * @param allocator The allocator of the connection
+     * @param capacity Capacity of the buffer in bytes
+     * @param metrics Metrics of the recorder the memory is accounted to or {@code null}
+     * @return The buffer or {@code null} if the limit has been reached
+     */
+    public ByteBuf allocate(ByteBufAllocator allocator, int capacity, RecorderMetrics metrics) {
+        return allocate(allocator, capacity, true, metrics);
+    }
+
+    /**
+     * Allocate a buffer of fixed capacity unless that would exceed the limit.
+     * @param allocator The allocator of the connection
+     * @param capacity Capacity of the buffer in bytes
+     * @param direct Whether to allocate a direct buffer or a heap buffer
+     * @param metrics Metrics of the recorder the memory is accounted to or {@code null}
+     * @return The buffer or {@code null} if the limit has been reached
+     */
+    public ByteBuf allocate(ByteBufAllocator allocator, int capacity, boolean direct, RecorderMetrics metrics) {
+        long current;
+        do {
+            current = used.get();
+            if (current + capacity > limit) {
+                return null;
+            }
+        } while (!used.compareAndSet(current, current + capacity));
+        ByteBuf buf;
+        try {
+            buf = direct ? allocator.directBuffer(capacity, capacity) : allocator.heapBuffer(capacity, capacity);
+        } catch (RuntimeException | Error e) {
+            used.addAndGet(-capacity);
+            throw e;
+        }
+        if (metrics != null) {
+            metrics.recordStagingMemory(capacity);
+        }
+        return buf;
+    }
+
+    /**
+     * Release a buffer returned by {@link #allocate(ByteBufAllocator, int, boolean, RecorderMetrics)}.
+     * @param buf The buffer
+     * @param metrics The metrics passed when allocating the buffer
+     */
+    public void release(ByteBuf buf, RecorderMetrics metrics) {
+        int capacity = buf.maxCapacity();
+        buf.release();
+        used.addAndGet(-capacity);
+        if (metrics != null) {
+            metrics.recordStagingMemory(-capacity);
+        }
+    }
+}
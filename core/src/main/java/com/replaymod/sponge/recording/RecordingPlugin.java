@@ -27,7 +27,9 @@ import org.spongepowered.api.event.game.state.GamePreInitializationEvent;
 import org.spongepowered.api.plugin.Plugin;
 import org.spongepowered.api.plugin.PluginContainer;
 
+import java.io.File;
 import java.util.ServiceLoader;
+import java.util.concurrent.TimeUnit;
 
 @Plugin(
         id = "SpongeRecording",
@@ -58,6 +60,14 @@ public class RecordingPlugin {
             logger.info("SpongeRecording loaded. Found active platform: " + implementation);
             this.implementation = implementation;
         }
+
+        // Periodic metrics reports, e.g. -Dspongerecording.metrics.interval=60 -Dspongerecording.metrics.file=metrics.json
+        long metricsInterval = Long.getLong("spongerecording.metrics.interval", 0);
+        if (metricsInterval > 0) {
+            String metricsFile = System.getProperty("spongerecording.metrics.file");
+            MetricsRegistry.getInstance().startReporting(metricsInterval, TimeUnit.SECONDS, logger,
+                    metricsFile == null ? null : new File(metricsFile));
+        }
     }
 
     @Listener
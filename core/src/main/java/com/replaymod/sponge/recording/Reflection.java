@@ -19,31 +19,93 @@
  */
 package com.replaymod.sponge.recording;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
+/**
+ * Reflective access to fields.<br>
+ * Fields are only looked up once per class and name or type, afterwards a cached getter is used.
+ */
 public class Reflection {
 
+    /**
+     * Type of all cached getters: takes the instance (ignored for static fields) and returns the value.
+     */
+    private static final MethodType GETTER_TYPE = MethodType.methodType(Object.class, Object.class);
+
+    /**
+     * Getters of each class by field name.
+     */
+    private static final ClassValue<ConcurrentMap<String, MethodHandle>> gettersByName = new GetterCache();
+
+    /**
+     * Getters of each class by the name of the field type.
+     */
+    private static final ClassValue<ConcurrentMap<String, MethodHandle>> gettersByType = new GetterCache();
+
     public static Object getField(Class<?> cls, String name, Object instance) throws IllegalAccessException, NoSuchFieldException {
-        try {
-            Field field = cls.getDeclaredField(name);
-            field.setAccessible(true);
-            return field.get(instance);
-        } catch (NoSuchFieldException e) {
-            for (Field field : cls.getDeclaredFields()) {
-                System.out.println(field);
+        ConcurrentMap<String, MethodHandle> getters = gettersByName.get(cls);
+        MethodHandle getter = getters.get(name);
+        if (getter == null) {
+            try {
+                getter = cache(getters, name, cls.getDeclaredField(name));
+            } catch (NoSuchFieldException e) {
+                throw new NoSuchFieldException(name + " in " + cls + ", declared fields: "
+                        + Arrays.toString(cls.getDeclaredFields()));
             }
-            throw e;
         }
+        return get(getter, instance);
     }
 
     public static Object getFieldValueByType(Class<?> cls, String type, Object instance) throws NoSuchFieldException, IllegalAccessException {
-        for (Field field : cls.getDeclaredFields()) {
-            if (type.equals(field.getType().getName())) {
-                field.setAccessible(true);
-                return field.get(instance);
+        return get(getGetterByType(cls, type), instance);
+    }
+
+    /**
+     * Return a getter for the first field of the specified type declared by the specified class.
+     * The getter is of type {@code (Object)Object} and can be called using {@link MethodHandle#invokeExact(Object...)}.
+     * @param cls The class declaring the field
+     * @param type Name of the type of the field
+     * @return The getter
+     * @throws NoSuchFieldException if there is no such field
+     * @throws IllegalAccessException if the field cannot be made accessible
+     */
+    public static MethodHandle getGetterByType(Class<?> cls, String type) throws NoSuchFieldException, IllegalAccessException {
+        ConcurrentMap<String, MethodHandle> getters = gettersByType.get(cls);
+        MethodHandle getter = getters.get(type);
+        if (getter == null) {
+            for (Field field : cls.getDeclaredFields()) {
+                if (type.equals(field.getType().getName())) {
+                    return cache(getters, type, field);
+                }
             }
+            throw new NoSuchFieldException("By type " + type + " in " + cls);
         }
-        throw new NoSuchFieldException("By type " + type + " in " + cls);
+        return getter;
+    }
+
+    /**
+     * Return a getter for the first field of the specified type declared by the specified class.
+     * The getter is of type {@code (Object)Object} and can be called using {@link MethodHandle#invokeExact(Object...)}.
+     * @param cls The class declaring the field
+     * @param type Type of the field
+     * @return The getter
+     * @throws NoSuchFieldException if there is no such field
+     * @throws IllegalAccessException if the field cannot be made accessible
+     */
+    public static MethodHandle getGetterByType(Class<?> cls, Class<?> type) throws NoSuchFieldException, IllegalAccessException {
+        ConcurrentMap<String, MethodHandle> getters = gettersByType.get(cls);
+        MethodHandle getter = getters.get(type.getName());
+        if (getter == null) {
+            getter = cache(getters, type.getName(), getFieldByType(cls, type));
+        }
+        return getter;
     }
 
     public static Field getFieldByType(Class<?> cls, Class<?> type) throws NoSuchFieldException {
@@ -55,4 +117,47 @@ public class Reflection {
         throw new NoSuchFieldException("By type " + type + " in " + cls);
     }
 
+    /**
+     * Create a getter for the specified field and add it to the cache.
+     * @param getters The cache
+     * @param key Key of the getter in the cache
+     * @param field The field
+     * @return The getter
+     * @throws IllegalAccessException if the field cannot be made accessible
+     */
+    private static MethodHandle cache(ConcurrentMap<String, MethodHandle> getters, String key, Field field)
+            throws IllegalAccessException {
+        field.setAccessible(true);
+        MethodHandle getter = MethodHandles.lookup().unreflectGetter(field);
+        if (Modifier.isStatic(field.getModifiers())) {
+            getter = MethodHandles.dropArguments(getter, 0, Object.class);
+        }
+        getter = getter.asType(GETTER_TYPE);
+        MethodHandle previous = getters.putIfAbsent(key, getter);
+        return previous == null ? getter : previous;
+    }
+
+    /**
+     * Call the specified getter.
+     * @param getter The getter of type {@code (Object)Object}
+     * @param instance The instance
+     * @return The value of the field
+     */
+    public static Object get(MethodHandle getter, Object instance) {
+        try {
+            return (Object) getter.invokeExact(instance);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable t) {
+            // Getters do not throw checked exceptions
+            throw new AssertionError(t);
+        }
+    }
+
+    private static class GetterCache extends ClassValue<ConcurrentMap<String, MethodHandle>> {
+        @Override
+        protected ConcurrentMap<String, MethodHandle> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<String, MethodHandle>();
+        }
+    }
 }
@@ -0,0 +1,593 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Supplier;
+import com.google.common.io.ByteStreams;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Reads the packets of a recording one at a time.<br>
+ * <br>
+ * Packets are read from an internal buffer which is reused for all of them, so reading doesn't allocate any memory
+ * per packet. A recording which ends in the middle of a packet (e.g. because the server crashed) ends before that
+ * packet, see {@link #isTruncated()}.<br>
+ * Both file format version 1 and the {@link CompactFrameInputStream compact version 2} are supported, the version
+ * is detected by the magic bytes at the start of version 2 recordings.<br>
+ * Replay files which contain a {@link RecordingIndex} can additionally be read in parallel, see
+ * {@link #readParallel(File, ForkJoinPool, Supplier)}, replay files which contain checkpoints can be read starting
+ * at any of them, see {@link #openAt(File, long)}.
+ */
+public class ReplayReader implements Closeable {
+
+    private static final int ZIP_LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int ZIP_LOCAL_HEADER_LENGTH = 30;
+    private static final String RECORDING_ENTRY = "recording.tmcpr";
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final InputStream in;
+
+    /**
+     * Additional resource closed together with the input stream or {@code null} if none.
+     */
+    private final Closeable resource;
+
+    private byte[] buf = new byte[DEFAULT_BUFFER_SIZE];
+
+    /**
+     * Wraps the {@link #buf} to pass the packet data without copying it.
+     */
+    private ByteBuf wrapper = Unpooled.wrappedBuffer(buf);
+
+    /**
+     * Index in the {@link #buf} of the first byte of the current packet.
+     */
+    private int pos;
+
+    /**
+     * Index in the {@link #buf} after the last byte read from the input stream.
+     */
+    private int limit;
+
+    /**
+     * Length of the header of the current packet.
+     */
+    private int headerLength;
+
+    /**
+     * Length of the current packet including its header.
+     */
+    private int frameLength;
+
+    /**
+     * File format version of the recording or {@code 0} if it hasn't been detected yet.
+     */
+    private int fileFormatVersion;
+
+    private long time;
+    private boolean fromServer;
+    private boolean truncated;
+
+    /**
+     * Create a new reader for the raw packet data of the specified stream.
+     * @param in The raw packet data
+     */
+    public ReplayReader(InputStream in) {
+        this(in, null);
+    }
+
+    private ReplayReader(InputStream in, Closeable resource) {
+        this(in, resource, 0);
+    }
+
+    private ReplayReader(InputStream in, Closeable resource, int fileFormatVersion) {
+        this.in = in;
+        this.resource = resource;
+        this.fileFormatVersion = fileFormatVersion;
+    }
+
+    /**
+     * Open the specified recording. It can either be a replay file (.mcpr), a raw recording (.tmcpr) or a
+     * directory written by a segmented output.
+     * Deduplicated recordings have to be read using a {@link DeduplicatedInputStream}.
+     * @param file The recording
+     * @return The reader
+     * @throws IOException if an I/O error occurred or the replay file doesn't contain a recording
+     */
+    public static ReplayReader open(File file) throws IOException {
+        if (file.isDirectory()) {
+            return new ReplayReader(new SegmentedInputStream(file));
+        }
+        if (!isZipFile(file)) {
+            return new ReplayReader(new FileInputStream(file));
+        }
+        ZipFile zip = new ZipFile(file);
+        try {
+            ZipEntry entry = zip.getEntry(RECORDING_ENTRY);
+            if (entry == null) {
+                throw new IOException("No recording in " + file);
+            }
+            return new ReplayReader(zip.getInputStream(entry), zip);
+        } catch (IOException e) {
+            zip.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Open the specified replay file at the last {@link CheckpointStore checkpoint} at or before the specified time.
+     * The reader first returns the packets of the checkpoint, which restore the state of the world at its time,
+     * followed by all packets recorded since. If there is no such checkpoint, the whole recording is read as by
+     * {@link #open(File)}.
+     * @param file The replay file
+     * @param time Time in milliseconds since the start of the recording
+     * @return The reader
+     * @throws IOException if an I/O error occurred or the replay file doesn't contain a recording
+     */
+    public static ReplayReader openAt(File file, long time) throws IOException {
+        if (file.isDirectory() || !isZipFile(file)) {
+            return open(file);
+        }
+        final ZipFile zip = new ZipFile(file);
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final Inflater inflater = new Inflater(true);
+        Closeable resources = new Closeable() {
+            @Override
+            public void close() throws IOException {
+                inflater.end();
+                try {
+                    raf.close();
+                } finally {
+                    zip.close();
+                }
+            }
+        };
+        try {
+            ZipEntry entry = zip.getEntry(RECORDING_ENTRY);
+            ZipEntry indexEntry = zip.getEntry(RecordingIndex.ENTRY_NAME);
+            long dataStart = getDataStart(raf);
+            if (entry != null && indexEntry != null && dataStart != -1) {
+                RecordingIndex index;
+                InputStream indexIn = zip.getInputStream(indexEntry);
+                try {
+                    index = RecordingIndex.read(indexIn);
+                } finally {
+                    indexIn.close();
+                }
+                // Checkpoints are only taken at sync points
+                for (int i = index.find(time); i >= 0; i--) {
+                    ZipEntry checkpoint = zip.getEntry(CheckpointStore.getEntryName(index.getTime(i)));
+                    if (checkpoint != null) {
+                        InputStream recording = new InflaterInputStream(new ChannelInputStream(raf.getChannel(),
+                                dataStart + index.getCompressedOffset(i), dataStart + entry.getCompressedSize()),
+                                inflater, DEFAULT_BUFFER_SIZE);
+                        return new ReplayReader(new SequenceInputStream(zip.getInputStream(checkpoint), recording),
+                                resources);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            resources.close();
+            throw e;
+        }
+        resources.close();
+        return open(file);
+    }
+
+    /**
+     * Read the next packet.
+     * @return {@code true} if there was another packet, {@code false} if the end of the recording was reached
+     * @throws IOException if an I/O error occurred
+     */
+    public boolean next() throws IOException {
+        pos += frameLength;
+        frameLength = 0;
+        if (fileFormatVersion == 0) {
+            detectFileFormatVersion();
+        }
+        if (!ensure(1)) {
+            return false;
+        }
+        headerLength = 0;
+        try {
+            long timeAndDirection = readVar();
+            int length = (int) readVar();
+            if (!ensure(headerLength + length)) {
+                throw new EOFException();
+            }
+            if (fileFormatVersion == AbstractRecorder.COMPACT_FILE_FORMAT_VERSION) {
+                time = CompactFrameInputStream.decodeTime(timeAndDirection, time);
+            } else {
+                time = timeAndDirection >>> 1;
+            }
+            fromServer = (timeAndDirection & 1) == 0;
+            frameLength = headerLength + length;
+            return true;
+        } catch (EOFException e) {
+            truncated = true;
+            pos = limit;
+            return false;
+        }
+    }
+
+    /**
+     * Return the time of the current packet.
+     * @return Time in milliseconds since the start of the recording
+     */
+    public long getTime() {
+        return time;
+    }
+
+    /**
+     * Whether the current packet is client bound.
+     * @return {@code true} if it was sent by the server, {@code false} if it was sent by the client
+     */
+    public boolean isFromServer() {
+        return fromServer;
+    }
+
+    /**
+     * Return the data (packet id and payload) of the current packet.
+     * The returned buffer is only valid until the next packet is read.
+     * @return The packet data
+     */
+    public ByteBuf getData() {
+        return wrapper.setIndex(pos + headerLength, pos + frameLength);
+    }
+
+    /**
+     * Whether the recording ended in the middle of a packet.
+     * @return {@code true} if the last packet was incomplete and has been skipped, {@code false} otherwise
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Pass all remaining packets to the specified handler.
+     * @param handler The handler
+     * @throws IOException if an I/O error occurred
+     */
+    public void readAll(PacketHandler handler) throws IOException {
+        while (next()) {
+            handler.handle(time, fromServer, getData());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            in.close();
+        } finally {
+            if (resource != null) {
+                resource.close();
+            }
+        }
+    }
+
+    /**
+     * Detect the file format version by the magic bytes at the start of the recording and skip them.
+     * @throws IOException if an I/O error occurred
+     */
+    private void detectFileFormatVersion() throws IOException {
+        byte[] magic = CompactFrameInputStream.MAGIC;
+        fileFormatVersion = AbstractRecorder.FILE_FORMAT_VERSION;
+        if (!ensure(magic.length)) {
+            return;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if (buf[pos + i] != magic[i]) {
+                return;
+            }
+        }
+        fileFormatVersion = AbstractRecorder.COMPACT_FILE_FORMAT_VERSION;
+        pos += magic.length;
+    }
+
+    /**
+     * Read a variable-length integer following the header bytes read so far.
+     * @return The value
+     * @throws IOException if an I/O error occurred or the end of the stream was reached
+     */
+    private long readVar() throws IOException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (!ensure(headerLength + 1)) {
+                throw new EOFException();
+            }
+            b = buf[pos + headerLength++];
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Make sure at least the specified number of bytes starting at {@link #pos} are in the buffer.
+     * Moves the data to the start of the buffer or grows it if required.
+     * @param count Number of bytes
+     * @return {@code true} if the bytes are available, {@code false} if the end of the stream was reached first
+     * @throws IOException if an I/O error occurred
+     */
+    private boolean ensure(int count) throws IOException {
+        if (limit - pos >= count) {
+            return true;
+        }
+        if (count > buf.length) {
+            byte[] newBuf = new byte[Math.max(count, buf.length * 2)];
+            System.arraycopy(buf, pos, newBuf, 0, limit - pos);
+            buf = newBuf;
+            wrapper = Unpooled.wrappedBuffer(buf);
+        } else if (pos + count > buf.length) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+        } else {
+            return fill(count);
+        }
+        limit -= pos;
+        pos = 0;
+        return fill(count);
+    }
+
+    private boolean fill(int count) throws IOException {
+        while (limit - pos < count) {
+            int read = in.read(buf, limit, buf.length - limit);
+            if (read == -1) {
+                return false;
+            }
+            limit += read;
+        }
+        return true;
+    }
+
+    /**
+     * Read the specified replay file in parallel.<br>
+     * <br>
+     * The recording is split into segments at the sync points of its {@link RecordingIndex index}. Each segment is
+     * decompressed and passed to a new handler on the specified pool. The handlers of different segments are called
+     * concurrently but each handler only receives the packets of its segment in order.
+     * Recordings without an index are read as a single segment.
+     * @param file The replay file
+     * @param pool The pool reading the segments
+     * @param handlers Supplier of a new handler for each segment
+     * @param <H> Type of the handlers
+     * @return The handlers of all segments in the order of the segments
+     * @throws IOException if an I/O error occurred
+     */
+    public static <H extends PacketHandler> List<H> readParallel(File file, ForkJoinPool pool, Supplier<H> handlers)
+            throws IOException {
+        List<H> results = new ArrayList<H>();
+        ZipFile zip = new ZipFile(file);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            ZipEntry entry = zip.getEntry(RECORDING_ENTRY);
+            ZipEntry indexEntry = zip.getEntry(RecordingIndex.ENTRY_NAME);
+            if (entry == null) {
+                throw new IOException("No recording in " + file);
+            }
+            long dataStart = getDataStart(raf);
+            if (indexEntry == null || dataStart == -1) {
+                // No sync points or not written by us, read the whole recording
+                ReplayReader reader = new ReplayReader(zip.getInputStream(entry));
+                H handler = handlers.get();
+                reader.readAll(handler);
+                results.add(handler);
+                return results;
+            }
+            RecordingIndex index;
+            InputStream indexIn = zip.getInputStream(indexEntry);
+            try {
+                index = RecordingIndex.read(indexIn);
+            } finally {
+                indexIn.close();
+            }
+
+            ReplayReader versionReader = new ReplayReader(zip.getInputStream(entry));
+            try {
+                versionReader.detectFileFormatVersion();
+            } finally {
+                versionReader.close();
+            }
+            int version = versionReader.fileFormatVersion;
+
+            FileChannel channel = raf.getChannel();
+            List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+            for (int i = -1; i < index.size(); i++) {
+                long start = i == -1 ? 0 : index.getCompressedOffset(i);
+                long end = i + 1 == index.size() ? entry.getCompressedSize() : index.getCompressedOffset(i + 1);
+                long length = i + 1 == index.size() ? Long.MAX_VALUE
+                        : index.getOffset(i + 1) - (i == -1 ? 0 : index.getOffset(i));
+                H handler = handlers.get();
+                results.add(handler);
+                // The first segment starts with the magic bytes, the version of the others is already known
+                tasks.add(pool.submit(new SegmentTask(channel, dataStart + start, dataStart + end, length,
+                        i == -1 ? 0 : version, handler)));
+            }
+            for (ForkJoinTask<?> task : tasks) {
+                try {
+                    task.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading segments.", e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof UncheckedIOException) {
+                        throw ((UncheckedIOException) cause).getCause();
+                    }
+                    throw new IOException("Failed to read segment.", cause);
+                }
+            }
+            return results;
+        } finally {
+            raf.close();
+            zip.close();
+        }
+    }
+
+    /**
+     * Whether the specified file is a zip file.
+     * @param file The file
+     * @return {@code true} if it starts with a local file header
+     * @throws IOException if an I/O error occurred
+     */
+    private static boolean isZipFile(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] signature = new byte[4];
+            if (ByteStreams.read(in, signature, 0, 4) < 4) {
+                return false;
+            }
+            return (readShort(signature, 0) | readShort(signature, 2) << 16) == ZIP_LOCAL_HEADER_SIGNATURE;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Return the offset of the compressed recording in the specified zip file.
+     * Only replay files with the recording as their first entry (as written by recorders) are supported.
+     * @param file The zip file
+     * @return Offset of the compressed data or {@code -1} if the first entry isn't the recording
+     * @throws IOException if an I/O error occurred
+     */
+    private static long getDataStart(RandomAccessFile file) throws IOException {
+        byte[] header = new byte[ZIP_LOCAL_HEADER_LENGTH + RECORDING_ENTRY.length()];
+        file.seek(0);
+        file.readFully(header);
+        int nameLength = readShort(header, 26);
+        if ((readShort(header, 0) | readShort(header, 2) << 16) != ZIP_LOCAL_HEADER_SIGNATURE
+                || nameLength != RECORDING_ENTRY.length()
+                || !RECORDING_ENTRY.equals(new String(header, ZIP_LOCAL_HEADER_LENGTH, nameLength, Charsets.UTF_8))) {
+            return -1;
+        }
+        int extraLength = readShort(header, 28);
+        return ZIP_LOCAL_HEADER_LENGTH + nameLength + extraLength;
+    }
+
+    private static int readShort(byte[] buf, int offset) {
+        return (buf[offset] & 0xff) | (buf[offset + 1] & 0xff) << 8;
+    }
+
+    /**
+     * Reads one segment of a replay file.
+     */
+    private static class SegmentTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final long length;
+        private final int fileFormatVersion;
+        private final PacketHandler handler;
+
+        /**
+         * Create a new task.
+         * @param channel Channel of the replay file
+         * @param start Offset of the compressed segment in the file
+         * @param end Offset after the compressed segment in the file
+         * @param length Length of the uncompressed segment
+         * @param fileFormatVersion File format version of the recording or {@code 0} to detect it
+         * @param handler Handler of the packets in the segment
+         */
+        public SegmentTask(FileChannel channel, long start, long end, long length, int fileFormatVersion,
+                           PacketHandler handler) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.length = length;
+            this.fileFormatVersion = fileFormatVersion;
+            this.handler = handler;
+        }
+
+        @Override
+        protected void compute() {
+            Inflater inflater = new Inflater(true);
+            try {
+                InputStream in = new InflaterInputStream(new ChannelInputStream(channel, start, end),
+                        inflater, DEFAULT_BUFFER_SIZE);
+                new ReplayReader(ByteStreams.limit(in, length), null, fileFormatVersion).readAll(handler);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+
+    /**
+     * Reads a range of a file channel using positional reads, so the channel can be shared between threads.
+     */
+    private static class ChannelInputStream extends InputStream {
+        private final FileChannel channel;
+        private final long end;
+        private long position;
+
+        public ChannelInputStream(FileChannel channel, long start, long end) {
+            this.channel = channel;
+            this.position = start;
+            this.end = end;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) {
+                return -1;
+            }
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, end - position)), position);
+            if (read == -1) {
+                return -1;
+            }
+            position += read;
+            return read;
+        }
+    }
+}
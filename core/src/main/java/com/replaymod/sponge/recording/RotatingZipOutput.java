@@ -0,0 +1,146 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Handle of a zipped output which is split into multiple replay files.<br>
+ * <br>
+ * The recorder closes the current segment and continues in a new one once the segment has reached its maximum size
+ * or duration. Each new segment starts with the packets restoring the current state of the world, so it can be
+ * played on its own. These are skipped when merging the segments.
+ */
+public class RotatingZipOutput implements RotatingOutput {
+
+    private final OutputFactory factory;
+    private final long maxSize;
+    private final long maxDuration;
+
+    /**
+     * Index of the current segment.
+     */
+    private int segment = -1;
+
+    /**
+     * Time in milliseconds since the start of the recording at which the current segment started.
+     */
+    private long segmentStartTime;
+
+    /**
+     * Number of packets at the start of the current segment which only restore the state of the world.
+     */
+    private int seedPackets;
+
+    /**
+     * Zip file of the current segment.
+     */
+    private ZipWriter zip;
+
+    /**
+     * Create a new rotating output.
+     * @param factory Factory creating the output stream of each segment
+     * @param maxSize Maximum size of a segment in bytes or {@code 0} if unlimited
+     * @param maxDuration Maximum duration of a segment in milliseconds or {@code 0} if unlimited
+     */
+    public RotatingZipOutput(OutputFactory factory, long maxSize, long maxDuration) {
+        Preconditions.checkArgument(maxSize >= 0, "Maximum size must not be negative.");
+        Preconditions.checkArgument(maxDuration >= 0, "Maximum duration must not be negative.");
+        this.factory = Preconditions.checkNotNull(factory, "factory");
+        this.maxSize = maxSize;
+        this.maxDuration = maxDuration;
+    }
+
+    @Override
+    public int getSegment() {
+        return segment;
+    }
+
+    @Override
+    public long getSegmentStartTime() {
+        return segmentStartTime;
+    }
+
+    /**
+     * Return the number of packets at the start of the current segment which only restore the state of the world
+     * at its start, see {@link AbstractRecorder#SEED_PACKETS_KEY}.
+     * @return The number of packets
+     */
+    public int getSeedPackets() {
+        return seedPackets;
+    }
+
+    /**
+     * Set the number of packets the current segment has been seeded with.
+     * @param seedPackets The number of packets
+     */
+    public void setSeedPackets(int seedPackets) {
+        this.seedPackets = seedPackets;
+    }
+
+    /**
+     * Return the zip file of the current segment.
+     * @return The zip file or {@code null} before the first segment has been started
+     */
+    public ZipWriter getZip() {
+        return zip;
+    }
+
+    /**
+     * Whether the current segment should be closed before writing a packet at the specified time.
+     * @param time Time in milliseconds since the start of the recording
+     * @return {@code true} if the current segment has reached its maximum size or duration
+     */
+    public boolean shouldRotate(long time) {
+        return maxSize > 0 && zip.getSize() >= maxSize
+                || maxDuration > 0 && time - segmentStartTime >= maxDuration;
+    }
+
+    /**
+     * Start the next segment. The previous one has to have been closed.
+     * @param time Time in milliseconds since the start of the recording
+     * @return The zip file of the new segment
+     * @throws IOException if an I/O error occurred
+     */
+    public ZipWriter nextSegment(long time) throws IOException {
+        OutputStream out = factory.createOutput(segment + 1);
+        segment++;
+        segmentStartTime = time;
+        seedPackets = 0;
+        zip = new ZipWriter(out);
+        return zip;
+    }
+
+    /**
+     * Flush and close the output stream of the current segment. Its zip file has to have been finished.
+     * @throws IOException if an I/O error occurred
+     */
+    public void closeSegment() throws IOException {
+        OutputStream out = zip.getOutputStream();
+        try {
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Reads the committed data of segment files written by {@link SegmentedOutputStream}.
+ */
+public class SegmentedInputStream extends InputStream {
+
+    private final File directory;
+    private final byte[] singleByte = new byte[1];
+
+    private int segmentIndex = -1;
+    private FileChannel channel;
+    private long position;
+    private long limit;
+
+    /**
+     * Create a new input stream reading all segments in the specified directory.
+     * @param directory Directory containing the segment files
+     * @throws IOException if the directory does not contain any segments
+     */
+    public SegmentedInputStream(File directory) throws IOException {
+        this.directory = directory;
+        if (!isSegmentDirectory(directory)) {
+            throw new IOException("No segments found in " + directory);
+        }
+    }
+
+    /**
+     * Whether the specified directory contains segment files.
+     * @param directory The directory
+     * @return {@code true} if there is at least one segment, {@code false} otherwise
+     */
+    public static boolean isSegmentDirectory(File directory) {
+        return SegmentedOutputStream.getSegmentFile(directory, 0).isFile();
+    }
+
+    @Override
+    public int read() throws IOException {
+        return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (channel == null || position == limit) {
+            if (!nextSegment()) {
+                return -1;
+            }
+        }
+        ByteBuffer buf = ByteBuffer.wrap(b, off, (int) Math.min(len, limit - position));
+        int read = channel.read(buf, position);
+        if (read < 0) {
+            throw new EOFException("Segment " + segmentIndex + " is shorter than its committed length.");
+        }
+        position += read;
+        return read;
+    }
+
+    /**
+     * Close the current segment and open the next one.
+     * @return {@code false} if there are no more segments, {@code true} otherwise
+     * @throws IOException if an I/O error occurred or the segment is invalid
+     */
+    private boolean nextSegment() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+        File file = SegmentedOutputStream.getSegmentFile(directory, segmentIndex + 1);
+        if (!file.isFile()) {
+            return false;
+        }
+        segmentIndex++;
+        channel = new RandomAccessFile(file, "r").getChannel();
+        ByteBuffer header = ByteBuffer.allocate(SegmentedOutputStream.HEADER_SIZE);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new EOFException("Segment " + file + " is truncated.");
+            }
+        }
+        byte[] magic = new byte[SegmentedOutputStream.MAGIC.length];
+        header.flip();
+        header.get(magic);
+        if (Arrays.equals(magic, new byte[magic.length])) {
+            // Created right before a crash, its header never made it to disk so nothing has been committed
+            channel.close();
+            channel = null;
+            segmentIndex--;
+            return false;
+        }
+        if (!Arrays.equals(magic, SegmentedOutputStream.MAGIC)) {
+            throw new IOException(file + " is not a segment file.");
+        }
+        position = SegmentedOutputStream.HEADER_SIZE;
+        limit = position + header.getLong();
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,332 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.util.internal.PlatformDependent;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes raw packet data into preallocated, memory-mapped segment files.<br>
+ * <br>
+ * Each segment starts with a header consisting of the {@link #MAGIC} followed by the number of committed bytes
+ * in the segment. The committed length is only updated at checkpoints, after all data up to that point has been
+ * forced to disk. If the server crashes, the recording can therefore be recovered up to the last checkpoint.
+ * Note that the committed data may end in the middle of a packet. Once the stream is closed, the last segment is
+ * truncated to the data written to it.<br>
+ * <br>
+ * Checkpoints are created periodically by a background thread, so writing only copies the data into the mapped
+ * segment and never waits for the disk. Only {@link #flush()} and {@link #close()} checkpoint on the calling
+ * thread.<br>
+ * <br>
+ * Segments can be read using {@link SegmentedInputStream}.
+ */
+public class SegmentedOutputStream extends OutputStream {
+
+    public static final byte[] MAGIC = "TMCPRSEG".getBytes(Charsets.US_ASCII);
+    public static final int HEADER_SIZE = MAGIC.length + 8;
+
+    public static final long DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    public static final long DEFAULT_CHECKPOINT_INTERVAL = 1000;
+
+    /**
+     * Name of the file in the directory in which meta data is stored.
+     */
+    public static final String META_DATA_FILE = "metaData.json";
+
+    /**
+     * Thread creating the periodic checkpoints of all segmented outputs.
+     */
+    private static final ScheduledExecutorService CHECKPOINTS = Executors.newSingleThreadScheduledExecutor(
+            new ThreadFactoryBuilder().setNameFormat("SpongeRecording Segments").setDaemon(true).build());
+
+    private final File directory;
+    private final long segmentSize;
+    private final byte[] singleByte = new byte[1];
+
+    /**
+     * Guards the segments against being checkpointed while they are replaced or unmapped.
+     * Never held while writing to the {@link #current} segment.
+     */
+    private final Object lock = new Object();
+
+    /**
+     * Full segments which have not yet received their final checkpoint, oldest first.
+     */
+    private final Queue<Segment> retired = new ArrayDeque<Segment>();
+
+    private final ScheduledFuture<?> checkpointTask;
+
+    private int segmentIndex = -1;
+    private volatile Segment current;
+    private boolean closed;
+
+    /**
+     * The first exception thrown by a background checkpoint. Rethrown on the next write.
+     */
+    private volatile Throwable failure;
+
+    /**
+     * Create a new segmented output stream using the default segment size and checkpoint interval.
+     * @param directory Directory for the segment files
+     * @throws IOException if the directory could not be created or already contains segments
+     */
+    public SegmentedOutputStream(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_CHECKPOINT_INTERVAL);
+    }
+
+    /**
+     * Create a new segmented output stream.
+     * @param directory Directory for the segment files
+     * @param segmentSize Size of each segment file in bytes, including the header
+     * @param checkpointInterval Time in milliseconds between automatic checkpoints
+     * @throws IOException if the directory could not be created or already contains segments
+     */
+    public SegmentedOutputStream(File directory, long segmentSize, long checkpointInterval) throws IOException {
+        Preconditions.checkArgument(segmentSize > HEADER_SIZE && segmentSize <= Integer.MAX_VALUE,
+                "Invalid segment size: %s", segmentSize);
+        Preconditions.checkArgument(checkpointInterval > 0, "Checkpoint interval must be positive.");
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Failed to create directory " + directory);
+        }
+        if (getSegmentFile(directory, 0).exists()) {
+            throw new IOException("Directory " + directory + " already contains a recording.");
+        }
+        this.checkpointTask = CHECKPOINTS.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                } catch (Throwable t) {
+                    // Thrown from the scheduled task it would only cancel all further checkpoints
+                    if (failure == null) {
+                        failure = t;
+                    }
+                }
+            }
+        }, checkpointInterval, checkpointInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Return the file of the specified segment.
+     * @param directory Directory containing the segments
+     * @param index Index of the segment
+     * @return The segment file
+     */
+    public static File getSegmentFile(File directory, int index) {
+        return new File(directory, String.format("segment-%05d.dat", index));
+    }
+
+    /**
+     * Return the directory containing the segment files.
+     * @return The directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        Preconditions.checkState(!closed, "Stream closed.");
+        Throwable failure = this.failure;
+        if (failure != null) {
+            throw new IOException("Checkpoint failed.", failure);
+        }
+        Segment segment = current;
+        while (len > 0) {
+            if (segment == null || !segment.buffer.hasRemaining()) {
+                segment = nextSegment();
+            }
+            MappedByteBuffer buffer = segment.buffer;
+            int count = Math.min(len, buffer.remaining());
+            buffer.put(b, off, count);
+            off += count;
+            len -= count;
+            segment.written = buffer.position();
+        }
+    }
+
+    /**
+     * Creates a checkpoint on the calling thread.
+     */
+    @Override
+    public void flush() throws IOException {
+        checkpoint();
+    }
+
+    /**
+     * Give all full segments their final checkpoint and then write all data of the current segment to disk and
+     * commit it by updating the length in its header.
+     * @throws IOException if an I/O error occurred
+     */
+    private void checkpoint() throws IOException {
+        synchronized (lock) {
+            Segment segment;
+            while ((segment = retired.peek()) != null) {
+                segment.commit();
+                retired.poll();
+                segment.release();
+            }
+            segment = current;
+            if (segment != null) {
+                segment.commit();
+            }
+        }
+    }
+
+    /**
+     * Retire the current segment (if any) and start the next one.
+     * The retired segment receives its final checkpoint with the next checkpoint.
+     * @return The new segment
+     * @throws IOException if an I/O error occurred
+     */
+    private Segment nextSegment() throws IOException {
+        segmentIndex++;
+        RandomAccessFile file = new RandomAccessFile(getSegmentFile(directory, segmentIndex), "rw");
+        file.setLength(segmentSize);
+        FileChannel channel = file.getChannel();
+        Segment segment = new Segment(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize));
+        synchronized (lock) {
+            if (current != null) {
+                retired.add(current);
+            }
+            current = segment;
+        }
+        return segment;
+    }
+
+    /**
+     * Store the specified meta data in the {@link #META_DATA_FILE} of the directory.
+     * @param json The meta data as JSON
+     * @throws IOException if an I/O error occurred
+     */
+    public void writeMetaData(String json) throws IOException {
+        OutputStream out = new FileOutputStream(new File(directory, META_DATA_FILE));
+        try {
+            out.write(json.getBytes(Charsets.UTF_8));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        checkpointTask.cancel(false);
+        synchronized (lock) {
+            checkpoint();
+            Segment segment = current;
+            current = null;
+            if (segment != null) {
+                segment.unmap();
+                try {
+                    // Give back the preallocated space which hasn't been used
+                    segment.channel.truncate(segment.written);
+                } finally {
+                    segment.channel.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * A mapped segment file.
+     */
+    private static class Segment {
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Position after the data written to the segment, published by the writing thread.
+         */
+        private volatile long written = HEADER_SIZE;
+
+        /**
+         * Position up to which the data has been committed.
+         */
+        private long committed = -1;
+
+        public Segment(FileChannel channel, MappedByteBuffer buffer) {
+            this.channel = channel;
+            this.buffer = buffer;
+            // Written by the writing thread before the segment is published, forced with the first commit
+            buffer.put(MAGIC);
+            buffer.putLong(0);
+        }
+
+        /**
+         * Write all data up to {@link #written} to disk and then commit it in the header.
+         * Only accesses the buffer at absolute positions, so the writing thread can continue to write.
+         */
+        public void commit() {
+            long written = this.written;
+            if (written == committed) {
+                return;
+            }
+            buffer.force();
+            buffer.putLong(MAGIC.length, written - HEADER_SIZE);
+            buffer.force();
+            committed = written;
+        }
+
+        /**
+         * Release the mapping of the buffer right away instead of once it has been garbage collected.
+         * The buffer must not be accessed afterwards.
+         */
+        public void unmap() {
+            PlatformDependent.freeDirectBuffer(buffer);
+        }
+
+        /**
+         * Unmap the segment and close its file.
+         * @throws IOException if an I/O error occurred
+         */
+        public void release() throws IOException {
+            unmap();
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A zip entry which is compressed once and written to multiple zip files.<br>
+ * <br>
+ * Zip files can only be added while no data has been written. Each one can be closed independently: its copy of
+ * the deflate stream is terminated by flushing the compressor and appending an empty final block, while the
+ * remaining zip files continue to receive the same stream.<br>
+ * <br>
+ * If the compressor is {@link FullFlushable}, sync points can be added to the {@link RecordingIndex index} of the
+ * entry. As all zip files receive the same stream from its start, the index is valid for each of them.
+ */
+public class SharedZipEntry extends OutputStream {
+
+    /**
+     * Empty final deflate block using fixed huffman codes. Terminates a sync-flushed deflate stream.
+     */
+    private static final byte[] EMPTY_FINAL_BLOCK = {0x03, 0x00};
+
+    private final String name;
+    private final CompressionCodec codec;
+    private final OutputStream compressor;
+    private final CRC32 crc = new CRC32();
+    private final byte[] singleByte = new byte[1];
+
+    /**
+     * Separate from {@link #singleByte}, the compressor might still reference its input while writing its output.
+     */
+    private final byte[] singleCompressedByte = new byte[1];
+    private final List<ZipWriter> targets = new ArrayList<ZipWriter>();
+    private final RecorderMetrics metrics;
+    private final RecordingIndex index = new RecordingIndex();
+
+    /**
+     * Data written in front of the first data written to this entry.
+     */
+    private final byte[] header;
+
+    /**
+     * Number of uncompressed bytes written.
+     */
+    private long size;
+
+    /**
+     * Number of compressed bytes written.
+     */
+    private long compressedSize;
+
+    public SharedZipEntry(String name, CompressionCodec codec) throws IOException {
+        this(name, codec, null);
+    }
+
+    public SharedZipEntry(String name, CompressionCodec codec, RecorderMetrics metrics) throws IOException {
+        this(name, codec, metrics, new byte[0]);
+    }
+
+    /**
+     * Create a new entry.
+     * @param name Name of the entry
+     * @param codec Codec used to compress the entry
+     * @param metrics Metrics updated with the number of uncompressed and compressed bytes or {@code null}
+     * @param header Data written in front of the first data written to this entry (e.g. magic bytes)
+     * @throws IOException if an I/O error occurred
+     */
+    public SharedZipEntry(String name, CompressionCodec codec, RecorderMetrics metrics, byte[] header)
+            throws IOException {
+        this.name = name;
+        this.codec = codec;
+        this.metrics = metrics;
+        this.header = header;
+        this.compressor = codec.compress(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                singleCompressedByte[0] = (byte) b;
+                write(singleCompressedByte, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                compressedSize += len;
+                if (metrics != null) {
+                    metrics.recordCompressed(len);
+                }
+                for (ZipWriter zip : targets) {
+                    zip.writeCompressed(b, off, len);
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the codec used to compress this entry.
+     * @return The codec
+     */
+    public CompressionCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Return the index of the sync points added so far.
+     * @return The index
+     */
+    public RecordingIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * Whether no data has been written to this entry yet. Only then can new zip files be added.
+     * @return {@code true} if no data has been written, {@code false} otherwise
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Whether this entry is being written to the specified zip file.
+     * @param zip The zip file
+     * @return {@code true} if it is a target of this entry, {@code false} otherwise
+     */
+    public boolean hasTarget(ZipWriter zip) {
+        return targets.contains(zip);
+    }
+
+    /**
+     * Whether this entry is no longer being written to any zip file.
+     * @return {@code true} if it has been closed in all zip files, {@code false} otherwise
+     */
+    public boolean isClosed() {
+        return targets.isEmpty();
+    }
+
+    /**
+     * Start this entry in the specified zip file.
+     * @param zip The zip file
+     * @throws IOException if an I/O error occurred
+     */
+    public void addTarget(ZipWriter zip) throws IOException {
+        Preconditions.checkState(isEmpty(), "Data has already been written.");
+        zip.putNextEntry(name);
+        targets.add(zip);
+    }
+
+    /**
+     * Close this entry in the specified zip file. Once it has been closed in all zip files, the compressor is closed.
+     * @param zip The zip file
+     * @throws IOException if an I/O error occurred
+     */
+    public void closeTarget(ZipWriter zip) throws IOException {
+        Preconditions.checkState(targets.contains(zip), "Unknown zip file.");
+        if (targets.size() == 1) {
+            compressor.close();
+        } else {
+            compressor.flush();
+            zip.writeCompressed(EMPTY_FINAL_BLOCK, 0, EMPTY_FINAL_BLOCK.length);
+        }
+        zip.closeEntry(crc.getValue(), size);
+        targets.remove(zip);
+    }
+
+    /**
+     * Fully flush the compressor and add a sync point at the current position to the {@link #getIndex() index}.
+     * Does nothing if the compressor isn't {@link FullFlushable} or no data has been written yet.
+     * @param time Time in milliseconds since the start of the recording of the next packet
+     * @throws IOException if an I/O error occurred
+     */
+    public void addSyncPoint(long time) throws IOException {
+        if (isEmpty() || !(compressor instanceof FullFlushable)) {
+            return;
+        }
+        ((FullFlushable) compressor).fullFlush();
+        index.add(time, size, compressedSize);
+    }
+
+    /**
+     * Write the {@link #getIndex() index} as a new entry to the specified zip file if it contains any sync points.
+     * @param zip The zip file
+     * @throws IOException if an I/O error occurred
+     */
+    public void writeIndex(ZipWriter zip) throws IOException {
+        if (index.size() > 0) {
+            zip.writeEntry(RecordingIndex.ENTRY_NAME, index.toByteArray());
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return;
+        }
+        if (size == 0 && header.length > 0) {
+            writeCompressed(header, 0, header.length);
+        }
+        writeCompressed(b, off, len);
+    }
+
+    private void writeCompressed(byte[] b, int off, int len) throws IOException {
+        crc.update(b, off, len);
+        size += len;
+        if (metrics != null) {
+            metrics.recordUncompressed(len);
+        }
+        compressor.write(b, off, len);
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Temporary file holding packet data which didn't fit into the queue of an {@link AsyncPacketWriter}.
+ * The file is created when the first packet is appended and deleted as soon as all appended data has been read.
+ */
+class SpillFile {
+
+    private File file;
+    private FileChannel channel;
+
+    /**
+     * Number of bytes appended to the current file.
+     */
+    private long written;
+
+    /**
+     * Number of bytes of the current file which have been read and are no longer needed.
+     */
+    private long released;
+
+    /**
+     * Append the readable bytes of the specified buffer to this file. The reader index is not modified.
+     * @param data The data
+     * @return Position of the data in this file
+     * @throws IOException if an I/O error occurred
+     */
+    public synchronized long append(ByteBuf data) throws IOException {
+        if (channel == null) {
+            file = File.createTempFile("spongerecording", ".spill");
+            file.deleteOnExit();
+            channel = new RandomAccessFile(file, "rw").getChannel();
+        }
+        long position = written;
+        int length = data.readableBytes();
+        int index = data.readerIndex();
+        while (length > 0) {
+            int count = data.getBytes(index, channel, length);
+            index += count;
+            length -= count;
+        }
+        written = channel.position();
+        return position;
+    }
+
+    /**
+     * Read data previously {@link #append(ByteBuf) appended} to this file.
+     * @param position Position of the data
+     * @param length Length of the data
+     * @return The data
+     * @throws IOException if an I/O error occurred
+     */
+    public synchronized byte[] read(long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException("Spill file truncated.");
+            }
+        }
+        return buf.array();
+    }
+
+    /**
+     * Mark the specified amount of bytes as no longer needed.
+     * Once all data has been released, the file is deleted.
+     * @param length Number of bytes
+     * @throws IOException if an I/O error occurred
+     */
+    public synchronized void release(int length) throws IOException {
+        released += length;
+        if (released == written && channel != null) {
+            channel.close();
+            channel = null;
+            if (!file.delete()) {
+                throw new IOException("Failed to delete " + file);
+            }
+            file = null;
+            written = released = 0;
+        }
+    }
+}
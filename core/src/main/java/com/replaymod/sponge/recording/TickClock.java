@@ -0,0 +1,62 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+/**
+ * A clock which only advances once per server tick.<br>
+ * <br>
+ * All packets sent during the same tick are recorded with the time at which the tick started, so packets which
+ * belong together (e.g. the movements of all entities) are played back at exactly the same time instead of being
+ * spread over the few milliseconds it took to send them. The time is taken from the {@link MonotonicClock}.<br>
+ * The clock doesn't advance on its own, something has to call {@link #tick()} once per server tick. On servers
+ * based on SpongeCommon, {@code SpongeImplementation#initialize} schedules a task doing so, other platforms have to
+ * call it themselves. Until it has been called for the first time, the time of the {@link MonotonicClock} is
+ * returned. If the ticks stop (e.g. because the implementation isn't initialized), all packets get the time of the
+ * last tick.
+ */
+public final class TickClock implements RecordingClock {
+
+    private static final TickClock INSTANCE = new TickClock();
+
+    public static TickClock getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Time at which the current tick started or {@code -1} if there hasn't been any tick yet.
+     */
+    private volatile long tickTime = -1;
+
+    private TickClock() {
+    }
+
+    /**
+     * Start a new tick.
+     */
+    public void tick() {
+        tickTime = MonotonicClock.getInstance().getTime();
+    }
+
+    @Override
+    public long getTime() {
+        long time = tickTime;
+        return time == -1 ? MonotonicClock.getInstance().getTime() : time;
+    }
+}
@@ -0,0 +1,877 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * State of the world as seen by the recorded player, tracked from the client bound packets of the
+ * Minecraft 1.8 protocol.<br>
+ * <br>
+ * Only the packets which still affect the state are kept: the login and join game packets, the loaded chunks
+ * together with the latest change of each block since they were loaded, the spawned entities with their current
+ * position, equipment, effects and metadata, the tab list and the latest state of the player (position, health,
+ * inventory, game mode, weather, ...). Block changes are kept per position and metadata per index, so the state
+ * doesn't grow with the number of packets.
+ * Written out, they restore the state at that time without replaying the recording up to it, see
+ * {@link CheckpointStore}. Tracked packets are never modified, so a snapshot of them ({@link #getPackets()}) can be
+ * written out by another thread while the state keeps changing.<br>
+ * All packets are copied to the heap. Tracking the state of a connection therefore needs about as much memory as
+ * the client needs for its loaded chunks. Packets which can't be parsed are ignored.
+ */
+public class ViewerState {
+
+    private static final int LOGIN_SUCCESS = 0x02;
+
+    private static final int JOIN_GAME = 0x01;
+    private static final int TIME_UPDATE = 0x03;
+    private static final int ENTITY_EQUIPMENT = 0x04;
+    private static final int SPAWN_POSITION = 0x05;
+    private static final int UPDATE_HEALTH = 0x06;
+    private static final int RESPAWN = 0x07;
+    private static final int PLAYER_POSITION = 0x08;
+    private static final int HELD_ITEM_CHANGE = 0x09;
+    private static final int SPAWN_PLAYER = 0x0C;
+    private static final int SPAWN_OBJECT = 0x0E;
+    private static final int SPAWN_MOB = 0x0F;
+    private static final int SPAWN_PAINTING = 0x10;
+    private static final int SPAWN_EXPERIENCE_ORB = 0x11;
+    private static final int DESTROY_ENTITIES = 0x13;
+    private static final int ENTITY_RELATIVE_MOVE = 0x15;
+    private static final int ENTITY_LOOK = 0x16;
+    private static final int ENTITY_LOOK_AND_RELATIVE_MOVE = 0x17;
+    private static final int ENTITY_TELEPORT = 0x18;
+    private static final int ENTITY_HEAD_LOOK = 0x19;
+    private static final int ATTACH_ENTITY = 0x1B;
+    private static final int ENTITY_METADATA = 0x1C;
+    private static final int ENTITY_EFFECT = 0x1D;
+    private static final int REMOVE_ENTITY_EFFECT = 0x1E;
+    private static final int SET_EXPERIENCE = 0x1F;
+    private static final int ENTITY_PROPERTIES = 0x20;
+    private static final int CHUNK_DATA = 0x21;
+    private static final int MULTI_BLOCK_CHANGE = 0x22;
+    private static final int BLOCK_CHANGE = 0x23;
+    private static final int MAP_CHUNK_BULK = 0x26;
+    private static final int CHANGE_GAME_STATE = 0x2B;
+    private static final int SET_SLOT = 0x2F;
+    private static final int WINDOW_ITEMS = 0x30;
+    private static final int UPDATE_SIGN = 0x33;
+    private static final int UPDATE_BLOCK_ENTITY = 0x35;
+    private static final int PLAYER_LIST_ITEM = 0x38;
+    private static final int PLAYER_ABILITIES = 0x39;
+    private static final int SERVER_DIFFICULTY = 0x41;
+
+    private static final int GAME_STATE_END_RAIN = 1;
+    private static final int GAME_STATE_RAIN = 2;
+    private static final int GAME_STATE_GAME_MODE = 3;
+    private static final int GAME_STATE_RAIN_LEVEL = 7;
+    private static final int GAME_STATE_THUNDER_LEVEL = 8;
+
+    /**
+     * Whether the login has succeeded and packets are interpreted as packets of the play phase.
+     */
+    private boolean playing;
+
+    private byte[] loginSuccess;
+    private byte[] joinGame;
+    private byte[] respawn;
+
+    /**
+     * Latest packet of each kind describing the state of the player, by packet id.
+     */
+    private final Map<Integer, byte[]> playerState = new LinkedHashMap<Integer, byte[]>();
+
+    /**
+     * Latest change game state packet of each reason which changes the state of the world (weather) or the player
+     * (game mode), by reason. Beginning and ending rain share {@link #GAME_STATE_RAIN}.
+     */
+    private final Map<Integer, byte[]> gameState = new LinkedHashMap<Integer, byte[]>();
+
+    /**
+     * Slots of the player's inventory changed since the last {@link #WINDOW_ITEMS} packet, by slot.
+     */
+    private final Map<Integer, byte[]> inventorySlots = new LinkedHashMap<Integer, byte[]>();
+
+    /**
+     * Packets adding players to and removing them from the tab list.
+     */
+    private final List<byte[]> playerList = new ArrayList<byte[]>();
+
+    /**
+     * Loaded chunks by {@link #chunkKey(int, int) coordinates}.
+     */
+    private final Map<Long, Chunk> chunks = new LinkedHashMap<Long, Chunk>();
+
+    /**
+     * Spawned entities by entity id.
+     */
+    private final Map<Integer, Entity> entities = new LinkedHashMap<Integer, Entity>();
+
+    /**
+     * Whether the player has joined the world, i.e. whether the state can be written.
+     * @return {@code true} if the join game packet has been sent, {@code false} otherwise
+     */
+    public boolean isPlaying() {
+        return joinGame != null;
+    }
+
+    /**
+     * Update the state with the specified client bound packet. The reader index of the packet data is not modified.
+     * @param data The packet data (packet id and payload)
+     */
+    public void update(ByteBuf data) {
+        ByteBuf in = data.duplicate();
+        try {
+            int id = readVarInt(in);
+            if (!playing) {
+                if (id == LOGIN_SUCCESS) {
+                    loginSuccess = copy(data);
+                    playing = true;
+                }
+                return;
+            }
+            update(id, in, data);
+        } catch (IndexOutOfBoundsException e) {
+            // Malformed or from a different protocol version, ignore it
+        }
+    }
+
+    private void update(int id, ByteBuf in, ByteBuf data) {
+        Entity entity;
+        Chunk chunk;
+        switch (id) {
+            case JOIN_GAME:
+                joinGame = copy(data);
+                respawn = null;
+                playerState.clear();
+                gameState.clear();
+                inventorySlots.clear();
+                playerList.clear();
+                chunks.clear();
+                entities.clear();
+                break;
+            case RESPAWN:
+                respawn = copy(data);
+                // The game mode is part of the respawn packet and the weather is sent again
+                gameState.clear();
+                chunks.clear();
+                entities.clear();
+                break;
+            case TIME_UPDATE:
+            case SPAWN_POSITION:
+            case UPDATE_HEALTH:
+            case PLAYER_POSITION:
+            case HELD_ITEM_CHANGE:
+            case SET_EXPERIENCE:
+            case PLAYER_ABILITIES:
+            case SERVER_DIFFICULTY:
+                playerState.put(id, copy(data));
+                break;
+            case WINDOW_ITEMS:
+                if (in.readUnsignedByte() == 0) {
+                    playerState.put(id, copy(data));
+                    inventorySlots.clear();
+                }
+                break;
+            case SET_SLOT:
+                if (in.readByte() == 0) {
+                    inventorySlots.put((int) in.readShort(), copy(data));
+                }
+                break;
+            case CHANGE_GAME_STATE:
+                int reason = in.readUnsignedByte();
+                if (reason == GAME_STATE_END_RAIN) {
+                    reason = GAME_STATE_RAIN;
+                }
+                if (reason == GAME_STATE_RAIN || reason == GAME_STATE_GAME_MODE
+                        || reason == GAME_STATE_RAIN_LEVEL || reason == GAME_STATE_THUNDER_LEVEL) {
+                    // Changing the rain also changes its level, so keep the order of the latest changes
+                    gameState.remove(reason);
+                    gameState.put(reason, copy(data));
+                }
+                break;
+            case PLAYER_LIST_ITEM:
+                int action = readVarInt(in);
+                if (action == 0 || action == 4) {
+                    // Only adding and removing players matters, the rest is cosmetic
+                    playerList.add(copy(data));
+                }
+                break;
+            case CHUNK_DATA:
+                updateChunk(in, data);
+                break;
+            case MAP_CHUNK_BULK:
+                updateChunkBulk(in, data);
+                break;
+            case MULTI_BLOCK_CHANGE:
+                updateBlocks(in);
+                break;
+            case BLOCK_CHANGE:
+                long position = in.readLong();
+                chunk = getChunk(position);
+                if (chunk != null) {
+                    chunk.setBlock(position, copy(data));
+                }
+                break;
+            case UPDATE_SIGN:
+            case UPDATE_BLOCK_ENTITY:
+                position = in.readLong();
+                chunk = getChunk(position);
+                if (chunk != null) {
+                    chunk.blockEntities.remove(position);
+                    chunk.blockEntities.put(position, copy(data));
+                }
+                break;
+            case SPAWN_PLAYER:
+            case SPAWN_OBJECT:
+            case SPAWN_MOB:
+            case SPAWN_PAINTING:
+            case SPAWN_EXPERIENCE_ORB:
+                spawnEntity(id, in, data);
+                break;
+            case DESTROY_ENTITIES:
+                for (int i = readVarInt(in); i > 0; i--) {
+                    entities.remove(readVarInt(in));
+                }
+                break;
+            case ENTITY_RELATIVE_MOVE:
+                entity = entities.get(readVarInt(in));
+                if (entity != null) {
+                    entity.move(in.readByte(), in.readByte(), in.readByte());
+                    entity.onGround = in.readBoolean();
+                }
+                break;
+            case ENTITY_LOOK:
+                entity = entities.get(readVarInt(in));
+                if (entity != null) {
+                    entity.yaw = in.readByte();
+                    entity.pitch = in.readByte();
+                    entity.onGround = in.readBoolean();
+                }
+                break;
+            case ENTITY_LOOK_AND_RELATIVE_MOVE:
+                entity = entities.get(readVarInt(in));
+                if (entity != null) {
+                    entity.move(in.readByte(), in.readByte(), in.readByte());
+                    entity.yaw = in.readByte();
+                    entity.pitch = in.readByte();
+                    entity.onGround = in.readBoolean();
+                }
+                break;
+            case ENTITY_TELEPORT:
+                entity = entities.get(readVarInt(in));
+                if (entity != null) {
+                    entity.x = in.readInt();
+                    entity.y = in.readInt();
+                    entity.z = in.readInt();
+                    entity.yaw = in.readByte();
+                    entity.pitch = in.readByte();
+                    entity.onGround = in.readBoolean();
+                }
+                break;
+            case ENTITY_HEAD_LOOK:
+            case ENTITY_PROPERTIES:
+                entity = entities.get(readVarInt(in));
+                if (entity != null) {
+                    entity.state.put((long) id << 32, copy(data));
+                }
+                break;
+            case ATTACH_ENTITY:
+                entity = entities.get(in.readInt());
+                if (entity != null) {
+                    // Detaching (vehicle id -1) restores the state of a freshly spawned entity
+                    byte[] attach = in.readInt() == -1 ? null : copy(data);
+                    if (in.readBoolean()) {
+                        entity.leash = attach;
+                    } else {
+                        entity.vehicle = attach;
+                    }
+                }
+                break;
+            case ENTITY_EQUIPMENT:
+                entity = entities.get(readVarInt(in));
+                if (entity != null) {
+                    entity.state.put((long) id << 32 | in.readShort() & 0xffff, copy(data));
+                }
+                break;
+            case ENTITY_EFFECT:
+                entity = entities.get(readVarInt(in));
+                if (entity != null) {
+                    entity.state.put((long) id << 32 | in.readUnsignedByte(), copy(data));
+                }
+                break;
+            case REMOVE_ENTITY_EFFECT:
+                entity = entities.get(readVarInt(in));
+                if (entity != null) {
+                    entity.state.remove((long) ENTITY_EFFECT << 32 | in.readUnsignedByte());
+                }
+                break;
+            case ENTITY_METADATA:
+                entity = entities.get(readVarInt(in));
+                if (entity != null) {
+                    // Metadata packets only contain the changed values, keep the latest one of each index
+                    updateMetadata(entity, in);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void updateChunk(ByteBuf in, ByteBuf data) {
+        long key = chunkKey(in.readInt(), in.readInt());
+        boolean groundUpContinuous = in.readBoolean();
+        int primaryBitMask = in.readUnsignedShort();
+        if (!groundUpContinuous) {
+            // Only replaces some sections of the chunk
+            Chunk chunk = chunks.get(key);
+            if (chunk != null) {
+                chunk.setSections(primaryBitMask, copy(data));
+            }
+        } else if (primaryBitMask == 0) {
+            unloadChunk(key);
+        } else {
+            unloadChunk(key);
+            chunks.put(key, new Chunk(copy(data), null));
+        }
+    }
+
+    private void updateChunkBulk(ByteBuf in, ByteBuf data) {
+        in.readBoolean();
+        int count = readVarInt(in);
+        if (count < 0 || count > in.readableBytes() / 10) {
+            // Each chunk takes 10 bytes, don't allocate the keys for a malformed count
+            throw new IndexOutOfBoundsException("Invalid chunk count: " + count);
+        }
+        ChunkBulk bulk = new ChunkBulk(copy(data), new long[count]);
+        for (int i = 0; i < count; i++) {
+            long key = chunkKey(in.readInt(), in.readInt());
+            in.readUnsignedShort();
+            bulk.keys[i] = key;
+            unloadChunk(key);
+            chunks.put(key, new Chunk(null, bulk));
+        }
+        bulk.loaded = count;
+    }
+
+    private void unloadChunk(long key) {
+        Chunk chunk = chunks.remove(key);
+        if (chunk != null && chunk.bulk != null) {
+            chunk.bulk.loaded--;
+        }
+    }
+
+    /**
+     * Return the loaded chunk containing the specified block.
+     * @param position The position of the block as encoded in packets
+     * @return The chunk or {@code null} if it isn't loaded
+     */
+    private Chunk getChunk(long position) {
+        return chunks.get(chunkKey((int) (position >> 38) >> 4, (int) (position << 38 >> 38) >> 4));
+    }
+
+    /**
+     * Split a multi block change packet into a block change packet per block.
+     * @param in The payload of the packet
+     */
+    private void updateBlocks(ByteBuf in) {
+        int chunkX = in.readInt();
+        int chunkZ = in.readInt();
+        Chunk chunk = chunks.get(chunkKey(chunkX, chunkZ));
+        if (chunk == null) {
+            return;
+        }
+        for (int i = readVarInt(in); i > 0; i--) {
+            int horizontal = in.readUnsignedByte();
+            int y = in.readUnsignedByte();
+            int blockState = readVarInt(in);
+            long x = chunkX * 16 + (horizontal >> 4);
+            long z = chunkZ * 16 + (horizontal & 0xf);
+            long position = (x & 0x3ffffff) << 38 | (long) y << 26 | z & 0x3ffffff;
+            byte[] packet = new byte[1 + 8 + 5];
+            packet[0] = BLOCK_CHANGE;
+            setInt(packet, 1, (int) (position >> 32));
+            setInt(packet, 5, (int) position);
+            int length = AbstractRecorder.writeVar(packet, 9, blockState);
+            chunk.setBlock(position, Arrays.copyOf(packet, length));
+        }
+    }
+
+    /**
+     * Keep the latest value of each index of an entity metadata packet.
+     * @param entity The entity
+     * @param in The payload of the packet after the entity id
+     */
+    private void updateMetadata(Entity entity, ByteBuf in) {
+        // Parse all values first, so a malformed packet doesn't change anything
+        Map<Integer, byte[]> values = new LinkedHashMap<Integer, byte[]>();
+        int item;
+        while ((item = in.readUnsignedByte()) != 0x7f) {
+            int start = in.readerIndex() - 1;
+            skipMetadataValue(in, item >> 5);
+            byte[] value = new byte[in.readerIndex() - start];
+            in.getBytes(start, value);
+            values.put(item & 0x1f, value);
+        }
+        for (Map.Entry<Integer, byte[]> e : values.entrySet()) {
+            entity.metadata.remove(e.getKey());
+            entity.metadata.put(e.getKey(), e.getValue());
+        }
+    }
+
+    private static void skipMetadataValue(ByteBuf in, int type) {
+        switch (type) {
+            case 0:
+                in.skipBytes(1);
+                break;
+            case 1:
+                in.skipBytes(2);
+                break;
+            case 2:
+            case 3:
+                in.skipBytes(4);
+                break;
+            case 4:
+                in.skipBytes(readVarInt(in));
+                break;
+            case 5:
+                if (in.readShort() != -1) {
+                    in.skipBytes(3);
+                    int tag = in.readUnsignedByte();
+                    if (tag != 0) {
+                        in.skipBytes(in.readUnsignedShort());
+                        skipNbt(in, tag);
+                    }
+                }
+                break;
+            case 6:
+            case 7:
+                in.skipBytes(12);
+                break;
+            default:
+                throw new IndexOutOfBoundsException("Unknown metadata type: " + type);
+        }
+    }
+
+    private static void skipNbt(ByteBuf in, int tag) {
+        switch (tag) {
+            case 1:
+                in.skipBytes(1);
+                break;
+            case 2:
+                in.skipBytes(2);
+                break;
+            case 3:
+            case 5:
+                in.skipBytes(4);
+                break;
+            case 4:
+            case 6:
+                in.skipBytes(8);
+                break;
+            case 7:
+                in.skipBytes(in.readInt());
+                break;
+            case 8:
+                in.skipBytes(in.readUnsignedShort());
+                break;
+            case 9:
+                int type = in.readUnsignedByte();
+                for (int i = in.readInt(); i > 0; i--) {
+                    skipNbt(in, type);
+                }
+                break;
+            case 10:
+                while ((type = in.readUnsignedByte()) != 0) {
+                    in.skipBytes(in.readUnsignedShort());
+                    skipNbt(in, type);
+                }
+                break;
+            case 11:
+                in.skipBytes(in.readInt() * 4);
+                break;
+            default:
+                throw new IndexOutOfBoundsException("Unknown NBT tag: " + tag);
+        }
+    }
+
+    private void spawnEntity(int id, ByteBuf in, ByteBuf data) {
+        int entityId = readVarInt(in);
+        Entity entity = new Entity(copy(data));
+        switch (id) {
+            case SPAWN_PLAYER:
+                in.skipBytes(16);
+                entity.setPosition(in.readInt(), in.readInt(), in.readInt());
+                entity.yaw = in.readByte();
+                entity.pitch = in.readByte();
+                break;
+            case SPAWN_OBJECT:
+                in.skipBytes(1);
+                entity.setPosition(in.readInt(), in.readInt(), in.readInt());
+                entity.pitch = in.readByte();
+                entity.yaw = in.readByte();
+                break;
+            case SPAWN_MOB:
+                in.skipBytes(1);
+                entity.setPosition(in.readInt(), in.readInt(), in.readInt());
+                entity.yaw = in.readByte();
+                entity.pitch = in.readByte();
+                break;
+            case SPAWN_EXPERIENCE_ORB:
+                entity.setPosition(in.readInt(), in.readInt(), in.readInt());
+                break;
+            default:
+                // Paintings can't move
+                break;
+        }
+        entities.put(entityId, entity);
+    }
+
+    /**
+     * Write the packets restoring a state as frames of the specified file format version.
+     * Version 2 frames are preceded by the {@link CompactFrameInputStream#MAGIC}.
+     * @param out The output stream
+     * @param packets The packets returned by {@link #getPackets()}
+     * @param time Time of all packets in milliseconds since the start of the recording
+     * @param fileFormatVersion The file format version
+     * @throws IOException if an I/O error occurred
+     */
+    public static void writeTo(OutputStream out, List<byte[]> packets, long time, int fileFormatVersion)
+            throws IOException {
+        FrameWriter writer = new FrameWriter(out, time, fileFormatVersion);
+        for (byte[] packet : packets) {
+            writer.write(packet);
+        }
+    }
+
+    /**
+     * Return the packets restoring the current state in the order they have to be sent.
+     * Tracked packets are never modified, so they are not copied and the list stays valid when the state changes.
+     * @return The packets (packet id and payload)
+     */
+    public List<byte[]> getPackets() {
+        List<byte[]> packets = new ArrayList<byte[]>();
+        add(packets, loginSuccess);
+        add(packets, joinGame);
+        add(packets, respawn);
+        for (Map.Entry<Integer, byte[]> e : playerState.entrySet()) {
+            if (e.getKey() != PLAYER_POSITION) {
+                packets.add(e.getValue());
+            }
+        }
+        packets.addAll(gameState.values());
+        packets.addAll(inventorySlots.values());
+        packets.addAll(playerList);
+
+        // Chunks of bulks which have been unloaded or replaced since have to be unloaded after the bulk
+        Set<ChunkBulk> bulks = new LinkedHashSet<ChunkBulk>();
+        for (Chunk chunk : chunks.values()) {
+            if (chunk.bulk != null) {
+                bulks.add(chunk.bulk);
+            }
+        }
+        for (ChunkBulk bulk : bulks) {
+            packets.add(bulk.packet);
+            if (bulk.loaded < bulk.keys.length) {
+                for (long key : bulk.keys) {
+                    Chunk chunk = chunks.get(key);
+                    if (chunk == null || chunk.bulk != bulk) {
+                        byte[] unload = new byte[]{CHUNK_DATA, 0, 0, 0, 0, 0, 0, 0, 0, 1, 0, 0, 0};
+                        setInt(unload, 1, (int) (key >> 32));
+                        setInt(unload, 5, (int) key);
+                        packets.add(unload);
+                    }
+                }
+            }
+        }
+        for (Chunk chunk : chunks.values()) {
+            add(packets, chunk.packet);
+        }
+        for (Chunk chunk : chunks.values()) {
+            packets.addAll(chunk.sections.values());
+            packets.addAll(chunk.blocks.values());
+            packets.addAll(chunk.blockEntities.values());
+        }
+
+        byte[] teleport = new byte[1 + 5 + 15];
+        teleport[0] = ENTITY_TELEPORT;
+        for (Map.Entry<Integer, Entity> e : entities.entrySet()) {
+            Entity entity = e.getValue();
+            packets.add(entity.spawn);
+            if (entity.positioned) {
+                int length = AbstractRecorder.writeVar(teleport, 1, e.getKey());
+                length = setInt(teleport, length, entity.x);
+                length = setInt(teleport, length, entity.y);
+                length = setInt(teleport, length, entity.z);
+                teleport[length++] = entity.yaw;
+                teleport[length++] = entity.pitch;
+                teleport[length++] = (byte) (entity.onGround ? 1 : 0);
+                packets.add(Arrays.copyOf(teleport, length));
+            }
+            packets.addAll(entity.state.values());
+            if (!entity.metadata.isEmpty()) {
+                packets.add(getMetadataPacket(e.getKey(), entity));
+            }
+        }
+        // The vehicle or leash holder might be spawned after the entity attached to it
+        for (Entity entity : entities.values()) {
+            add(packets, entity.vehicle);
+            add(packets, entity.leash);
+        }
+
+        // Position the player once everything around it has been loaded
+        add(packets, playerState.get(PLAYER_POSITION));
+        return packets;
+    }
+
+    /**
+     * Build an entity metadata packet containing the latest value of each index.
+     * @param entityId Id of the entity
+     * @param entity The entity
+     * @return The packet
+     */
+    private static byte[] getMetadataPacket(int entityId, Entity entity) {
+        int length = 1 + 5 + 1;
+        for (byte[] value : entity.metadata.values()) {
+            length += value.length;
+        }
+        byte[] packet = new byte[length];
+        packet[0] = ENTITY_METADATA;
+        int offset = AbstractRecorder.writeVar(packet, 1, entityId);
+        for (byte[] value : entity.metadata.values()) {
+            System.arraycopy(value, 0, packet, offset, value.length);
+            offset += value.length;
+        }
+        packet[offset++] = 0x7f;
+        return Arrays.copyOf(packet, offset);
+    }
+
+    private static void add(List<byte[]> packets, byte[] packet) {
+        if (packet != null) {
+            packets.add(packet);
+        }
+    }
+
+    private static long chunkKey(int x, int z) {
+        return (long) x << 32 | z & 0xffffffffL;
+    }
+
+    private static int setInt(byte[] buf, int offset, int value) {
+        buf[offset] = (byte) (value >>> 24);
+        buf[offset + 1] = (byte) (value >>> 16);
+        buf[offset + 2] = (byte) (value >>> 8);
+        buf[offset + 3] = (byte) value;
+        return offset + 4;
+    }
+
+    private static byte[] copy(ByteBuf data) {
+        byte[] copy = new byte[data.readableBytes()];
+        data.getBytes(data.readerIndex(), copy);
+        return copy;
+    }
+
+    private static int readVarInt(ByteBuf in) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = in.readByte();
+            value |= (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0 && shift < 35);
+        return value;
+    }
+
+    /**
+     * A loaded chunk, either sent on its own or as part of a bulk.
+     */
+    private static class Chunk {
+        private final byte[] packet;
+        private final ChunkBulk bulk;
+
+        /**
+         * Chunk data packets replacing some sections of this chunk since it has been loaded, by primary bit mask.
+         */
+        private final Map<Integer, byte[]> sections = new LinkedHashMap<Integer, byte[]>();
+
+        /**
+         * Latest block change packet of each block since this chunk has been loaded, by position.
+         */
+        private final Map<Long, byte[]> blocks = new LinkedHashMap<Long, byte[]>();
+
+        /**
+         * Latest sign or block entity update of each block since this chunk has been loaded, by position.
+         */
+        private final Map<Long, byte[]> blockEntities = new LinkedHashMap<Long, byte[]>();
+
+        public Chunk(byte[] packet, ChunkBulk bulk) {
+            this.packet = packet;
+            this.bulk = bulk;
+        }
+
+        /**
+         * Replace some sections of this chunk. Earlier changes to them are superseded.
+         * @param primaryBitMask The sections
+         * @param packet The chunk data packet
+         */
+        public void setSections(int primaryBitMask, byte[] packet) {
+            for (Iterator<Integer> iter = sections.keySet().iterator(); iter.hasNext(); ) {
+                if ((iter.next() & ~primaryBitMask) == 0) {
+                    iter.remove();
+                }
+            }
+            sections.put(primaryBitMask, packet);
+            for (Iterator<Long> iter = blocks.keySet().iterator(); iter.hasNext(); ) {
+                if ((primaryBitMask & 1 << ((int) (iter.next() >> 26 & 0xfff) >> 4)) != 0) {
+                    iter.remove();
+                }
+            }
+        }
+
+        /**
+         * Change a block of this chunk. Earlier changes to it and its block entity are superseded.
+         * @param position The position of the block
+         * @param packet The block change packet
+         */
+        public void setBlock(long position, byte[] packet) {
+            // Re-insert it, so it stays in order with the sections and block entities
+            blocks.remove(position);
+            blocks.put(position, packet);
+            blockEntities.remove(position);
+        }
+    }
+
+    /**
+     * A map chunk bulk packet.
+     */
+    private static class ChunkBulk {
+        private final byte[] packet;
+        private final long[] keys;
+
+        /**
+         * Number of chunks of this bulk which are still loaded from it.
+         */
+        private int loaded;
+
+        public ChunkBulk(byte[] packet, long[] keys) {
+            this.packet = packet;
+            this.keys = keys;
+        }
+    }
+
+    /**
+     * A spawned entity.
+     */
+    private static class Entity {
+        private final byte[] spawn;
+
+        /**
+         * Latest packets of each kind changing the state of this entity.
+         * Keyed by packet id in the upper 32 bits and slot or effect id in the lower ones.
+         * Attach entity packets are kept separately as they refer to other entities.
+         */
+        private final Map<Long, byte[]> state = new LinkedHashMap<Long, byte[]>();
+
+        /**
+         * Latest metadata value (including its index and type) of each index since the entity has been spawned.
+         */
+        private final Map<Integer, byte[]> metadata = new LinkedHashMap<Integer, byte[]>();
+
+        /**
+         * Attach entity packets attaching this entity to its vehicle and leash holder, if any.
+         */
+        private byte[] vehicle;
+        private byte[] leash;
+
+        /**
+         * Whether the entity has a position in fixed-point coordinates which is tracked.
+         */
+        private boolean positioned;
+        private int x;
+        private int y;
+        private int z;
+        private byte yaw;
+        private byte pitch;
+        private boolean onGround;
+
+        public Entity(byte[] spawn) {
+            this.spawn = spawn;
+        }
+
+        public void setPosition(int x, int y, int z) {
+            this.positioned = true;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        public void move(byte dx, byte dy, byte dz) {
+            x += dx;
+            y += dy;
+            z += dz;
+        }
+    }
+
+    /**
+     * Writes packets as frames with the same time.
+     */
+    private static class FrameWriter {
+        private final OutputStream out;
+        private final long time;
+        private final int fileFormatVersion;
+        private final byte[] header = new byte[15];
+        private boolean first = true;
+
+        public FrameWriter(OutputStream out, long time, int fileFormatVersion) throws IOException {
+            this.out = out;
+            this.time = time;
+            this.fileFormatVersion = fileFormatVersion;
+            if (fileFormatVersion == AbstractRecorder.COMPACT_FILE_FORMAT_VERSION) {
+                out.write(CompactFrameInputStream.MAGIC);
+            }
+        }
+
+        public void write(byte[] packet) throws IOException {
+            long value;
+            if (fileFormatVersion == AbstractRecorder.FILE_FORMAT_VERSION) {
+                value = time << 1;
+            } else {
+                // The first time is absolute, all following ones don't differ from it
+                value = first ? time << 2 | 2 : 0;
+            }
+            first = false;
+            int headerLength = AbstractRecorder.writeVar(header, 0, value);
+            headerLength = AbstractRecorder.writeVar(header, headerLength, packet.length);
+            out.write(header, 0, headerLength);
+            out.write(packet);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a zip file whose entries are compressed by the caller.
+ * Unlike {@link java.util.zip.ZipOutputStream} this allows the same compressed data to be written to multiple
+ * zip files. All entries are deflated and followed by a data descriptor. Zip64 extensions are used when required.
+ */
+public class ZipWriter {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int VERSION = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+    private static final int METHOD_DEFLATED = 8;
+    private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private final OutputStream out;
+
+    /**
+     * Entries which have been completely written.
+     */
+    private final List<Entry> entries = new ArrayList<Entry>();
+
+    /**
+     * The entry currently being written or {@code null} if there is none.
+     */
+    private Entry current;
+
+    /**
+     * Number of bytes written to the output stream.
+     */
+    private long written;
+
+    private final byte[] buf = new byte[64];
+
+    public ZipWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    /**
+     * Return the underlying output stream.
+     * @return The output stream
+     */
+    public OutputStream getOutputStream() {
+        return out;
+    }
+
+    /**
+     * Return the number of bytes written to the output stream so far.
+     * @return The number of bytes
+     */
+    public long getSize() {
+        return written;
+    }
+
+    /**
+     * Start a new entry. Its compressed data has to be written using {@link #writeCompressed(byte[], int, int)}.
+     * @param name Name of the entry
+     * @throws IOException if an I/O error occurred
+     */
+    public void putNextEntry(String name) throws IOException {
+        Preconditions.checkState(current == null, "Previous entry has not been closed.");
+        current = new Entry(name, written, dosTime(System.currentTimeMillis()));
+        int i = writeInt(0, LOCAL_HEADER_SIGNATURE);
+        i = writeShort(i, VERSION);
+        i = writeShort(i, FLAG_DATA_DESCRIPTOR);
+        i = writeShort(i, METHOD_DEFLATED);
+        i = writeInt(i, current.dosTime);
+        i = writeInt(i, 0); // CRC, in data descriptor
+        i = writeInt(i, 0); // Compressed size, in data descriptor
+        i = writeInt(i, 0); // Uncompressed size, in data descriptor
+        i = writeShort(i, current.name.length);
+        i = writeShort(i, 0); // Extra field length
+        write(buf, 0, i);
+        write(current.name, 0, current.name.length);
+    }
+
+    /**
+     * Write compressed data of the current entry.
+     * @param b The data
+     * @param off Offset in the array
+     * @param len Number of bytes
+     * @throws IOException if an I/O error occurred
+     */
+    public void writeCompressed(byte[] b, int off, int len) throws IOException {
+        current.compressedSize += len;
+        write(b, off, len);
+    }
+
+    /**
+     * Close the current entry by writing its data descriptor.
+     * @param crc CRC-32 of the uncompressed data
+     * @param size Size of the uncompressed data
+     * @throws IOException if an I/O error occurred
+     */
+    public void closeEntry(long crc, long size) throws IOException {
+        Preconditions.checkState(current != null, "No entry to close.");
+        current.crc = crc;
+        current.size = size;
+        int i = writeInt(0, DATA_DESCRIPTOR_SIGNATURE);
+        i = writeInt(i, crc);
+        if (current.compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC) {
+            i = writeLong(i, current.compressedSize);
+            i = writeLong(i, size);
+        } else {
+            i = writeInt(i, current.compressedSize);
+            i = writeInt(i, size);
+        }
+        write(buf, 0, i);
+        entries.add(current);
+        current = null;
+    }
+
+    /**
+     * Compress the specified data and write it as a new entry.
+     * @param name Name of the entry
+     * @param data The uncompressed data
+     * @throws IOException if an I/O error occurred
+     */
+    public void writeEntry(String name, byte[] data) throws IOException {
+        putNextEntry(name);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                writeCompressed(buf, 0, deflater.deflate(buf));
+            }
+        } finally {
+            deflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        closeEntry(crc.getValue(), data.length);
+    }
+
+    /**
+     * Write the central directory. No more entries may be added afterwards.
+     * The underlying output stream is not closed.
+     * @throws IOException if an I/O error occurred
+     */
+    public void finish() throws IOException {
+        Preconditions.checkState(current == null, "Last entry has not been closed.");
+        long centralStart = written;
+        for (Entry e : entries) {
+            boolean zip64 = e.compressedSize >= ZIP64_MAGIC || e.size >= ZIP64_MAGIC || e.offset >= ZIP64_MAGIC;
+            int i = writeInt(0, CENTRAL_HEADER_SIGNATURE);
+            i = writeShort(i, zip64 ? VERSION_ZIP64 : VERSION); // Version made by
+            i = writeShort(i, zip64 ? VERSION_ZIP64 : VERSION); // Version needed to extract
+            i = writeShort(i, FLAG_DATA_DESCRIPTOR);
+            i = writeShort(i, METHOD_DEFLATED);
+            i = writeInt(i, e.dosTime);
+            i = writeInt(i, e.crc);
+            i = writeInt(i, zip64 ? ZIP64_MAGIC : e.compressedSize);
+            i = writeInt(i, zip64 ? ZIP64_MAGIC : e.size);
+            i = writeShort(i, e.name.length);
+            i = writeShort(i, zip64 ? 28 : 0); // Extra field length
+            i = writeShort(i, 0); // Comment length
+            i = writeShort(i, 0); // Disk number
+            i = writeShort(i, 0); // Internal attributes
+            i = writeInt(i, 0); // External attributes
+            i = writeInt(i, zip64 ? ZIP64_MAGIC : e.offset);
+            write(buf, 0, i);
+            write(e.name, 0, e.name.length);
+            if (zip64) {
+                i = writeShort(0, 0x0001); // Zip64 extended information
+                i = writeShort(i, 24);
+                i = writeLong(i, e.size);
+                i = writeLong(i, e.compressedSize);
+                i = writeLong(i, e.offset);
+                write(buf, 0, i);
+            }
+        }
+        long centralSize = written - centralStart;
+
+        if (centralStart >= ZIP64_MAGIC || centralSize >= ZIP64_MAGIC) {
+            long zip64EndStart = written;
+            int i = writeInt(0, ZIP64_END_SIGNATURE);
+            i = writeLong(i, 44); // Size of the remaining record
+            i = writeShort(i, VERSION_ZIP64);
+            i = writeShort(i, VERSION_ZIP64);
+            i = writeInt(i, 0); // Number of this disk
+            i = writeInt(i, 0); // Disk with the central directory
+            i = writeLong(i, entries.size());
+            i = writeLong(i, entries.size());
+            i = writeLong(i, centralSize);
+            i = writeLong(i, centralStart);
+            write(buf, 0, i);
+
+            i = writeInt(0, ZIP64_LOCATOR_SIGNATURE);
+            i = writeInt(i, 0); // Disk with the zip64 end record
+            i = writeLong(i, zip64EndStart);
+            i = writeInt(i, 1); // Total number of disks
+            write(buf, 0, i);
+        }
+
+        int i = writeInt(0, END_SIGNATURE);
+        i = writeShort(i, 0); // Number of this disk
+        i = writeShort(i, 0); // Disk with the central directory
+        i = writeShort(i, entries.size());
+        i = writeShort(i, entries.size());
+        i = writeInt(i, Math.min(centralSize, ZIP64_MAGIC));
+        i = writeInt(i, Math.min(centralStart, ZIP64_MAGIC));
+        i = writeShort(i, 0); // Comment length
+        write(buf, 0, i);
+    }
+
+    private void write(byte[] b, int off, int len) throws IOException {
+        out.write(b, off, len);
+        written += len;
+    }
+
+    private int writeShort(int i, int value) {
+        buf[i] = (byte) value;
+        buf[i + 1] = (byte) (value >>> 8);
+        return i + 2;
+    }
+
+    private int writeInt(int i, long value) {
+        buf[i] = (byte) value;
+        buf[i + 1] = (byte) (value >>> 8);
+        buf[i + 2] = (byte) (value >>> 16);
+        buf[i + 3] = (byte) (value >>> 24);
+        return i + 4;
+    }
+
+    private int writeLong(int i, long value) {
+        return writeInt(writeInt(i, value), value >>> 32);
+    }
+
+    /**
+     * Converts the specified time to MS-DOS date and time format.
+     * @param time Time in milliseconds since the epoch
+     * @return MS-DOS date in the upper and time in the lower 16 bits
+     */
+    private static long dosTime(long time) {
+        Calendar c = Calendar.getInstance();
+        c.setTimeInMillis(time);
+        int year = c.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (c.get(Calendar.MONTH) + 1) << 21 | c.get(Calendar.DAY_OF_MONTH) << 16
+                | c.get(Calendar.HOUR_OF_DAY) << 11 | c.get(Calendar.MINUTE) << 5 | c.get(Calendar.SECOND) >> 1;
+    }
+
+    private static class Entry {
+        private final byte[] name;
+        private final long offset;
+        private final long dosTime;
+        private long compressedSize;
+        private long size;
+        private long crc;
+
+        public Entry(String name, long offset, long dosTime) {
+            this.name = name.getBytes(Charsets.UTF_8);
+            this.offset = offset;
+            this.dosTime = dosTime;
+        }
+    }
+}
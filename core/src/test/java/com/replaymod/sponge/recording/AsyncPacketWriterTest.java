@@ -0,0 +1,235 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import io.netty.buffer.Unpooled;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Order, back pressure and failures of the {@link AsyncPacketWriter}.
+ * The writer tasks are run by the test itself, so it decides when the writer catches up.
+ */
+public class AsyncPacketWriterTest {
+
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Executor executor = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+    };
+
+    private TestRecorder recorder;
+    private RecorderMetrics metrics;
+    private ByteArrayOutputStream out;
+    private List<String> expected;
+
+    @Before
+    public void setUp() throws IOException {
+        recorder = new TestRecorder();
+        recorder.setBatching(0, 0);
+        metrics = new RecorderMetrics();
+        out = new ByteArrayOutputStream();
+        expected = new ArrayList<String>();
+    }
+
+    @After
+    public void tearDown() {
+        recorder.connectionClosed();
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void enqueue(AsyncPacketWriter writer, int time, boolean written) throws IOException {
+        byte[] data = {0x21, (byte) time, (byte) (time >> 8)};
+        writer.enqueue(time, time % 3 == 0, Unpooled.wrappedBuffer(data));
+        if (written) {
+            expected.add(TestRecorder.toString(time, time % 3 == 0, Unpooled.wrappedBuffer(data)));
+        }
+    }
+
+    private void assertRecorded() throws IOException {
+        assertRecorded(out);
+    }
+
+    private void assertRecorded(OutputStream output) throws IOException {
+        recorder.endRecording(output, null);
+        assertEquals(expected, TestRecorder.read(new ReplayReader(new ByteArrayInputStream(out.toByteArray()))));
+    }
+
+    @Test
+    public void testOrder() throws IOException {
+        recorder.addRawOutput(out);
+        AsyncPacketWriter writer = new AsyncPacketWriter(recorder, metrics, executor, 1000, BackpressurePolicy.BLOCK);
+        for (int i = 0; i < 600; i++) {
+            enqueue(writer, i, true);
+            if (i % 100 == 0) {
+                runTasks();
+            }
+        }
+        assertEquals(599 % 100, writer.getQueueDepth());
+        runTasks();
+        assertEquals(0, writer.getQueueDepth());
+        assertRecorded();
+    }
+
+    @Test
+    public void testDrop() throws IOException {
+        recorder.addRawOutput(out);
+        AsyncPacketWriter writer = new AsyncPacketWriter(recorder, metrics, executor, 2, BackpressurePolicy.DROP);
+        enqueue(writer, 1, true);
+        enqueue(writer, 2, true);
+        enqueue(writer, 3, false);
+        enqueue(writer, 4, false);
+        runTasks();
+        enqueue(writer, 5, true);
+        runTasks();
+        assertEquals(2, metrics.getDroppedPackets());
+        assertRecorded();
+    }
+
+    @Test
+    public void testSpill() throws IOException {
+        final int[] depthOnFirstWrite = {-1};
+        final AsyncPacketWriter[] writer = new AsyncPacketWriter[1];
+        OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (depthOnFirstWrite[0] < 0) {
+                    depthOnFirstWrite[0] = writer[0].getQueueDepth();
+                }
+                out.write(b, off, len);
+            }
+        };
+        recorder.addRawOutput(output);
+        writer[0] = new AsyncPacketWriter(recorder, metrics, executor, 2, BackpressurePolicy.SPILL);
+        for (int i = 0; i < 6; i++) {
+            enqueue(writer[0], i, true);
+        }
+        // The packets beyond the capacity are only spilled by the writer
+        assertEquals(6, writer[0].getQueueDepth());
+        runTasks();
+        // Before writing, the writer has moved them to the spill file and taken the first packet
+        assertEquals(1, depthOnFirstWrite[0]);
+        assertEquals(0, writer[0].getQueueDepth());
+        assertEquals(0, metrics.getDroppedPackets());
+        assertRecorded(output);
+    }
+
+    @Test
+    public void testBlock() throws Exception {
+        recorder.addRawOutput(out);
+        final AsyncPacketWriter writer = new AsyncPacketWriter(recorder, metrics, executor, 1,
+                BackpressurePolicy.BLOCK);
+        enqueue(writer, 1, true);
+        expected.add(TestRecorder.toString(2, false, Unpooled.wrappedBuffer(new byte[]{0x21, 2, 0})));
+        final Throwable[] failure = new Throwable[1];
+        Thread networkThread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    enqueue(writer, 2, false);
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        networkThread.start();
+        while (networkThread.getState() != Thread.State.WAITING) {
+            assertTrue("Enqueue didn't block", networkThread.isAlive());
+            Thread.sleep(1);
+        }
+        runTasks();
+        networkThread.join(10000);
+        assertNull(failure[0]);
+        runTasks();
+        assertEquals(0, metrics.getDroppedPackets());
+        assertRecorded();
+    }
+
+    @Test
+    public void testShutdownDrainsQueue() throws IOException {
+        recorder.addRawOutput(out);
+        recorder.enableAsyncWriting(10000, BackpressurePolicy.BLOCK);
+        for (int i = 0; i < 5000; i++) {
+            expected.add(recorder.write(i, i % 2 == 0, new byte[]{0x21, (byte) i, (byte) (i >> 8)}));
+        }
+        // Ending the recording has to write everything still queued
+        assertRecorded();
+        assertEquals(0, recorder.getMetrics().getQueueDepth());
+    }
+
+    @Test
+    public void testFailure() throws IOException {
+        final RuntimeException exception = new IllegalStateException("Output broken");
+        recorder.addRawOutput(new OutputStream() {
+            @Override
+            public void write(int b) {
+                throw exception;
+            }
+        });
+        AsyncPacketWriter writer = new AsyncPacketWriter(recorder, metrics, executor, 10, BackpressurePolicy.BLOCK);
+        enqueue(writer, 1, false);
+        enqueue(writer, 2, false);
+        enqueue(writer, 3, false);
+        // Must neither escape the writer task nor be swallowed
+        runTasks();
+        assertEquals(exception, writer.getFailure());
+        assertEquals(0, writer.getQueueDepth());
+        assertEquals(2, metrics.getDroppedPackets());
+        try {
+            enqueue(writer, 4, false);
+            fail("Packet accepted by failed writer");
+        } catch (IOException e) {
+            assertEquals(exception, e.getCause());
+        }
+        assertNotNull(writer.getFailure());
+        // Flushing while ending the recording must not rethrow it
+        writer.flush();
+    }
+}
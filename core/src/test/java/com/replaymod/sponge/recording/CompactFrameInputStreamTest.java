@@ -0,0 +1,277 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Supplier;
+import com.google.common.io.ByteStreams;
+import io.netty.buffer.ByteBuf;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Round trip of packets through the frames of file format version 2 written by recorders and read by the
+ * {@link CompactFrameInputStream} and the {@link ReplayReader}.
+ */
+public class CompactFrameInputStreamTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestRecorder compact;
+    private TestRecorder plain;
+    private Random random;
+
+    /**
+     * Time of the last packet written by {@link #writePackets(int)}.
+     */
+    private long time;
+
+    @Before
+    public void setUp() {
+        compact = new TestRecorder();
+        compact.setFileFormatVersion(AbstractRecorder.COMPACT_FILE_FORMAT_VERSION);
+        plain = new TestRecorder();
+        random = new Random(0);
+    }
+
+    @After
+    public void tearDown() {
+        compact.connectionClosed();
+        plain.connectionClosed();
+    }
+
+    /**
+     * Write packets at increasing times with gaps of various sizes (including none at all) to both recorders.
+     * @param count Number of packets
+     * @return The packets as returned by {@link TestRecorder#read(ReplayReader)}
+     */
+    private List<String> writePackets(int count) throws IOException {
+        List<String> packets = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    break;
+                case 1:
+                    time += 1;
+                    break;
+                case 2:
+                    time += random.nextInt(100);
+                    break;
+                default:
+                    time += random.nextInt(100000);
+                    break;
+            }
+            byte[] data = new byte[1 + random.nextInt(300)];
+            random.nextBytes(data);
+            boolean fromServer = random.nextBoolean();
+            packets.add(compact.write(time, fromServer, data));
+            plain.write(time, fromServer, data);
+        }
+        return packets;
+    }
+
+    /**
+     * Return the length of the first frames of a version 1 recording.
+     * @param recording The recording
+     * @param count Number of frames
+     * @return Length of the frames in bytes
+     */
+    private static int getFramesLength(byte[] recording, int count) {
+        int index = 0;
+        for (int i = 0; i < count; i++) {
+            while ((recording[index++] & 0x80) != 0) {
+                // Time and direction
+            }
+            int length = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = recording[index++];
+                length |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            index += length;
+        }
+        return index;
+    }
+
+    private static byte[] toVersion1(byte[] recording) throws IOException {
+        return ByteStreams.toByteArray(new CompactFrameInputStream(new ByteArrayInputStream(recording)));
+    }
+
+    @Test
+    public void testRawOutput() throws IOException {
+        ByteArrayOutputStream compactOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+        compact.addRawOutput(compactOut);
+        plain.addRawOutput(plainOut);
+        List<String> packets = writePackets(5000);
+        compact.endRecording(compactOut, null);
+        plain.endRecording(plainOut, null);
+
+        byte[] recording = compactOut.toByteArray();
+        assertArrayEquals(CompactFrameInputStream.MAGIC, Arrays.copyOf(recording, CompactFrameInputStream.MAGIC.length));
+        assertTrue(recording.length < plainOut.size());
+        assertEquals(packets, TestRecorder.read(new ReplayReader(new ByteArrayInputStream(recording))));
+        assertArrayEquals(plainOut.toByteArray(), toVersion1(recording));
+    }
+
+    @Test
+    public void testSyncPoints() throws IOException {
+        compact.setKeyframeInterval(1000);
+        File file = folder.newFile("sync.mcpr");
+        OutputStream out = new FileOutputStream(file);
+        compact.addOutput(out);
+        List<String> packets = writePackets(5000);
+        compact.endRecording(out, new ReplayMetaData());
+
+        assertEquals(packets, TestRecorder.read(ReplayReader.open(file)));
+
+        // Each segment between two sync points starts with an absolute time
+        List<Collector> segments = ReplayReader.readParallel(file, ForkJoinPool.commonPool(), new Supplier<Collector>() {
+            @Override
+            public Collector get() {
+                return new Collector();
+            }
+        });
+        assertTrue(segments.size() > 1);
+        List<String> read = new ArrayList<String>();
+        for (Collector segment : segments) {
+            read.addAll(segment.packets);
+        }
+        assertEquals(packets, read);
+    }
+
+    @Test
+    public void testRotation() throws IOException {
+        final File directory = folder.newFolder("segments");
+        RotatingOutput out = compact.addRotatingOutput(new OutputFactory() {
+            @Override
+            public OutputStream createOutput(int segment) throws IOException {
+                return new FileOutputStream(new File(directory, segment + ".mcpr"));
+            }
+        }, 0, 100000);
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+        plain.addRawOutput(plainOut);
+        List<String> packets = writePackets(5000);
+        compact.endRecording(out, new ReplayMetaData());
+        plain.endRecording(plainOut, null);
+
+        // Every segment is a version 2 recording of its own starting with an absolute time,
+        // followed by the packets after those seeding it with the state of the world
+        assertTrue(out.getSegment() > 0);
+        List<String> read = new ArrayList<String>();
+        ByteArrayOutputStream converted = new ByteArrayOutputStream();
+        for (int i = 0; i <= out.getSegment(); i++) {
+            ZipFile zip = new ZipFile(new File(directory, i + ".mcpr"));
+            try {
+                byte[] recording = ByteStreams.toByteArray(zip.getInputStream(zip.getEntry("recording.tmcpr")));
+                JSONObject metaData = (JSONObject) JSONValue.parse(new String(ByteStreams.toByteArray(
+                        zip.getInputStream(zip.getEntry("metaData.json"))), StandardCharsets.UTF_8));
+                int seedPackets = ((Number) metaData.get(AbstractRecorder.SEED_PACKETS_KEY)).intValue();
+                List<String> segmentPackets = TestRecorder.read(new ReplayReader(new ByteArrayInputStream(recording)));
+                read.addAll(segmentPackets.subList(seedPackets, segmentPackets.size()));
+                byte[] version1 = toVersion1(recording);
+                int seedLength = getFramesLength(version1, seedPackets);
+                converted.write(version1, seedLength, version1.length - seedLength);
+            } finally {
+                zip.close();
+            }
+        }
+        assertEquals(packets, read);
+        assertArrayEquals(plainOut.toByteArray(), converted.toByteArray());
+    }
+
+    @Test
+    public void testHistorySeeding() throws IOException {
+        compact.enableHistory(1 << 20, 1 << 20, false);
+        plain.enableHistory(1 << 20, 1 << 20, false);
+        List<String> packets = writePackets(1000);
+
+        ByteArrayOutputStream compactOut = new ByteArrayOutputStream();
+        ByteArrayOutputStream plainOut = new ByteArrayOutputStream();
+        compact.addRawOutput(compactOut);
+        plain.addRawOutput(plainOut);
+        packets.addAll(writePackets(1000));
+        compact.endRecording(compactOut, null);
+        plain.endRecording(plainOut, null);
+
+        byte[] recording = compactOut.toByteArray();
+        assertEquals(packets, TestRecorder.read(new ReplayReader(new ByteArrayInputStream(recording))));
+        assertArrayEquals(plainOut.toByteArray(), toVersion1(recording));
+    }
+
+    @Test
+    public void testHistorySeedingWithGap() throws IOException {
+        compact.enableHistory(4096, 8192, false);
+        List<String> packets = writePackets(1000);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        compact.addRawOutput(out);
+        List<String> later = writePackets(1000);
+        compact.endRecording(out, null);
+
+        // Packets dropped from the history are missing, the times of all others are still correct
+        List<String> read = TestRecorder.read(new ReplayReader(new ByteArrayInputStream(out.toByteArray())));
+        assertTrue(read.size() < packets.size() + later.size());
+        assertEquals(later, read.subList(read.size() - later.size(), read.size()));
+        int next = 0;
+        for (String packet : read.subList(0, read.size() - later.size())) {
+            int index = packets.subList(next, packets.size()).indexOf(packet);
+            assertTrue(index >= 0);
+            next += index + 1;
+        }
+    }
+
+    /**
+     * Collects the packets of a segment read in parallel.
+     */
+    private static class Collector implements PacketHandler {
+        private final List<String> packets = new ArrayList<String>();
+
+        @Override
+        public void handle(long time, boolean fromServer, ByteBuf data) throws IOException {
+            packets.add(TestRecorder.toString(time, fromServer, data));
+        }
+    }
+}
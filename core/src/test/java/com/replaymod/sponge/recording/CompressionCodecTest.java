@@ -0,0 +1,170 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Raw deflate data produced by the built-in {@link CompressionCodec}s.
+ */
+public class CompressionCodecTest {
+
+    private final Random random = new Random(0);
+
+    @Test
+    public void testDeflate() throws IOException, DataFormatException {
+        testCodec(new DeflateCodec(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY));
+    }
+
+    @Test
+    public void testParallelDeflate() throws IOException, DataFormatException {
+        testCodec(new ParallelDeflateCodec(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY, 4,
+                ParallelDeflateCodec.DEFAULT_BLOCK_SIZE));
+    }
+
+    @Test
+    public void testParallelDeflateSmallBlocks() throws IOException, DataFormatException {
+        // Blocks smaller than the window are compressed using the data of several preceding blocks as dictionary
+        testCodec(new ParallelDeflateCodec(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY, 2, 1000));
+    }
+
+    private void testCodec(CompressionCodec codec) throws IOException, DataFormatException {
+        byte[] data = generate(1024 * 1024);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = codec.compress(compressed);
+        int written = 0;
+        while (written < data.length) {
+            int length = Math.min(random.nextInt(20000), data.length - written);
+            out.write(data, written, length);
+            written += length;
+            if (random.nextInt(10) == 0) {
+                // All data written so far can be decompressed after a flush
+                out.flush();
+                assertArrayEquals(Arrays.copyOf(data, written), inflate(compressed.toByteArray(), false));
+            }
+        }
+        out.close();
+        out.close();
+        assertArrayEquals(data, inflate(compressed.toByteArray(), true));
+        assertTrue("Data not compressed", compressed.size() < data.length / 2);
+    }
+
+    @Test
+    public void testDeflateFullFlush() throws IOException, DataFormatException {
+        testFullFlush(new DeflateCodec(Deflater.DEFAULT_COMPRESSION, Deflater.DEFAULT_STRATEGY));
+    }
+
+    @Test
+    public void testParallelDeflateFullFlush() throws IOException, DataFormatException {
+        testFullFlush(new ParallelDeflateCodec(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY, 2, 1000));
+    }
+
+    private void testFullFlush(CompressionCodec codec) throws IOException, DataFormatException {
+        byte[] data = generate(256 * 1024);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        OutputStream out = codec.compress(compressed);
+        assertTrue(out instanceof FullFlushable);
+        List<int[]> syncPoints = new ArrayList<int[]>();
+        int written = 0;
+        while (written < data.length) {
+            int length = Math.min(random.nextInt(20000), data.length - written);
+            out.write(data, written, length);
+            written += length;
+            if (random.nextInt(4) == 0) {
+                ((FullFlushable) out).fullFlush();
+                syncPoints.add(new int[]{written, compressed.size()});
+            } else if (random.nextInt(4) == 0) {
+                out.flush();
+            }
+        }
+        out.close();
+        assertTrue(syncPoints.size() > 1);
+
+        // Decompression can start at any sync point without the preceding data
+        byte[] bytes = compressed.toByteArray();
+        for (int[] syncPoint : syncPoints) {
+            assertArrayEquals(Arrays.copyOfRange(data, syncPoint[0], data.length),
+                    inflate(Arrays.copyOfRange(bytes, syncPoint[1], bytes.length), true));
+        }
+    }
+
+    /**
+     * Generate compressible data: random bytes and runs copied from up to 40000 bytes before.
+     * @param length Length of the data
+     * @return The data
+     */
+    private byte[] generate(int length) {
+        byte[] data = new byte[length];
+        int i = 0;
+        while (i < length) {
+            if (i > 0 && random.nextInt(4) != 0) {
+                int from = i - 1 - random.nextInt(Math.min(i, 40000));
+                int run = Math.min(8 + random.nextInt(56), length - i);
+                for (int j = 0; j < run; j++) {
+                    data[i++] = data[from + j];
+                }
+            } else {
+                data[i++] = (byte) random.nextInt(256);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * Decompress raw deflate data.
+     * @param compressed The compressed data
+     * @param finished Whether the deflate stream has to be terminated at the end of the data
+     * @return The decompressed data
+     */
+    static byte[] inflate(byte[] compressed, boolean finished) throws DataFormatException {
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(compressed);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int length;
+            while ((length = inflater.inflate(buf)) > 0) {
+                out.write(buf, 0, length);
+            }
+            assertEquals("Deflate stream terminated", finished, inflater.finished());
+            if (finished) {
+                assertEquals("Trailing data", 0, inflater.getRemaining());
+            }
+            return out.toByteArray();
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Recordings written to deduplicated outputs and read back from their blob store.
+ */
+public class DeduplicatedOutputTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(0);
+
+    private byte[] packet(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static List<String> read(byte[] recording, BlobStore store) throws IOException {
+        return TestRecorder.read(new ReplayReader(new DeduplicatedInputStream(
+                new ByteArrayInputStream(recording), store)));
+    }
+
+    private static long getStoreSize(File directory) {
+        long size = 0;
+        for (int i = 0; i < BlobStore.SHARDS; i++) {
+            size += BlobStore.getPackFile(directory, i).length();
+        }
+        return size;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        File blobs = folder.newFolder();
+        byte[] chunk = packet(8000);
+        byte[] otherChunk = packet(5000);
+        byte[] small = packet(BlobStore.MIN_BLOB_SIZE - 1);
+
+        List<ByteArrayOutputStream> outputs = new ArrayList<ByteArrayOutputStream>();
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 2; i++) {
+            TestRecorder recorder = new TestRecorder();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            recorder.addDeduplicatedOutput(out, blobs);
+            List<String> packets = new ArrayList<String>();
+            packets.add(recorder.write(0, true, chunk));
+            packets.add(recorder.write(10, true, small));
+            // Client bound packets are never deduplicated
+            packets.add(recorder.write(20, false, otherChunk));
+            packets.add(recorder.write(30, true, otherChunk));
+            packets.add(recorder.write(40, true, chunk));
+            recorder.endRecording(out, null);
+            recorder.connectionClosed();
+            outputs.add(out);
+            if (i == 0) {
+                expected = packets;
+            } else {
+                assertEquals(expected, packets);
+            }
+        }
+
+        // Each of the large packets is stored once for both recordings
+        long blobSize = 2 * (BlobStore.HASH_LENGTH + 4) + chunk.length + otherChunk.length;
+        assertEquals(blobSize, getStoreSize(blobs));
+        for (ByteArrayOutputStream out : outputs) {
+            assertTrue(out.size() < chunk.length + 2 * otherChunk.length);
+        }
+
+        // All shared stores have been closed, so this reads the index from the pack files
+        BlobStore store = new BlobStore(blobs);
+        try {
+            for (ByteArrayOutputStream out : outputs) {
+                assertEquals(expected, read(out.toByteArray(), store));
+            }
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testStoreFull() throws IOException {
+        File blobs = folder.newFolder();
+        byte[] chunk = packet(8000);
+        TestRecorder recorder = new TestRecorder();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        System.setProperty("spongerecording.blobs.limit", "0");
+        try {
+            recorder.addDeduplicatedOutput(out, blobs);
+        } finally {
+            System.clearProperty("spongerecording.blobs.limit");
+        }
+        List<String> expected = new ArrayList<String>();
+        expected.add(recorder.write(0, true, chunk));
+        expected.add(recorder.write(10, true, chunk));
+        recorder.endRecording(out, null);
+        recorder.connectionClosed();
+
+        // Written inline instead
+        assertEquals(0, getStoreSize(blobs));
+        BlobStore store = new BlobStore(blobs);
+        try {
+            assertEquals(expected, read(out.toByteArray(), store));
+        } finally {
+            store.close();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Packets dropped by the {@link PacketFilter} set on a recorder.
+ */
+public class PacketFilterTest {
+
+    private TestRecorder recorder;
+    private ByteArrayOutputStream out;
+    private List<String> expected;
+
+    @Before
+    public void setUp() throws IOException {
+        recorder = new TestRecorder();
+        out = new ByteArrayOutputStream();
+        recorder.addRawOutput(out);
+        expected = new ArrayList<String>();
+    }
+
+    @After
+    public void tearDown() {
+        recorder.connectionClosed();
+    }
+
+    private void write(boolean fromServer, boolean kept, int... data) throws IOException {
+        byte[] bytes = new byte[data.length];
+        for (int i = 0; i < data.length; i++) {
+            bytes[i] = (byte) data[i];
+        }
+        String packet = recorder.write(0, fromServer, bytes);
+        if (kept) {
+            expected.add(packet);
+        }
+    }
+
+    private void assertRecorded() throws IOException {
+        recorder.endRecording(out, null);
+        assertEquals(expected, TestRecorder.read(new ReplayReader(new ByteArrayInputStream(out.toByteArray()))));
+    }
+
+    @Test
+    public void testMaxSize() throws IOException {
+        recorder.setFilter(PacketFilter.builder().maxSize(true, 3, 0x21).build());
+        write(true, true, 0x21, 1, 2);
+        write(true, false, 0x21, 1, 2, 3);
+        write(true, true, 0x21);
+        write(false, true, 0x21, 1, 2, 3);
+        write(true, true, 0x22, 1, 2, 3);
+        assertRecorded();
+    }
+
+    @Test
+    public void testSampleRate() throws IOException {
+        recorder.setFilter(PacketFilter.builder().sample(true, 3, 0x29).drop(false, 0x00).build());
+        for (int i = 0; i < 10; i++) {
+            write(true, i % 3 == 0, 0x29, i);
+            write(true, true, 0x28, i);
+            write(false, false, 0x00, i);
+        }
+        assertRecorded();
+    }
+
+    @Test
+    public void testSampleRateRestartsWithNewFilter() throws IOException {
+        PacketFilter filter = PacketFilter.builder().sample(true, 2, 0x29).build();
+        recorder.setFilter(filter);
+        write(true, true, 0x29, 0);
+        recorder.setFilter(filter);
+        write(true, true, 0x29, 1);
+        write(true, false, 0x29, 2);
+        recorder.setFilter(null);
+        write(true, true, 0x29, 3);
+        assertRecorded();
+    }
+
+    @Test
+    public void testTwoByteIds() throws IOException {
+        recorder.setFilter(PacketFilter.builder().drop(true, 0x80, 0xff).maxSize(true, 3, 0x81).build());
+        write(true, false, 0x80, 0x01, 5);
+        write(true, false, 0xff, 0x01);
+        write(true, true, 0x81, 0x01, 5);
+        write(true, false, 0x81, 0x01, 5, 6);
+        // Same first byte, but ids above the maximum are always kept
+        write(true, true, 0x80, 0x02, 5);
+        // Same byte as a single byte id, but malformed
+        write(true, true, 0x80);
+        write(true, true, 0x00, 0x01);
+        write(false, true, 0x80, 0x01);
+        assertRecorded();
+    }
+
+    @Test
+    public void testLoginPhase() throws IOException {
+        recorder.setFilter(PacketFilter.builder().dropAll(true).build());
+        recorder.setLoginPhase(true);
+        write(true, true, 0x02, 1);
+        recorder.setLoginPhase(false);
+        write(true, false, 0x02, 1);
+        assertRecorded();
+    }
+}
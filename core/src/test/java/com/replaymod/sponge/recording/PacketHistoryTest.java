@@ -0,0 +1,161 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Packets kept by a {@link PacketHistory} in its login and ring buffer.
+ */
+public class PacketHistoryTest {
+
+    private PacketHistory history;
+
+    @After
+    public void tearDown() {
+        if (history != null) {
+            history.release();
+        }
+    }
+
+    private String add(long time, boolean fromServer, int... data) {
+        ByteBuf buf = Unpooled.buffer(data.length);
+        for (int b : data) {
+            buf.writeByte(b);
+        }
+        history.add(time, fromServer, buf);
+        assertEquals("Reader index modified", 0, buf.readerIndex());
+        return TestRecorder.toString(time, fromServer, buf);
+    }
+
+    private void assertHistory(List<String> expected) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        history.writeTo(out);
+        assertEquals(expected, TestRecorder.read(new ReplayReader(new ByteArrayInputStream(out.toByteArray()))));
+
+        final List<String> packets = new ArrayList<String>();
+        history.forEach(new PacketHandler() {
+            @Override
+            public void handle(long time, boolean fromServer, ByteBuf data) throws IOException {
+                packets.add(TestRecorder.toString(time, fromServer, data));
+            }
+        });
+        assertEquals(expected, packets);
+    }
+
+    @Test
+    public void testLogin() throws IOException {
+        history = new PacketHistory(UnpooledByteBufAllocator.DEFAULT, null, 12, 8);
+        List<String> expected = new ArrayList<String>();
+        expected.add(add(0, true, 0x02, 1, 2, 3)); // 6 bytes
+        expected.add(add(1, false, 0x01, 1, 2, 3)); // 6 bytes, login buffer is full
+        add(2, true, 0x21, 1, 2); // 5 bytes, dropped from the ring buffer
+        expected.add(add(3, true, 0x21, 1)); // 4 bytes
+        expected.add(add(4, true, 0x23)); // 3 bytes
+        assertEquals(19, history.getSize());
+        assertEquals(20, history.getCapacity());
+        assertHistory(expected);
+    }
+
+    @Test
+    public void testLoginComplete() throws IOException {
+        history = new PacketHistory(UnpooledByteBufAllocator.DEFAULT, null, 10, 16);
+        List<String> expected = new ArrayList<String>();
+        expected.add(add(0, true, 0x02, 1, 2, 3, 4, 5)); // 8 bytes
+        expected.add(add(1, true, 0x01, 1)); // 4 bytes, doesn't fit anymore
+        expected.add(add(2, true, 0x21)); // 3 bytes, would fit but the login buffer is complete
+        assertEquals(15, history.getSize());
+        assertHistory(expected);
+    }
+
+    @Test
+    public void testRingWrap() throws IOException {
+        history = new PacketHistory(UnpooledByteBufAllocator.DEFAULT, null, 0, 17);
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            // Frames of six bytes start at every position of the buffer, so their headers wrap around its end
+            String packet = add(60 + i, i % 3 == 0, 0x23, i, i);
+            expected.add(packet);
+            if (expected.size() > 2) {
+                expected.remove(0);
+            }
+        }
+        assertEquals(12, history.getSize());
+        assertHistory(expected);
+    }
+
+    @Test
+    public void testDropOldest() throws IOException {
+        history = new PacketHistory(UnpooledByteBufAllocator.DEFAULT, null, 0, 16);
+        add(200, true, 0x21, 1, 2, 3); // 7 bytes
+        String second = add(0, true, 0x23); // 3 bytes
+        String third = add(1, false, 0x23, 1, 2, 3); // 6 bytes, fills the buffer
+        assertEquals(16, history.getSize());
+        String fourth = add(300, true, 0x23, 1); // 5 bytes, first packet is dropped
+        List<String> expected = new ArrayList<String>();
+        expected.add(second);
+        expected.add(third);
+        expected.add(fourth);
+        assertEquals(14, history.getSize());
+        assertHistory(expected);
+
+        String large = add(2, true, 0x21, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13); // 16 bytes, drops all others
+        expected.clear();
+        expected.add(large);
+        assertEquals(16, history.getSize());
+        assertHistory(expected);
+    }
+
+    @Test
+    public void testTooLarge() throws IOException {
+        history = new PacketHistory(UnpooledByteBufAllocator.DEFAULT, null, 0, 8);
+        List<String> expected = new ArrayList<String>();
+        expected.add(add(0, true, 0x23, 1)); // 4 bytes
+        add(1, true, 0x21, 1, 2, 3, 4, 5, 6, 7); // 10 bytes, larger than the ring buffer
+        expected.add(add(2, true, 0x23, 2)); // 4 bytes
+        assertEquals(8, history.getSize());
+        assertHistory(expected);
+    }
+
+    @Test
+    public void testMemory() {
+        RecorderMetrics metrics = new RecorderMetrics();
+        long used = RecordingMemory.getInstance().getUsed();
+        history = new PacketHistory(UnpooledByteBufAllocator.DEFAULT, metrics, 100, 200);
+        assertEquals(used + 300, RecordingMemory.getInstance().getUsed());
+        assertEquals(300, metrics.getStagingMemory());
+        history.release();
+        history = null;
+        assertEquals(used, RecordingMemory.getInstance().getUsed());
+        assertEquals(0, metrics.getStagingMemory());
+    }
+}
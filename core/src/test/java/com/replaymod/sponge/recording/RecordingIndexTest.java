@@ -0,0 +1,170 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.base.Supplier;
+import io.netty.buffer.ByteBuf;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Sync points stored in the {@link RecordingIndex} of a replay file.
+ */
+public class RecordingIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testFind() {
+        RecordingIndex index = new RecordingIndex();
+        assertEquals(-1, index.find(100));
+        for (int i = 1; i <= 100; i++) {
+            index.add(i * 10, i * 1000, i * 100);
+        }
+        assertEquals(100, index.size());
+        assertEquals(-1, index.find(9));
+        assertEquals(0, index.find(10));
+        assertEquals(0, index.find(19));
+        assertEquals(49, index.find(500));
+        assertEquals(99, index.find(1000));
+        assertEquals(99, index.find(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testAdd() {
+        RecordingIndex index = new RecordingIndex();
+        index.add(10, 1000, 100);
+        // A sync point at the same offset replaces the last one
+        index.add(20, 1000, 110);
+        assertEquals(1, index.size());
+        assertEquals(20, index.getTime(0));
+        assertEquals(110, index.getCompressedOffset(0));
+        try {
+            index.add(30, 999, 120);
+            fail("Decreasing offset accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testSerialization() throws IOException {
+        RecordingIndex index = new RecordingIndex();
+        for (int i = 0; i < 20; i++) {
+            index.add(i * 10, i * 1000, i * 100);
+        }
+        byte[] bytes = index.toByteArray();
+        assertEquals(8 + 20 * 24, bytes.length);
+        RecordingIndex read = RecordingIndex.read(new ByteArrayInputStream(bytes));
+        assertEquals(index.size(), read.size());
+        for (int i = 0; i < index.size(); i++) {
+            assertEquals(index.getTime(i), read.getTime(i));
+            assertEquals(index.getOffset(i), read.getOffset(i));
+            assertEquals(index.getCompressedOffset(i), read.getCompressedOffset(i));
+        }
+
+        bytes[3] = 2;
+        try {
+            RecordingIndex.read(new ByteArrayInputStream(bytes));
+            fail("Unsupported version accepted");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void testParallelDeflate() throws IOException {
+        TestRecorder recorder = new TestRecorder();
+        recorder.setCompression(new ParallelDeflateCodec(Deflater.BEST_SPEED, Deflater.DEFAULT_STRATEGY, 2, 1000));
+        recorder.setKeyframeInterval(1000);
+        File file = folder.newFile("parallel.mcpr");
+        OutputStream out = new FileOutputStream(file);
+        recorder.addOutput(out);
+        Random random = new Random(0);
+        List<String> packets = new ArrayList<String>();
+        for (int i = 0; i < 5000; i++) {
+            byte[] data = new byte[1 + random.nextInt(50)];
+            data[0] = 0x23;
+            packets.add(recorder.write(i * 5, true, data));
+        }
+        recorder.endRecording(out, recorder.getMetaData());
+        recorder.connectionClosed();
+
+        RecordingIndex index;
+        ZipFile zip = new ZipFile(file);
+        try {
+            InputStream in = zip.getInputStream(zip.getEntry(RecordingIndex.ENTRY_NAME));
+            try {
+                index = RecordingIndex.read(in);
+            } finally {
+                in.close();
+            }
+        } finally {
+            zip.close();
+        }
+        assertTrue(index.size() >= 20);
+        for (int i = 1; i < index.size(); i++) {
+            assertTrue(index.getTime(i) >= index.getTime(i - 1) + 1000);
+            assertTrue(index.getOffset(i) > index.getOffset(i - 1));
+            assertTrue(index.getCompressedOffset(i) > index.getCompressedOffset(i - 1));
+        }
+
+        // Each segment between two sync points is decompressed on its own
+        List<Collector> segments = ReplayReader.readParallel(file, ForkJoinPool.commonPool(),
+                new Supplier<Collector>() {
+                    @Override
+                    public Collector get() {
+                        return new Collector();
+                    }
+                });
+        assertEquals(index.size() + 1, segments.size());
+        List<String> read = new ArrayList<String>();
+        for (Collector segment : segments) {
+            read.addAll(segment.packets);
+        }
+        assertEquals(packets, read);
+    }
+
+    private static class Collector implements PacketHandler {
+        private final List<String> packets = new ArrayList<String>();
+
+        @Override
+        public void handle(long time, boolean fromServer, ByteBuf data) throws IOException {
+            packets.add(TestRecorder.toString(time, fromServer, data));
+        }
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import io.netty.buffer.AbstractByteBufAllocator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.UnpooledByteBufAllocator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Limit and accounting of the {@link RecordingMemory}.
+ */
+public class RecordingMemoryTest {
+
+    private final RecordingMemory memory = new RecordingMemory(100);
+    private final RecorderMetrics metrics = new RecorderMetrics();
+
+    @Test
+    public void testLimit() {
+        ByteBuf first = memory.allocate(UnpooledByteBufAllocator.DEFAULT, 60, metrics);
+        assertNotNull(first);
+        assertEquals(60, first.capacity());
+        assertEquals(60, first.maxCapacity());
+        assertNull(memory.allocate(UnpooledByteBufAllocator.DEFAULT, 41, metrics));
+        assertEquals(60, memory.getUsed());
+
+        ByteBuf second = memory.allocate(UnpooledByteBufAllocator.DEFAULT, 40, metrics);
+        assertNotNull(second);
+        assertEquals(100, memory.getUsed());
+        assertNull(memory.allocate(UnpooledByteBufAllocator.DEFAULT, 1, metrics));
+
+        memory.release(first, metrics);
+        memory.release(second, metrics);
+    }
+
+    @Test
+    public void testRelease() {
+        ByteBuf direct = memory.allocate(UnpooledByteBufAllocator.DEFAULT, 70, metrics);
+        ByteBuf heap = memory.allocate(UnpooledByteBufAllocator.DEFAULT, 30, false, null);
+        assertTrue(heap.hasArray());
+        assertEquals(100, memory.getUsed());
+        assertEquals(70, metrics.getStagingMemory());
+
+        memory.release(direct, metrics);
+        assertEquals(0, direct.refCnt());
+        assertEquals(30, memory.getUsed());
+        assertEquals(0, metrics.getStagingMemory());
+
+        // Released memory can be allocated again
+        direct = memory.allocate(UnpooledByteBufAllocator.DEFAULT, 70, metrics);
+        assertNotNull(direct);
+        assertEquals(100, memory.getUsed());
+
+        memory.release(direct, metrics);
+        memory.release(heap, null);
+        assertEquals(0, heap.refCnt());
+        assertEquals(0, memory.getUsed());
+        assertEquals(0, metrics.getStagingMemory());
+    }
+
+    @Test
+    public void testAllocationFailure() {
+        ByteBufAllocator failing = new AbstractByteBufAllocator() {
+            @Override
+            protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+                throw new OutOfMemoryError();
+            }
+
+            @Override
+            protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+                throw new OutOfMemoryError();
+            }
+
+            @Override
+            public boolean isDirectBufferPooled() {
+                return false;
+            }
+        };
+        try {
+            memory.allocate(failing, 50, metrics);
+            fail("Allocation did not fail");
+        } catch (OutOfMemoryError expected) {
+        }
+        assertEquals(0, memory.getUsed());
+        assertEquals(0, metrics.getStagingMemory());
+    }
+}
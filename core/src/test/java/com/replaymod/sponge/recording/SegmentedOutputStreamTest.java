@@ -0,0 +1,116 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Data of a {@link SegmentedOutputStream} which can be recovered after a crash.
+ * A crash is simulated by reading the segments while the stream is still open.
+ */
+public class SegmentedOutputStreamTest {
+
+    private static final int SEGMENT_DATA = 100;
+    private static final long SEGMENT_SIZE = SegmentedOutputStream.HEADER_SIZE + SEGMENT_DATA;
+    private static final long NEVER = 3600 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] data = new byte[1000];
+
+    {
+        new Random(0).nextBytes(data);
+    }
+
+    private static byte[] readCommitted(File directory) throws IOException {
+        InputStream in = new SegmentedInputStream(directory);
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void testRecoverCommitted() throws IOException {
+        File directory = folder.newFolder();
+        SegmentedOutputStream out = new SegmentedOutputStream(directory, SEGMENT_SIZE, NEVER);
+        try {
+            out.write(data, 0, 250);
+            out.flush();
+            // Continues in the partially committed segment and then in a new one
+            out.write(data, 250, 120);
+            assertArrayEquals(Arrays.copyOf(data, 250), readCommitted(directory));
+            out.flush();
+            assertArrayEquals(Arrays.copyOf(data, 370), readCommitted(directory));
+        } finally {
+            out.close();
+        }
+        assertArrayEquals(Arrays.copyOf(data, 370), readCommitted(directory));
+        assertEquals(SegmentedOutputStream.HEADER_SIZE + 70,
+                SegmentedOutputStream.getSegmentFile(directory, 3).length());
+    }
+
+    @Test
+    public void testBackgroundCheckpoint() throws Exception {
+        File directory = folder.newFolder();
+        SegmentedOutputStream out = new SegmentedOutputStream(directory, SEGMENT_SIZE, 10);
+        try {
+            out.write(data, 0, 150);
+            long deadline = System.currentTimeMillis() + 10000;
+            while (readCommitted(directory).length < 150 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertArrayEquals(Arrays.copyOf(data, 150), readCommitted(directory));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testSegmentCreatedBeforeCrash() throws IOException {
+        File directory = folder.newFolder();
+        SegmentedOutputStream out = new SegmentedOutputStream(directory, SEGMENT_SIZE, NEVER);
+        out.write(data, 0, 50);
+        out.close();
+        // Preallocated but none of it, not even the header, reached the disk
+        RandomAccessFile file = new RandomAccessFile(SegmentedOutputStream.getSegmentFile(directory, 1), "rw");
+        try {
+            file.setLength(SEGMENT_SIZE);
+        } finally {
+            file.close();
+        }
+        assertArrayEquals(Arrays.copyOf(data, 50), readCommitted(directory));
+    }
+}
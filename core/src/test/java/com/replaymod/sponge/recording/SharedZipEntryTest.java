@@ -0,0 +1,273 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.io.ByteStreams;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Zip files written by {@link ZipWriter}s which share the compressed data of a {@link SharedZipEntry}, read back by
+ * {@link ZipFile}.
+ */
+public class SharedZipEntryTest {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Random random = new Random(0);
+
+    @Test
+    public void testSharedEntry() throws IOException {
+        File[] files = {folder.newFile("a.zip"), folder.newFile("b.zip"), folder.newFile("c.zip")};
+        ZipWriter[] zips = new ZipWriter[files.length];
+        SharedZipEntry entry = new SharedZipEntry("recording.tmcpr", new DeflateCodec(6, 0));
+        for (int i = 0; i < files.length; i++) {
+            zips[i] = new ZipWriter(new SparseOutputStream(files[i]));
+            entry.addTarget(zips[i]);
+        }
+        byte[] data = randomData(1 << 20);
+        entry.write(data, 0, data.length / 2);
+        // The first zip file is closed early and only contains the first half
+        close(zips[0], entry);
+        for (int i = data.length / 2; i < data.length / 2 + 1000; i++) {
+            entry.write(data[i]);
+        }
+        entry.write(data, data.length / 2 + 1000, data.length / 2 - 1000);
+        close(zips[1], entry);
+        close(zips[2], entry);
+        assertTrue(entry.isClosed());
+
+        checkEntry(files[0], Arrays.copyOf(data, data.length / 2));
+        checkEntry(files[1], data);
+        checkEntry(files[2], data);
+    }
+
+    @Test
+    public void testZip64() throws IOException {
+        long paddingSize = (1L << 32) + 1000;
+        File[] files = {folder.newFile("a.zip"), folder.newFile("b.zip")};
+        ZipWriter[] zips = new ZipWriter[files.length];
+        SharedZipEntry entry = new SharedZipEntry("recording.tmcpr", new DeflateCodec(6, 0));
+        long paddingCrc = 0;
+        for (int i = 0; i < files.length; i++) {
+            zips[i] = new ZipWriter(new SparseOutputStream(files[i]));
+            paddingCrc = writePadding(zips[i], paddingSize);
+            entry.addTarget(zips[i]);
+        }
+        byte[] data = randomData(1 << 16);
+        entry.write(data);
+        for (ZipWriter zip : zips) {
+            close(zip, entry);
+            assertTrue(zip.getSize() > paddingSize);
+        }
+
+        for (File file : files) {
+            // The entry starts after 4 GiB and is only found through the zip64 records
+            checkEntry(file, data);
+            ZipFile zip = new ZipFile(file);
+            try {
+                ZipEntry padding = zip.getEntry("padding");
+                assertEquals(paddingSize, padding.getSize());
+                assertEquals(paddingCrc, padding.getCrc());
+            } finally {
+                zip.close();
+            }
+        }
+    }
+
+    private byte[] randomData(int length) {
+        // Compressible, but not too much
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (random.nextInt(16) == 0 ? random.nextInt() : i >> 4);
+        }
+        return data;
+    }
+
+    /**
+     * Close the shared entry in the specified zip file, add a second entry and finish the zip file.
+     */
+    private static void close(ZipWriter zip, SharedZipEntry entry) throws IOException {
+        entry.closeTarget(zip);
+        zip.writeEntry("metaData.json", "{}".getBytes("UTF-8"));
+        zip.finish();
+        zip.getOutputStream().close();
+    }
+
+    /**
+     * Check the shared entry and the second entry of the specified zip file: their data, CRC and sizes in the central
+     * directory and in the data descriptor following the data of the shared entry.
+     */
+    private static void checkEntry(File file, byte[] expected) throws IOException {
+        ZipFile zip = new ZipFile(file);
+        try {
+            ZipEntry entry = zip.getEntry("recording.tmcpr");
+            assertEquals(expected.length, entry.getSize());
+            assertEquals(getCrc(expected), entry.getCrc());
+            assertEquals(ZipEntry.DEFLATED, entry.getMethod());
+            byte[] data = read(zip, entry);
+            assertArrayEquals(expected, data);
+            assertArrayEquals("{}".getBytes("UTF-8"), read(zip, zip.getEntry("metaData.json")));
+
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                long offset = getOffset(zip, raf, entry);
+                ByteBuffer header = read(raf, offset, 30);
+                assertEquals(LOCAL_HEADER_SIGNATURE, header.getInt(0));
+                assertEquals(FLAG_DATA_DESCRIPTOR, header.getShort(6) & FLAG_DATA_DESCRIPTOR);
+                long dataStart = offset + 30 + header.getShort(26) + header.getShort(28);
+                ByteBuffer descriptor = read(raf, dataStart + entry.getCompressedSize(), 16);
+                assertEquals(DATA_DESCRIPTOR_SIGNATURE, descriptor.getInt(0));
+                assertEquals(entry.getCrc(), descriptor.getInt(4) & 0xffffffffL);
+                assertEquals(entry.getCompressedSize(), descriptor.getInt(8) & 0xffffffffL);
+                assertEquals(entry.getSize(), descriptor.getInt(12) & 0xffffffffL);
+            } finally {
+                raf.close();
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Return the offset of the local header of the specified entry. Entries are written one after another, so it is
+     * found by skipping all entries in front of it.
+     */
+    private static long getOffset(ZipFile zip, RandomAccessFile raf, ZipEntry target) throws IOException {
+        long offset = 0;
+        for (ZipEntry entry : Collections.list(zip.entries())) {
+            if (entry.getName().equals(target.getName())) {
+                return offset;
+            }
+            ByteBuffer header = read(raf, offset, 30);
+            boolean zip64 = entry.getSize() >= 0xffffffffL || entry.getCompressedSize() >= 0xffffffffL;
+            offset += 30 + header.getShort(26) + header.getShort(28) + entry.getCompressedSize() + (zip64 ? 24 : 16);
+        }
+        throw new AssertionError("Entry not found: " + target.getName());
+    }
+
+    private static ByteBuffer read(RandomAccessFile raf, long offset, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        raf.getChannel().read(buf, offset);
+        return buf;
+    }
+
+    private static byte[] read(ZipFile zip, ZipEntry entry) throws IOException {
+        InputStream in = zip.getInputStream(entry);
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static long getCrc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return crc.getValue();
+    }
+
+    /**
+     * Write an entry of zeros as stored deflate blocks, which is quick as no data has to be compressed and takes no
+     * space on disk as the zeros are skipped by the {@link SparseOutputStream}.
+     * @return The CRC of the entry
+     */
+    private static long writePadding(ZipWriter zip, long size) throws IOException {
+        zip.putNextEntry("padding");
+        byte[] block = new byte[5 + 0xffff];
+        CRC32 crc = new CRC32();
+        for (long remaining = size; remaining > 0; ) {
+            int length = (int) Math.min(remaining, 0xffff);
+            remaining -= length;
+            block[0] = (byte) (remaining == 0 ? 1 : 0);
+            block[1] = (byte) length;
+            block[2] = (byte) (length >> 8);
+            block[3] = (byte) ~length;
+            block[4] = (byte) (~length >> 8);
+            zip.writeCompressed(block, 0, 5);
+            zip.writeCompressed(block, 5, length);
+            crc.update(block, 5, length);
+        }
+        zip.closeEntry(crc.getValue(), size);
+        return crc.getValue();
+    }
+
+    /**
+     * Writes to a file, skipping writes of zeros only so the file is sparse.
+     */
+    private static class SparseOutputStream extends OutputStream {
+        private final RandomAccessFile raf;
+        private final FileChannel channel;
+        private long position;
+
+        public SparseOutputStream(File file) throws IOException {
+            raf = new RandomAccessFile(file, "rw");
+            channel = raf.getChannel();
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            boolean zeros = len > 1024;
+            for (int i = off; zeros && i < off + len; i++) {
+                zeros = b[i] == 0;
+            }
+            if (!zeros) {
+                channel.write(ByteBuffer.wrap(b, off, len), position);
+            }
+            position += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            raf.setLength(position);
+            raf.close();
+        }
+    }
+}
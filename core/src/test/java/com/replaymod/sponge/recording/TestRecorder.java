@@ -0,0 +1,112 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Recorder for tests whose packets are written with a time set by the test instead of the time of a clock.
+ */
+class TestRecorder extends AbstractRecorder<Connection> {
+
+    private long time;
+
+    public TestRecorder() {
+        super(null, null);
+    }
+
+    @Override
+    public long getDuration() {
+        return time;
+    }
+
+    @Override
+    public ReplayMetaData getMetaData() {
+        // There is neither a game nor a connection to take it from
+        ReplayMetaData metaData = new ReplayMetaData();
+        metaData.set("duration", time);
+        return metaData;
+    }
+
+    /**
+     * Write a packet at the specified time.
+     * @param time Time of the packet in milliseconds since the start of the recording
+     * @param fromServer Whether the packet is client or server bound
+     * @param data The packet data (packet id and payload)
+     * @return The packet as returned by {@link #read(ReplayReader)}
+     * @throws IOException if an I/O error occurred
+     */
+    public String write(long time, boolean fromServer, ByteBuf data) throws IOException {
+        this.time = time;
+        String packet = toString(time, fromServer, data);
+        writePacket(fromServer, data);
+        return packet;
+    }
+
+    /**
+     * Write a packet with the specified bytes at the specified time.
+     * @param time Time of the packet in milliseconds since the start of the recording
+     * @param fromServer Whether the packet is client or server bound
+     * @param data The packet data (packet id and payload)
+     * @return The packet as returned by {@link #read(ReplayReader)}
+     * @throws IOException if an I/O error occurred
+     */
+    public String write(long time, boolean fromServer, byte[] data) throws IOException {
+        return write(time, fromServer, Unpooled.wrappedBuffer(data));
+    }
+
+    /**
+     * Read all packets of the reader and close it.
+     * @param reader The reader
+     * @return The packets as time, direction and hex dump of the data
+     * @throws IOException if an I/O error occurred
+     */
+    public static List<String> read(ReplayReader reader) throws IOException {
+        final List<String> packets = new ArrayList<String>();
+        try {
+            reader.readAll(new PacketHandler() {
+                @Override
+                public void handle(long time, boolean fromServer, ByteBuf data) throws IOException {
+                    packets.add(TestRecorder.toString(time, fromServer, data));
+                }
+            });
+        } finally {
+            reader.close();
+        }
+        return packets;
+    }
+
+    /**
+     * Describe a packet as returned by {@link #read(ReplayReader)}.
+     * @param time Time of the packet
+     * @param fromServer Whether the packet is client or server bound
+     * @param data The packet data
+     * @return The packet as time, direction and hex dump of the data
+     */
+    static String toString(long time, boolean fromServer, ByteBuf data) {
+        return time + (fromServer ? " S " : " C ") + ByteBufUtil.hexDump(data);
+    }
+}
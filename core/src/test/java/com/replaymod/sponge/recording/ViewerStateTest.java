@@ -0,0 +1,505 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording;
+
+import com.google.common.io.ByteStreams;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replays opened at a checkpoint by {@link ReplayReader#openAt(File, long)} and the segments of rotating outputs
+ * restore the same {@link ViewerState} as replaying the whole recording up to that time.
+ */
+public class ViewerStateTest {
+
+    private static final int CHUNKS = 8;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestRecorder recorder;
+    private Random random;
+    private long time;
+
+    /**
+     * Ids of the entities spawned and not yet destroyed.
+     */
+    private final List<Integer> entities = new ArrayList<Integer>();
+    private int nextEntityId = 10;
+
+    @Before
+    public void setUp() {
+        recorder = new TestRecorder();
+        random = new Random(0);
+    }
+
+    @After
+    public void tearDown() {
+        recorder.connectionClosed();
+    }
+
+    @Test
+    public void testCheckpoints() throws IOException {
+        testCheckpoints(AbstractRecorder.FILE_FORMAT_VERSION);
+    }
+
+    @Test
+    public void testCompactCheckpoints() throws IOException {
+        testCheckpoints(AbstractRecorder.COMPACT_FILE_FORMAT_VERSION);
+    }
+
+    private void testCheckpoints(int fileFormatVersion) throws IOException {
+        recorder.setFileFormatVersion(fileFormatVersion);
+        recorder.setKeyframeInterval(500);
+        recorder.setCheckpointInterval(5000);
+        File file = folder.newFile("checkpoints.mcpr");
+        OutputStream out = new FileOutputStream(file);
+        recorder.addOutput(out);
+        writeWorld(5000);
+        recorder.endRecording(out, recorder.getMetaData());
+
+        List<String> full = TestRecorder.read(ReplayReader.open(file));
+        List<Long> checkpoints = new ArrayList<Long>();
+        ZipFile zip = new ZipFile(file);
+        try {
+            for (Enumeration<? extends ZipEntry> e = zip.entries(); e.hasMoreElements(); ) {
+                String name = e.nextElement().getName();
+                if (name.startsWith(CheckpointStore.ENTRY_PREFIX)) {
+                    checkpoints.add(Long.parseLong(name.substring(CheckpointStore.ENTRY_PREFIX.length(),
+                            name.length() - CheckpointStore.ENTRY_SUFFIX.length())));
+                }
+            }
+            assertTrue(checkpoints.size() > 2);
+
+            for (long checkpoint : checkpoints) {
+                List<String> state = TestRecorder.read(new ReplayReader(
+                        zip.getInputStream(zip.getEntry(CheckpointStore.getEntryName(checkpoint)))));
+                for (long at : new long[]{checkpoint, checkpoint + 250}) {
+                    // The checkpoint is followed by the rest of the recording starting at its sync point
+                    List<String> read = TestRecorder.read(ReplayReader.openAt(file, at));
+                    assertEquals(state, read.subList(0, state.size()));
+                    List<String> rest = read.subList(state.size(), read.size());
+                    assertEquals(full.subList(full.size() - rest.size(), full.size()), rest);
+                    assertTrue(getTime(rest.get(0)) >= checkpoint);
+
+                    // Only the latest state is kept, not every packet which changed it
+                    assertTrue(state.size() < full.size() - rest.size());
+                    Map<String, Object> world = replay(ReplayReader.open(file), at);
+                    assertTrue(world.size() > CHUNKS);
+                    assertEquals(world, replay(ReplayReader.openAt(file, at), at));
+                }
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    @Test
+    public void testRotatingSegments() throws IOException {
+        testRotatingSegments(AbstractRecorder.FILE_FORMAT_VERSION);
+    }
+
+    @Test
+    public void testCompactRotatingSegments() throws IOException {
+        testRotatingSegments(AbstractRecorder.COMPACT_FILE_FORMAT_VERSION);
+    }
+
+    private void testRotatingSegments(int fileFormatVersion) throws IOException {
+        recorder.setFileFormatVersion(fileFormatVersion);
+        final File directory = folder.newFolder();
+        RotatingOutput rotating = recorder.addRotatingOutput(new OutputFactory() {
+            @Override
+            public OutputStream createOutput(int segment) throws IOException {
+                return new FileOutputStream(new File(directory, segment + ".mcpr"));
+            }
+        }, 0, 2000);
+        File file = folder.newFile("full.mcpr");
+        OutputStream out = new FileOutputStream(file);
+        recorder.addOutput(out);
+        writeWorld(3000);
+        recorder.endRecording(rotating, recorder.getMetaData());
+        recorder.endRecording(out, recorder.getMetaData());
+
+        List<String> full = TestRecorder.read(ReplayReader.open(file));
+        List<String> merged = new ArrayList<String>();
+        int segments = rotating.getSegment() + 1;
+        assertTrue(segments > 3);
+        for (int i = 0; i < segments; i++) {
+            File segment = new File(directory, i + ".mcpr");
+            List<String> packets = TestRecorder.read(ReplayReader.open(segment));
+            int seedPackets = ((Number) readMetaData(segment).get(AbstractRecorder.SEED_PACKETS_KEY)).intValue();
+            assertEquals(i == 0, seedPackets == 0);
+            merged.addAll(packets.subList(seedPackets, packets.size()));
+
+            // Played on its own, the segment ends in the same state as the whole recording at that time
+            long end = getTime(packets.get(packets.size() - 1));
+            Map<String, Object> world = replay(ReplayReader.open(segment), end);
+            assertTrue(world.size() > CHUNKS);
+            assertEquals(replay(ReplayReader.open(file), end), world);
+        }
+        assertEquals(full, merged);
+    }
+
+    private static JSONObject readMetaData(File file) throws IOException {
+        ZipFile zip = new ZipFile(file);
+        try {
+            InputStream in = zip.getInputStream(zip.getEntry("metaData.json"));
+            return (JSONObject) JSONValue.parse(new String(ByteStreams.toByteArray(in), StandardCharsets.UTF_8));
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Replay the client bound packets up to the specified time and close the reader.
+     * @param reader The reader
+     * @param time Time up to which packets are replayed
+     * @return The state of the world as seen by the client
+     */
+    private static Map<String, Object> replay(ReplayReader reader, long time) throws IOException {
+        World world = new World(time);
+        try {
+            reader.readAll(world);
+        } finally {
+            reader.close();
+        }
+        return world.state;
+    }
+
+    private static long getTime(String packet) {
+        return Long.parseLong(packet.substring(0, packet.indexOf(' ')));
+    }
+
+    /**
+     * Write the login and a world in which entities move and blocks change.
+     * @param count Number of packets after the login
+     */
+    private void writeWorld(int count) throws IOException {
+        ByteBuf packet = packet(0x02);
+        writeString(packet, "00000000-0000-0000-0000-000000000000");
+        writeString(packet, "Player");
+        write(packet);
+        packet = packet(0x01).writeInt(1).writeByte(0).writeByte(0).writeByte(0).writeByte(20);
+        writeString(packet, "default");
+        write(packet.writeBoolean(false));
+        write(packet(0x08).writeDouble(8).writeDouble(64).writeDouble(8).writeFloat(0).writeFloat(0).writeByte(0));
+        for (int x = 0; x < CHUNKS; x++) {
+            writeChunk(x, true);
+        }
+        for (int i = 0; i < count; i++) {
+            time += random.nextInt(10);
+            switch (random.nextInt(12)) {
+                case 0:
+                    if (entities.size() < 20) {
+                        int entityId = nextEntityId++;
+                        packet = packet(0x0F);
+                        writeVarInt(packet, entityId);
+                        write(packet.writeByte(50).writeInt(random.nextInt(CHUNKS * 16 * 32)).writeInt(64 * 32)
+                                .writeInt(random.nextInt(16 * 32)).writeByte(0).writeByte(0).writeByte(0)
+                                .writeShort(0).writeShort(0).writeShort(0).writeByte(0x7f));
+                        entities.add(entityId);
+                    }
+                    break;
+                case 1:
+                    if (!entities.isEmpty()) {
+                        packet = packet(0x13);
+                        writeVarInt(packet, 1);
+                        writeVarInt(packet, entities.remove(random.nextInt(entities.size())));
+                        write(packet);
+                    }
+                    break;
+                case 2:
+                    if (entities.size() > 1) {
+                        // Ride or leash an entity which was spawned after it, or detach it again
+                        int vehicle = random.nextInt(3) == 0 ? -1 : entities.get(entities.size() - 1);
+                        write(packet(0x1B).writeInt(entities.get(0)).writeInt(vehicle)
+                                .writeBoolean(random.nextBoolean()));
+                    }
+                    break;
+                case 3:
+                    if (!entities.isEmpty()) {
+                        packet = packet(0x1C);
+                        writeVarInt(packet, randomEntity());
+                        packet.writeByte(random.nextInt(3)).writeByte(random.nextInt(256));
+                        packet.writeByte(4 << 5 | 2);
+                        writeString(packet, "Entity " + random.nextInt(100));
+                        write(packet.writeByte(0x7f));
+                    }
+                    break;
+                case 4:
+                    packet = packet(0x23).writeLong(randomPosition());
+                    writeVarInt(packet, random.nextInt(4096));
+                    write(packet);
+                    break;
+                case 5:
+                    packet = packet(0x22).writeInt(random.nextInt(CHUNKS)).writeInt(0);
+                    int records = 1 + random.nextInt(5);
+                    writeVarInt(packet, records);
+                    for (int j = 0; j < records; j++) {
+                        packet.writeByte(random.nextInt(4) << 4 | random.nextInt(4)).writeByte(60 + random.nextInt(8));
+                        writeVarInt(packet, random.nextInt(4096));
+                    }
+                    write(packet);
+                    break;
+                case 6:
+                    // Unload or reload a chunk, which drops its changes
+                    writeChunk(random.nextInt(CHUNKS), random.nextBoolean());
+                    break;
+                case 7:
+                    write(packet(0x2B).writeByte(1 + random.nextInt(8)).writeFloat(random.nextInt(2)));
+                    break;
+                case 8:
+                    packet = packet(0x00);
+                    writeVarInt(packet, i);
+                    write(time, false, packet);
+                    break;
+                default:
+                    if (!entities.isEmpty()) {
+                        packet = packet(0x15);
+                        writeVarInt(packet, randomEntity());
+                        write(packet.writeByte(random.nextInt(9) - 4).writeByte(0).writeByte(random.nextInt(9) - 4)
+                                .writeBoolean(true));
+                    }
+                    break;
+            }
+        }
+    }
+
+    private void writeChunk(int x, boolean load) throws IOException {
+        ByteBuf packet = packet(0x21).writeInt(x).writeInt(0).writeBoolean(true).writeShort(load ? 0x10 : 0);
+        writeVarInt(packet, load ? 4 : 0);
+        if (load) {
+            packet.writeInt(random.nextInt());
+        }
+        write(packet);
+    }
+
+    private int randomEntity() {
+        return entities.get(random.nextInt(entities.size()));
+    }
+
+    /**
+     * Return a random block position in the loaded chunks as encoded by the protocol.
+     */
+    private long randomPosition() {
+        long x = random.nextInt(CHUNKS * 16);
+        long y = 60 + random.nextInt(8);
+        long z = random.nextInt(16);
+        return x << 38 | y << 26 | z;
+    }
+
+    private void write(ByteBuf packet) throws IOException {
+        write(time, true, packet);
+    }
+
+    private void write(long time, boolean fromServer, ByteBuf packet) throws IOException {
+        recorder.write(time, fromServer, packet);
+    }
+
+    private static ByteBuf packet(int id) {
+        ByteBuf packet = Unpooled.buffer();
+        writeVarInt(packet, id);
+        return packet;
+    }
+
+    private static void writeVarInt(ByteBuf buf, int value) {
+        while ((value & ~0x7f) != 0) {
+            buf.writeByte(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    private static void writeString(ByteBuf buf, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(buf, bytes.length);
+        buf.writeBytes(bytes);
+    }
+
+    /**
+     * Applies the packets written by {@link #writeWorld(int)} (and the ones restoring them from a checkpoint) the
+     * way the client does, independently of the {@link ViewerState}.
+     */
+    private static class World implements PacketHandler {
+        private final long time;
+        private final TreeMap<String, Object> state = new TreeMap<String, Object>();
+
+        public World(long time) {
+            this.time = time;
+        }
+
+        @Override
+        public void handle(long packetTime, boolean fromServer, ByteBuf in) throws IOException {
+            if (packetTime > time || !fromServer) {
+                return;
+            }
+            int id = readVarInt(in);
+            switch (id) {
+                case 0x01:
+                    state.clear();
+                    break;
+                case 0x0F:
+                    int entityId = readVarInt(in);
+                    in.readByte();
+                    state.put("entity " + entityId, in.readInt() + " " + in.readInt() + " " + in.readInt());
+                    break;
+                case 0x13:
+                    for (int i = readVarInt(in); i > 0; i--) {
+                        remove("entity " + readVarInt(in));
+                    }
+                    break;
+                case 0x15:
+                    String key = "entity " + readVarInt(in);
+                    if (state.containsKey(key)) {
+                        String[] position = ((String) state.get(key)).split(" ");
+                        state.put(key, (Integer.parseInt(position[0]) + in.readByte()) + " "
+                                + (Integer.parseInt(position[1]) + in.readByte()) + " "
+                                + (Integer.parseInt(position[2]) + in.readByte()));
+                    }
+                    break;
+                case 0x18:
+                    key = "entity " + readVarInt(in);
+                    if (state.containsKey(key)) {
+                        state.put(key, in.readInt() + " " + in.readInt() + " " + in.readInt());
+                    }
+                    break;
+                case 0x1B:
+                    String rider = "entity " + in.readInt();
+                    String vehicle = "entity " + in.readInt();
+                    key = rider + (in.readBoolean() ? " leashed to" : " riding");
+                    if (state.containsKey(rider)) {
+                        // Attaching to an entity which doesn't exist detaches
+                        if (state.containsKey(vehicle)) {
+                            state.put(key, vehicle);
+                        } else {
+                            state.remove(key);
+                        }
+                    }
+                    break;
+                case 0x1C:
+                    key = "entity " + readVarInt(in);
+                    for (int item = in.readUnsignedByte(); item != 0x7f; item = in.readUnsignedByte()) {
+                        int length = item >> 5 == 0 ? 1 : readVarInt(in);
+                        String value = ByteBufUtil.hexDump(in.readBytes(length));
+                        if (state.containsKey(key)) {
+                            state.put(key + " metadata " + (item & 0x1f), value);
+                        }
+                    }
+                    break;
+                case 0x21:
+                    int x = in.readInt();
+                    in.readInt();
+                    in.readBoolean();
+                    boolean load = in.readUnsignedShort() != 0;
+                    readVarInt(in);
+                    remove("chunk " + x);
+                    if (load) {
+                        state.put("chunk " + x, in.readInt());
+                    }
+                    break;
+                case 0x22:
+                    x = in.readInt();
+                    int z = in.readInt();
+                    for (int i = readVarInt(in); i > 0; i--) {
+                        int horizontal = in.readUnsignedByte();
+                        setBlock(x * 16 + (horizontal >> 4), in.readUnsignedByte(), z * 16 + (horizontal & 15),
+                                readVarInt(in));
+                    }
+                    break;
+                case 0x23:
+                    long position = in.readLong();
+                    setBlock((int) (position >> 38), (int) (position >> 26 & 0xfff), (int) (position << 38 >> 38),
+                            readVarInt(in));
+                    break;
+                case 0x2B:
+                    int reason = in.readUnsignedByte();
+                    float value = in.readFloat();
+                    if (reason == 1 || reason == 2) {
+                        state.put("raining", reason == 1);
+                        state.put("rain level", reason == 1 ? 0f : 1f);
+                    } else if (reason == 3) {
+                        state.put("game mode", value);
+                    } else if (reason == 7) {
+                        state.put("rain level", value);
+                    } else if (reason == 8) {
+                        state.put("thunder level", value);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void setBlock(int x, int y, int z, int block) {
+            if (state.containsKey("chunk " + (x >> 4))) {
+                state.put("chunk " + (x >> 4) + " block " + x + " " + y + " " + z, block);
+            }
+        }
+
+        /**
+         * Remove an entity or chunk together with everything belonging to it.
+         */
+        private void remove(String key) {
+            state.subMap(key + " ", key + " \uffff").clear();
+            state.remove(key);
+            // Riders of a removed entity are dismounted
+            state.values().removeAll(Collections.singleton(key));
+        }
+
+        private static int readVarInt(ByteBuf in) {
+            int value = 0;
+            int shift = 0;
+            int b;
+            do {
+                b = in.readUnsignedByte();
+                value |= (b & 0x7f) << shift;
+                shift += 7;
+            } while ((b & 0x80) != 0);
+            return value;
+        }
+    }
+}
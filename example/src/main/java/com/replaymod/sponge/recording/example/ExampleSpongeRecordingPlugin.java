@@ -21,6 +21,7 @@ package com.replaymod.sponge.recording.example;
 
 import com.google.common.base.Optional;
 import com.google.inject.Inject;
+import com.replaymod.sponge.recording.BackpressurePolicy;
 import com.replaymod.sponge.recording.Connection;
 import com.replaymod.sponge.recording.Recorder;
 import com.replaymod.sponge.recording.ReplayMetaData;
@@ -65,7 +66,12 @@ public class ExampleSpongeRecordingPlugin {
         // If some other plugin already requested that this connection be recorded, we don't have to
         if (!connection.getRecorder().isPresent()) {
             // However if we're the first, start the recording
-            connection.startRecording();
+            Recorder recorder = connection.startRecording();
+            // Packets are usually recorded on the networking thread(s). To keep the connection from being slowed
+            // down by our file output stream, let the recorder write them from its own thread.
+            // Should the disk fall behind, packets are spilled to a temporary file instead of blocking the
+            // networking thread (BLOCK would stall every connection handled by that thread).
+            recorder.enableAsyncWriting(4096, BackpressurePolicy.SPILL);
         }
 
         // All recordings are stored in this folder
@@ -78,8 +84,6 @@ public class ExampleSpongeRecordingPlugin {
         OutputStream out = null;
         try {
             // For simplicity we just create a file output stream
-            // Writing is usually done from the networking thread(s), in a real plugin this should probably write
-            // to an output stream that buffers its output in memory and uses another thread for writing to disk.
             out = new BufferedOutputStream(new FileOutputStream(file));
             // We then add the output stream to the recorded, by doing so in this event we assure that every packet is
             // recorded.
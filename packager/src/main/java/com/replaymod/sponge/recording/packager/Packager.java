@@ -0,0 +1,575 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording.packager;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.Files;
+import com.replaymod.sponge.recording.AbstractRecorder;
+import com.replaymod.sponge.recording.BlobStore;
+import com.replaymod.sponge.recording.CompactFrameInputStream;
+import com.replaymod.sponge.recording.CompressionCodec;
+import com.replaymod.sponge.recording.DeduplicatedInputStream;
+import com.replaymod.sponge.recording.DeflateCodec;
+import com.replaymod.sponge.recording.SegmentedInputStream;
+import com.replaymod.sponge.recording.SegmentedOutputStream;
+import com.replaymod.sponge.recording.SharedZipEntry;
+import com.replaymod.sponge.recording.ZipWriter;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Packages raw recordings into replay files (.mcpr) outside of the server.<br>
+ * <br>
+ * Raw recordings are either .tmcpr files written to raw or deduplicated outputs, optionally accompanied by their
+ * meta data in a .json file of the same name, or directories written by segmented outputs. Packets of deduplicated
+ * recordings are restored from their blob store. If no meta data is available (e.g.
+ * because the server crashed), minimal meta data is generated. Incomplete packets at the end of the recording are
+ * discarded.<br>
+ * <br>
+ * The packager also merges the replay files written by a rotating output back into one replay file. Each of these
+ * files starts with the packets restoring the world at its start, which are skipped for all but the first one.
+ */
+public class Packager {
+
+    private final CompressionCodec codec;
+
+    /**
+     * Blob store of deduplicated recordings or {@code null} if none.
+     */
+    private final BlobStore blobStore;
+
+    /**
+     * Create a new packager.
+     * @param codec Codec used to compress the packet data
+     */
+    public Packager(CompressionCodec codec) {
+        this(codec, null);
+    }
+
+    /**
+     * Create a new packager.
+     * @param codec Codec used to compress the packet data
+     * @param blobStore Blob store of deduplicated recordings or {@code null} if none
+     */
+    public Packager(CompressionCodec codec, BlobStore blobStore) {
+        this.codec = codec;
+        this.blobStore = blobStore;
+    }
+
+    /**
+     * Return the file the replay for the specified raw recording is written to by default.
+     * @param input The raw recording
+     * @param outputDirectory Directory for the replay or {@code null} to use the directory of the raw recording
+     * @return The replay file
+     */
+    public static File getOutputFile(File input, File outputDirectory) {
+        String name = input.isDirectory() ? input.getName() : Files.getNameWithoutExtension(input.getName());
+        return new File(outputDirectory == null ? input.getAbsoluteFile().getParentFile() : outputDirectory,
+                name + ".mcpr");
+    }
+
+    /**
+     * Return the meta data file for the specified raw recording.
+     * @param input The raw recording
+     * @return The meta data file, might not exist
+     */
+    public static File getMetaDataFile(File input) {
+        if (input.isDirectory()) {
+            return new File(input, SegmentedOutputStream.META_DATA_FILE);
+        } else {
+            return new File(input.getAbsoluteFile().getParentFile(),
+                    Files.getNameWithoutExtension(input.getName()) + ".json");
+        }
+    }
+
+    /**
+     * Package the specified raw recording into a replay file.
+     * @param input The raw recording
+     * @param output The replay file
+     * @throws IOException if an I/O error occurred
+     */
+    public void pack(File input, File output) throws IOException {
+        InputStream in = new BufferedInputStream(
+                input.isDirectory() ? new SegmentedInputStream(input) : new FileInputStream(input));
+        try {
+            boolean compact = false;
+            if (startsWith(in, CompactFrameInputStream.MAGIC)) {
+                // Replay files only support version 1
+                in = new BufferedInputStream(new CompactFrameInputStream(in));
+                compact = true;
+            } else if (startsWith(in, DeduplicatedInputStream.MAGIC)) {
+                if (blobStore == null) {
+                    throw new IOException("Deduplicated recording but no blob store specified.");
+                }
+                in = new BufferedInputStream(new DeduplicatedInputStream(in, blobStore));
+            }
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+            try {
+                ZipWriter zip = new ZipWriter(out);
+                SharedZipEntry entry = new SharedZipEntry("recording.tmcpr", codec);
+                entry.addTarget(zip);
+                long duration = copyPackets(in, entry);
+                entry.closeTarget(zip);
+                entry.writeIndex(zip);
+
+                File metaDataFile = getMetaDataFile(input);
+                byte[] metaData;
+                if (metaDataFile.isFile()) {
+                    metaData = Files.toByteArray(metaDataFile);
+                    if (compact) {
+                        metaData = convertMetaData(metaData);
+                    }
+                } else {
+                    metaData = createMetaData(input, duration).getBytes(Charsets.UTF_8);
+                }
+                zip.writeEntry("metaData.json", metaData);
+                zip.finish();
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Merge the segments of a rotating output into one replay file.
+     * The segments are ordered by their index in the meta data and must all be present.
+     * The packets seeding each segment but the first (see {@link AbstractRecorder#SEED_PACKETS_KEY}) are skipped.
+     * The meta data of the replay is that of the last segment.
+     * @param segments The replay files written by the rotating output
+     * @param output The replay file
+     * @throws IOException if an I/O error occurred or the segments are invalid or incomplete
+     */
+    @SuppressWarnings("unchecked")
+    public void merge(List<File> segments, File output) throws IOException {
+        final List<ZipFile> zips = new ArrayList<ZipFile>();
+        try {
+            for (File segment : segments) {
+                zips.add(new ZipFile(segment));
+            }
+            List<JSONObject> metaData = new ArrayList<JSONObject>();
+            final List<Long> indices = new ArrayList<Long>();
+            List<Integer> order = new ArrayList<Integer>();
+            for (ZipFile zip : zips) {
+                JSONObject json = parseMetaData(readEntry(zip, "metaData.json"));
+                indices.add(getSegment(json, zip.getName()));
+                order.add(metaData.size());
+                metaData.add(json);
+            }
+            Collections.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(indices.get(a), indices.get(b));
+                }
+            });
+
+            List<InputStream> recordings = new ArrayList<InputStream>();
+            boolean compact = false;
+            for (int i = 0; i < order.size(); i++) {
+                int index = order.get(i);
+                if (indices.get(index) != i) {
+                    throw new IOException("Segment " + i + " is missing.");
+                }
+                ZipFile zip = zips.get(index);
+                ZipEntry entry = zip.getEntry("recording.tmcpr");
+                if (entry == null) {
+                    throw new IOException("No recording in " + zip.getName());
+                }
+                InputStream in = new BufferedInputStream(zip.getInputStream(entry));
+                if (startsWith(in, CompactFrameInputStream.MAGIC)) {
+                    // Every segment starts with absolute times, so they can be decoded one after another
+                    in = new CompactFrameInputStream(in);
+                    compact = true;
+                }
+                Object seedPackets = metaData.get(index).get(AbstractRecorder.SEED_PACKETS_KEY);
+                if (i > 0 && seedPackets instanceof Number) {
+                    skipPackets(in, ((Number) seedPackets).longValue());
+                }
+                recordings.add(in);
+            }
+
+            InputStream in = new BufferedInputStream(new SequenceInputStream(Collections.enumeration(recordings)));
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(output));
+            try {
+                ZipWriter zip = new ZipWriter(out);
+                SharedZipEntry entry = new SharedZipEntry("recording.tmcpr", codec);
+                entry.addTarget(zip);
+                long duration = copyPackets(in, entry);
+                entry.closeTarget(zip);
+                entry.writeIndex(zip);
+
+                JSONObject json = metaData.get(order.get(order.size() - 1));
+                json.remove("segment");
+                json.remove("segmentStart");
+                json.remove(AbstractRecorder.SEED_PACKETS_KEY);
+                json.put("duration", duration);
+                if (compact) {
+                    json.put("fileFormatVersion", AbstractRecorder.FILE_FORMAT_VERSION);
+                }
+                zip.writeEntry("metaData.json", json.toString().getBytes(Charsets.UTF_8));
+                zip.finish();
+            } finally {
+                out.close();
+            }
+        } finally {
+            for (ZipFile zip : zips) {
+                zip.close();
+            }
+        }
+    }
+
+    /**
+     * Read the specified entry of a replay file.
+     * @param zip The replay file
+     * @param name Name of the entry
+     * @return Content of the entry
+     * @throws IOException if an I/O error occurred or the entry doesn't exist
+     */
+    private static byte[] readEntry(ZipFile zip, String name) throws IOException {
+        ZipEntry entry = zip.getEntry(name);
+        if (entry == null) {
+            throw new IOException("No " + name + " in " + zip.getName());
+        }
+        InputStream in = zip.getInputStream(entry);
+        try {
+            return ByteStreams.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Return the index of the segment from its meta data.
+     * @param metaData The meta data
+     * @param name Name of the replay file
+     * @return The index
+     * @throws IOException if the meta data doesn't belong to a segment
+     */
+    private static long getSegment(JSONObject metaData, String name) throws IOException {
+        Object segment = metaData.get("segment");
+        if (!(segment instanceof Number)) {
+            throw new IOException(name + " is not a segment of a rotating output.");
+        }
+        return ((Number) segment).longValue();
+    }
+
+    /**
+     * Whether the specified recording starts with the specified magic bytes. Does not consume any bytes.
+     * @param in The recording, must support {@link InputStream#mark(int)}
+     * @param magic The magic bytes, e.g. those of deduplicated recordings
+     * @return {@code true} if it starts with the magic bytes
+     * @throws IOException if an I/O error occurred
+     */
+    private static boolean startsWith(InputStream in, byte[] magic) throws IOException {
+        in.mark(magic.length);
+        try {
+            for (byte b : magic) {
+                if (in.read() != (b & 0xff)) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            in.reset();
+        }
+    }
+
+    /**
+     * Change the file format version in the meta data of a recording converted to version 1.
+     * @param metaData The meta data as JSON
+     * @return The converted meta data
+     * @throws IOException if the meta data isn't valid JSON
+     */
+    @SuppressWarnings("unchecked")
+    private static byte[] convertMetaData(byte[] metaData) throws IOException {
+        JSONObject json = parseMetaData(metaData);
+        json.put("fileFormatVersion", AbstractRecorder.FILE_FORMAT_VERSION);
+        return json.toString().getBytes(Charsets.UTF_8);
+    }
+
+    /**
+     * Parse the meta data of a recording.
+     * @param metaData The meta data as JSON
+     * @return The parsed meta data
+     * @throws IOException if the meta data isn't valid JSON
+     */
+    private static JSONObject parseMetaData(byte[] metaData) throws IOException {
+        try {
+            return (JSONObject) new JSONParser().parse(new String(metaData, Charsets.UTF_8));
+        } catch (ParseException | ClassCastException e) {
+            throw new IOException("Invalid meta data.", e);
+        }
+    }
+
+    /**
+     * Package all specified raw recordings in parallel.
+     * Errors are reported on {@link System#err} and do not stop the remaining recordings from being packaged.
+     * @param inputs The raw recordings
+     * @param outputDirectory Directory for the replays or {@code null} to put each next to its raw recording
+     * @param threads Number of recordings packaged at the same time
+     * @return Number of recordings which failed to be packaged
+     * @throws InterruptedException if interrupted while waiting for the recordings to be packaged
+     */
+    public int packAll(List<File> inputs, final File outputDirectory, int threads) throws InterruptedException {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<File>> results = new ArrayList<Future<File>>();
+            for (final File input : inputs) {
+                results.add(executor.submit(new Callable<File>() {
+                    @Override
+                    public File call() throws Exception {
+                        File output = getOutputFile(input, outputDirectory);
+                        pack(input, output);
+                        return output;
+                    }
+                }));
+            }
+            int failed = 0;
+            for (int i = 0; i < inputs.size(); i++) {
+                try {
+                    System.out.println(inputs.get(i) + " -> " + results.get(i).get());
+                } catch (ExecutionException e) {
+                    System.err.println("Failed to package " + inputs.get(i) + ":");
+                    e.getCause().printStackTrace();
+                    failed++;
+                }
+            }
+            return failed;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Copy all complete packets from the raw recording to the entry.
+     * Sync points are added to the entry in the same interval as recorders do by default.
+     * @param in The raw recording
+     * @param out The entry
+     * @return Time of the last packet in milliseconds
+     * @throws IOException if an I/O error occurred
+     */
+    private static long copyPackets(InputStream in, SharedZipEntry out) throws IOException {
+        byte[] buf = new byte[8192];
+        byte[] header = new byte[15];
+        long lastTime = 0;
+        long nextKeyframeTime = AbstractRecorder.DEFAULT_KEYFRAME_INTERVAL;
+        while (true) {
+            int headerLength = 0;
+            long timeAndDirection;
+            int length;
+            try {
+                int start = headerLength;
+                headerLength = readVar(in, header, headerLength);
+                if (headerLength == start) {
+                    break; // End of recording
+                }
+                timeAndDirection = decodeVar(header, start);
+                start = headerLength;
+                headerLength = readVar(in, header, headerLength);
+                if (headerLength == start) {
+                    break; // Incomplete packet
+                }
+                length = (int) decodeVar(header, start);
+                byte[] payload = length > buf.length ? (buf = new byte[length]) : buf;
+                int read = 0;
+                while (read < length) {
+                    int count = in.read(payload, read, length - read);
+                    if (count == -1) {
+                        throw new EOFException();
+                    }
+                    read += count;
+                }
+                long time = timeAndDirection >>> 1;
+                if (time >= nextKeyframeTime) {
+                    out.addSyncPoint(time);
+                    nextKeyframeTime = time + AbstractRecorder.DEFAULT_KEYFRAME_INTERVAL;
+                }
+                out.write(header, 0, headerLength);
+                out.write(payload, 0, length);
+            } catch (EOFException e) {
+                break; // Incomplete packet
+            }
+            lastTime = timeAndDirection >>> 1;
+        }
+        return lastTime;
+    }
+
+    /**
+     * Read a variable-length integer into the buffer.
+     * @param in The input stream
+     * @param buf The buffer
+     * @param offset Offset in the buffer
+     * @return Offset after the variable-length integer or the specified offset if the end of the stream was reached
+     * @throws IOException if an I/O error occurred or the stream ended in the middle of the integer
+     */
+    private static int readVar(InputStream in, byte[] buf, int offset) throws IOException {
+        int b = in.read();
+        if (b == -1) {
+            return offset;
+        }
+        buf[offset++] = (byte) b;
+        while ((b & 0x80) != 0) {
+            if (offset == buf.length) {
+                throw new IOException("Variable-length integer too long.");
+            }
+            b = in.read();
+            if (b == -1) {
+                throw new EOFException();
+            }
+            buf[offset++] = (byte) b;
+        }
+        return offset;
+    }
+
+    /**
+     * Skip the specified number of packets of a raw recording.
+     * @param in The raw recording
+     * @param count Number of packets
+     * @throws IOException if an I/O error occurred or the recording contains fewer packets
+     */
+    private static void skipPackets(InputStream in, long count) throws IOException {
+        byte[] header = new byte[10];
+        for (long i = 0; i < count; i++) {
+            if (readVar(in, header, 0) == 0) {
+                throw new EOFException("Recording ends within its seed.");
+            }
+            int end = readVar(in, header, 0);
+            if (end == 0) {
+                throw new EOFException("Recording ends within its seed.");
+            }
+            ByteStreams.skipFully(in, decodeVar(header, 0));
+        }
+    }
+
+    private static long decodeVar(byte[] buf, int offset) {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = buf[offset++];
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    /**
+     * Create minimal meta data for a recording whose meta data is missing.
+     * @param input The raw recording
+     * @param duration Duration of the recording
+     * @return The meta data as JSON
+     */
+    @SuppressWarnings("unchecked")
+    private static String createMetaData(File input, long duration) {
+        JSONObject metaData = new JSONObject();
+        metaData.put("singleplayer", false);
+        metaData.put("serverName", "Unknown");
+        metaData.put("fileFormat", AbstractRecorder.FILE_FORMAT);
+        metaData.put("fileFormatVersion", AbstractRecorder.FILE_FORMAT_VERSION);
+        metaData.put("date", input.lastModified() - duration);
+        metaData.put("duration", duration);
+        metaData.put("players", new JSONArray());
+        metaData.put("generator", "SpongeRecording Packager");
+        return metaData.toString();
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        int level = Deflater.DEFAULT_COMPRESSION;
+        File outputDirectory = null;
+        File blobStoreDirectory = null;
+        File mergeOutput = null;
+        List<File> inputs = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("-threads".equals(arg) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("-level".equals(arg) && i + 1 < args.length) {
+                level = Integer.parseInt(args[++i]);
+            } else if ("-out".equals(arg) && i + 1 < args.length) {
+                outputDirectory = new File(args[++i]);
+            } else if ("-blobs".equals(arg) && i + 1 < args.length) {
+                blobStoreDirectory = new File(args[++i]);
+            } else if ("-merge".equals(arg) && i + 1 < args.length) {
+                mergeOutput = new File(args[++i]);
+            } else if (arg.startsWith("-")) {
+                inputs.clear();
+                break;
+            } else {
+                inputs.add(new File(arg));
+            }
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: java -jar packager.jar [-threads N] [-level L] [-out DIR] [-blobs DIR] INPUT...");
+            System.err.println("       java -jar packager.jar [-level L] -merge FILE SEGMENT...");
+            System.err.println("Each INPUT is either a .tmcpr file or a directory written by a segmented output.");
+            System.err.println("Deduplicated recordings require the directory of their blob store (-blobs).");
+            System.err.println("The replay files written by a rotating output (SEGMENT) are merged into FILE (-merge).");
+            System.exit(2);
+        }
+        if (mergeOutput != null) {
+            new Packager(new DeflateCodec(level, Deflater.DEFAULT_STRATEGY)).merge(inputs, mergeOutput);
+            return;
+        }
+        if (outputDirectory != null && !outputDirectory.isDirectory() && !outputDirectory.mkdirs()) {
+            System.err.println("Failed to create " + outputDirectory);
+            System.exit(1);
+        }
+
+        BlobStore blobStore = null;
+        if (blobStoreDirectory != null) {
+            if (!BlobStore.exists(blobStoreDirectory)) {
+                System.err.println("No blob store found in " + blobStoreDirectory);
+                System.exit(1);
+            }
+            blobStore = new BlobStore(blobStoreDirectory);
+        }
+
+        Packager packager = new Packager(new DeflateCodec(level, Deflater.DEFAULT_STRATEGY), blobStore);
+        System.exit(packager.packAll(inputs, outputDirectory, threads) == 0 ? 0 : 1);
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording.packager;
+
+import com.google.common.io.ByteStreams;
+import com.replaymod.sponge.recording.AbstractRecorder;
+import com.replaymod.sponge.recording.Connection;
+import com.replaymod.sponge.recording.DeflateCodec;
+import com.replaymod.sponge.recording.OutputFactory;
+import com.replaymod.sponge.recording.PacketHandler;
+import com.replaymod.sponge.recording.ReplayMetaData;
+import com.replaymod.sponge.recording.ReplayReader;
+import com.replaymod.sponge.recording.RotatingOutput;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Replay files written by the {@link Packager}.
+ */
+public class PackagerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final Packager packager = new Packager(new DeflateCodec(Deflater.DEFAULT_COMPRESSION,
+            Deflater.DEFAULT_STRATEGY));
+    private final Random random = new Random(0);
+
+    @Test
+    public void testMerge() throws IOException {
+        testMerge(AbstractRecorder.FILE_FORMAT_VERSION);
+    }
+
+    @Test
+    public void testMergeCompact() throws IOException {
+        testMerge(AbstractRecorder.COMPACT_FILE_FORMAT_VERSION);
+    }
+
+    private void testMerge(int fileFormatVersion) throws IOException {
+        TestRecorder recorder = new TestRecorder();
+        recorder.setFileFormatVersion(fileFormatVersion);
+        final File directory = folder.newFolder();
+        RotatingOutput rotating = recorder.addRotatingOutput(new OutputFactory() {
+            @Override
+            public OutputStream createOutput(int segment) throws IOException {
+                return new FileOutputStream(new File(directory, segment + ".mcpr"));
+            }
+        }, 0, 1000);
+        File full = folder.newFile("full.mcpr");
+        OutputStream out = new FileOutputStream(full);
+        recorder.addOutput(out);
+        recorder.writeWorld(1000);
+        recorder.endRecording(rotating, recorder.getMetaData());
+        recorder.endRecording(out, recorder.getMetaData());
+        recorder.connectionClosed();
+
+        List<File> segments = new ArrayList<File>();
+        for (int i = rotating.getSegment(); i >= 0; i--) {
+            segments.add(new File(directory, i + ".mcpr"));
+        }
+        assertTrue(segments.size() > 2);
+        File merged = folder.newFile("merged.mcpr");
+        packager.merge(segments, merged);
+
+        // The segments are seeded with the world, the merged replay only contains each packet once
+        int packets = 0;
+        for (File segment : segments) {
+            packets += read(segment).size();
+        }
+        assertTrue(packets > read(full).size());
+        assertEquals(read(full), read(merged));
+        assertValidZip(merged);
+    }
+
+    @Test
+    public void testPack() throws IOException {
+        testPack(AbstractRecorder.FILE_FORMAT_VERSION, false);
+    }
+
+    @Test
+    public void testPackCompact() throws IOException {
+        testPack(AbstractRecorder.COMPACT_FILE_FORMAT_VERSION, false);
+    }
+
+    @Test
+    public void testPackSegmented() throws IOException {
+        testPack(AbstractRecorder.FILE_FORMAT_VERSION, true);
+    }
+
+    private void testPack(int fileFormatVersion, boolean segmented) throws IOException {
+        TestRecorder recorder = new TestRecorder();
+        recorder.setFileFormatVersion(fileFormatVersion);
+        File raw;
+        OutputStream rawOut;
+        if (segmented) {
+            raw = folder.newFolder();
+            rawOut = recorder.addSegmentedOutput(raw);
+        } else {
+            raw = folder.newFile("raw.tmcpr");
+            rawOut = new FileOutputStream(raw);
+            recorder.addRawOutput(rawOut);
+        }
+        File full = folder.newFile("full.mcpr");
+        OutputStream out = new FileOutputStream(full);
+        recorder.addOutput(out);
+        recorder.writeWorld(1000);
+        // Segmented outputs keep their meta data next to the segments, the packager creates it for others
+        recorder.endRecording(rawOut, segmented ? recorder.getMetaData() : null);
+        recorder.endRecording(out, recorder.getMetaData());
+        recorder.connectionClosed();
+
+        File packed = folder.newFile("packed.mcpr");
+        packager.pack(raw, packed);
+        assertValidZip(packed);
+        assertEquals(read(full), read(packed));
+
+        ZipFile zip = new ZipFile(packed);
+        try {
+            byte[] json = ByteStreams.toByteArray(zip.getInputStream(zip.getEntry("metaData.json")));
+            JSONObject metaData = (JSONObject) JSONValue.parse(new String(json, StandardCharsets.UTF_8));
+            assertNotNull(metaData);
+            if (!segmented) {
+                // Replay files only support version 1, even if the raw recording is compact
+                assertEquals((long) AbstractRecorder.FILE_FORMAT_VERSION, metaData.get("fileFormatVersion"));
+            }
+            assertEquals(recorder.getDuration(), metaData.get("duration"));
+        } finally {
+            zip.close();
+        }
+    }
+
+    /**
+     * Check that the file is a valid zip file containing a replay and read each of its entries completely,
+     * once using the central directory and once using the local headers.
+     * @param file The replay file
+     */
+    private static void assertValidZip(File file) throws IOException {
+        ZipFile zip = new ZipFile(file);
+        try {
+            assertNotNull(zip.getEntry("recording.tmcpr"));
+            assertNotNull(zip.getEntry("metaData.json"));
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                InputStream in = zip.getInputStream(entry);
+                try {
+                    assertEquals(entry.getName(), entry.getSize(), ByteStreams.toByteArray(in).length);
+                } finally {
+                    in.close();
+                }
+            }
+        } finally {
+            zip.close();
+        }
+
+        ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+        try {
+            int count = 0;
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                ByteStreams.toByteArray(in);
+                count++;
+            }
+            assertTrue(count >= 2);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Read all packets of a replay file.
+     * @param file The replay file
+     * @return The packets as time, direction and hex dump of the data
+     */
+    static List<String> read(File file) throws IOException {
+        final List<String> packets = new ArrayList<String>();
+        ReplayReader reader = ReplayReader.open(file);
+        try {
+            reader.readAll(new PacketHandler() {
+                @Override
+                public void handle(long time, boolean fromServer, ByteBuf data) throws IOException {
+                    packets.add(time + (fromServer ? " S " : " C ") + ByteBufUtil.hexDump(data));
+                }
+            });
+        } finally {
+            reader.close();
+        }
+        return packets;
+    }
+
+    /**
+     * Recorder writing a small world with packets at times set by the test.
+     */
+    private class TestRecorder extends AbstractRecorder<Connection> {
+
+        private long time;
+
+        public TestRecorder() {
+            super(null, null);
+        }
+
+        @Override
+        public long getDuration() {
+            return time;
+        }
+
+        @Override
+        public ReplayMetaData getMetaData() {
+            // There is neither a game nor a connection to take it from
+            ReplayMetaData metaData = new ReplayMetaData();
+            metaData.set("duration", time);
+            return metaData;
+        }
+
+        /**
+         * Write the login, a few chunks and then block changes in them.
+         * @param count Number of block changes
+         */
+        public void writeWorld(int count) throws IOException {
+            ByteBuf packet = packet(0x02);
+            writeString(packet, "00000000-0000-0000-0000-000000000000");
+            writeString(packet, "Player");
+            writePacket(true, packet);
+            packet = packet(0x01).writeInt(1).writeByte(0).writeByte(0).writeByte(0).writeByte(20);
+            writeString(packet, "default");
+            writePacket(true, packet.writeBoolean(false));
+            writePacket(true, packet(0x08).writeDouble(8).writeDouble(64).writeDouble(8).writeFloat(0)
+                    .writeFloat(0).writeByte(0));
+            for (int x = 0; x < 4; x++) {
+                packet = packet(0x21).writeInt(x).writeInt(0).writeBoolean(true).writeShort(0x10);
+                writeVarInt(packet, 4);
+                writePacket(true, packet.writeInt(random.nextInt()));
+            }
+            for (int i = 0; i < count; i++) {
+                time += random.nextInt(10);
+                long x = random.nextInt(4 * 16);
+                packet = packet(0x23).writeLong(x << 38 | 64 << 26 | random.nextInt(16));
+                writeVarInt(packet, random.nextInt(4096));
+                writePacket(true, packet);
+            }
+        }
+    }
+
+    private static ByteBuf packet(int id) {
+        ByteBuf packet = Unpooled.buffer();
+        writeVarInt(packet, id);
+        return packet;
+    }
+
+    private static void writeVarInt(ByteBuf buf, int value) {
+        while ((value & ~0x7f) != 0) {
+            buf.writeByte(value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        buf.writeByte(value);
+    }
+
+    private static void writeString(ByteBuf buf, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(buf, bytes.length);
+        buf.writeBytes(bytes);
+    }
+}
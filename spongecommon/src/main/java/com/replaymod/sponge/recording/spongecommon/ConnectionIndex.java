@@ -0,0 +1,84 @@
+/*
+ * This file is part of SpongeRecording, licensed under the MIT License (MIT).
+ *
+ * Copyright (c) 2015 johni0702 <https://github.com/johni0702>
+ * Copyright (c) contributors
+ *
+ *     This program is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 3 of the License, or
+ *     (at your option) any later version.
+ *
+ *     This program is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.replaymod.sponge.recording.spongecommon;
+
+import com.google.common.collect.MapMaker;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.network.PlayerConnection;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Index of the connections of all players which are online.<br>
+ * Connections are only weakly referenced, so connections which are never removed explicitly are not leaked.
+ */
+public class ConnectionIndex {
+
+    /**
+     * Connections by the player connection of their player. Keys are compared by identity.
+     */
+    private final ConcurrentMap<PlayerConnection, SpongeConnection> byPlayerConnection =
+            new MapMaker().weakKeys().weakValues().makeMap();
+
+    /**
+     * Connections by the UUID of their player.
+     */
+    private final ConcurrentMap<UUID, SpongeConnection> byUniqueId = new MapMaker().weakValues().makeMap();
+
+    /**
+     * Add the connection of the specified player.
+     * @param player The player
+     * @param connection The connection of the player
+     */
+    public void add(Player player, SpongeConnection connection) {
+        byPlayerConnection.put(player.getConnection(), connection);
+        byUniqueId.put(player.getUniqueId(), connection);
+    }
+
+    /**
+     * Remove the connection of the specified player if it's still the one in this index.
+     * @param player The player
+     */
+    public void remove(Player player) {
+        SpongeConnection connection = byPlayerConnection.remove(player.getConnection());
+        if (connection != null) {
+            byUniqueId.remove(player.getUniqueId(), connection);
+        }
+    }
+
+    /**
+     * Return the connection for the specified player connection.
+     * @param playerConnection The player connection
+     * @return The connection or {@code null} if it isn't in this index
+     */
+    public SpongeConnection get(PlayerConnection playerConnection) {
+        return byPlayerConnection.get(playerConnection);
+    }
+
+    /**
+     * Return the connection of the player with the specified UUID.
+     * @param uuid UUID of the player
+     * @return The connection or {@code null} if it isn't in this index
+     */
+    public SpongeConnection get(UUID uuid) {
+        return byUniqueId.get(uuid);
+    }
+}
@@ -32,6 +32,7 @@ import org.spongepowered.api.entity.living.player.Player;
 import org.spongepowered.api.network.PlayerConnection;
 
 import java.lang.ref.WeakReference;
+import java.util.UUID;
 
 /**
  * A connection from a client to a sponge server.
@@ -55,10 +56,20 @@ public class SpongeConnection implements Connection {
     private WeakReference<Player> player;
 
     /**
-     * The recorder recording this connection.
-     * This is {@code null} until {@link #startRecording()} is called.
+     * UUID of the player once the login has succeeded, stored in the meta data of recordings.
      */
-    private Recorder recorder;
+    private UUID uniqueId;
+
+    /**
+     * The recorder capturing the packets of this connection.
+     * This is {@code null} until {@link #startRecording()} or {@link #enableHistory(int, int)} is called.
+     */
+    private SpongeRecorder recorder;
+
+    /**
+     * Whether {@link #startRecording()} has been called. Until then, the {@link #recorder} only keeps the history.
+     */
+    private boolean recording;
 
     /**
      * Create a new connection handle for the specified netty channel.
@@ -106,14 +117,60 @@ public class SpongeConnection implements Connection {
     }
 
     @Override
-    public Optional<Recorder> getRecorder() {
+    public synchronized Optional<Recorder> getRecorder() {
+        return recording ? Optional.<Recorder>of(recorder) : Optional.<Recorder>absent();
+    }
+
+    /**
+     * Return the recorder capturing the packets of this connection, even if it only keeps the history.
+     * @return The recorder
+     */
+    synchronized Optional<SpongeRecorder> getCapturingRecorder() {
         return Optional.fromNullable(recorder);
     }
 
     @Override
     public synchronized Recorder startRecording() throws IllegalStateException {
+        Preconditions.checkState(!recording, "Already recording.");
+        if (recorder == null) {
+            recorder = createRecorder();
+            recorder.register();
+        }
+        recording = true;
+        return recorder;
+    }
+
+    @Override
+    public void enableHistory(int loginSize, int size) throws IllegalStateException {
+        enableHistory(loginSize, size, false);
+    }
+
+    @Override
+    public synchronized void enableHistory(int loginSize, int size, boolean trackState) throws IllegalStateException {
         Preconditions.checkState(recorder == null, "Already recording.");
-        return recorder = new SpongeRecorder(game, this);
+        SpongeRecorder recorder = createRecorder();
+        recorder.enableHistory(loginSize, size, trackState);
+        recorder.register();
+        this.recorder = recorder;
+    }
+
+    private SpongeRecorder createRecorder() {
+        SpongeRecorder recorder = new SpongeRecorder(game, this);
+        if (uniqueId != null) {
+            recorder.setRecordingPlayer(uniqueId);
+        }
+        return recorder;
+    }
+
+    /**
+     * Set the UUID of the player once the login has succeeded.
+     * @param uniqueId UUID of the player
+     */
+    synchronized void setUniqueId(UUID uniqueId) {
+        this.uniqueId = uniqueId;
+        if (recorder != null) {
+            recorder.setRecordingPlayer(uniqueId);
+        }
     }
 
     public void setPlayer(Player player) {
@@ -121,10 +178,15 @@ public class SpongeConnection implements Connection {
         this.player = new WeakReference<>(player);
     }
 
-    private static final Function<PlayerConnection, SpongeConnection> spongeConnectionAccessor =
-            new SpongeConnectionFromPlayerConnectionAccessor();
+    /**
+     * Holds the accessor so it is only created once it's first used as it requires the Minecraft classes.
+     */
+    private static final class AccessorHolder {
+        private static final Function<PlayerConnection, SpongeConnection> spongeConnectionAccessor =
+                new SpongeConnectionFromPlayerConnectionAccessor();
+    }
 
     public static SpongeConnection get(PlayerConnection playerConnection) {
-        return spongeConnectionAccessor.apply(playerConnection);
+        return AccessorHolder.spongeConnectionAccessor.apply(playerConnection);
     }
 }
@@ -20,23 +20,37 @@
 package com.replaymod.sponge.recording.spongecommon;
 
 import com.google.common.base.Optional;
-import com.replaymod.sponge.recording.Recorder;
 import com.replaymod.sponge.recording.Reflection;
 import com.replaymod.sponge.recording.spongecommon.event.SpongeConnectionClosedEvent;
 import com.replaymod.sponge.recording.spongecommon.event.SpongeConnectionInitializingEvent;
-import io.netty.buffer.ByteBuf;
-import io.netty.channel.ChannelDuplexHandler;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
 import io.netty.channel.ChannelPromise;
 
 import java.util.UUID;
 
 /**
 * Channel adapter for firing connection events.
+* Only handles inbound events, outbound packets are only inspected by the {@link LoginSuccessListener} until
+* the login has succeeded.
 */
 @ChannelHandler.Sharable
-public class SpongeConnectionEventListener extends ChannelDuplexHandler {
+public class SpongeConnectionEventListener extends ChannelInboundHandlerAdapter {
+
+    /**
+     * The packet sent when the login has succeeded.
+     */
+    private static final Class<?> LOGIN_SUCCESS_PACKET;
+
+    static {
+        try {
+            LOGIN_SUCCESS_PACKET = Class.forName("net.minecraft.network.login.server.S02PacketLoginSuccess");
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
     private final SpongeConnection spongeConnection;
     private boolean firedInitializing;
@@ -48,29 +62,25 @@ public class SpongeConnectionEventListener extends ChannelDuplexHandler {
 
     @Override
     public void channelActive(ChannelHandlerContext ctx) throws Exception {
-        ctx.pipeline().remove(this).addBefore("packet_handler", "connection_events", this);
+        ctx.pipeline().remove(this).addBefore("packet_handler", "connection_events", this)
+                .addBefore("connection_events", "connection_login", new LoginSuccessListener());
         super.channelActive(ctx);
     }
 
-    @Override
-    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-        if (!firedInitializing && "net.minecraft.network.login.server.S02PacketLoginSuccess".equals(msg.getClass().getName())) {
+    /**
+     * Fire the initializing event and store the UUID of the player in the meta data of the recording.
+     * @param msg The login success packet
+     * @throws Exception if an error occurred
+     */
+    private void loginSucceeded(Object msg) throws Exception {
+        if (!firedInitializing) {
             Object profile = Reflection.getFieldValueByType(msg.getClass(), "com.mojang.authlib.GameProfile", msg);
             String name = (String) Reflection.getFieldValueByType(profile.getClass(), "java.lang.String", profile);
             UUID uuid = (UUID) Reflection.getFieldValueByType(profile.getClass(), "java.util.UUID", profile);
             spongeConnection.getGame().getEventManager().post(new SpongeConnectionInitializingEvent(spongeConnection, name, uuid));
             firedInitializing = true;
-            Optional<Recorder> recorder = spongeConnection.getRecorder();
-            if (recorder.isPresent()) {
-                SpongeRecorder spongeRecorder = (SpongeRecorder) recorder.get();
-                ByteBuf buf = ctx.alloc().buffer(16);
-                buf.writeLong(uuid.getMostSignificantBits());
-                buf.writeLong(uuid.getLeastSignificantBits());
-                spongeRecorder.writePacket(false, buf);
-                buf.release();
-            }
+            spongeConnection.setUniqueId(uuid);
         }
-        super.write(ctx, msg, promise);
     }
 
     @Override
@@ -79,10 +89,29 @@ public class SpongeConnectionEventListener extends ChannelDuplexHandler {
             spongeConnection.getGame().getEventManager().post(new SpongeConnectionClosedEvent(spongeConnection));
             firedClosed = true;
         }
+        Optional<SpongeRecorder> recorder = spongeConnection.getCapturingRecorder();
+        if (recorder.isPresent()) {
+            recorder.get().connectionClosed();
+        }
         super.channelInactive(ctx);
     }
 
     public SpongeConnection getConnection() {
         return spongeConnection;
     }
+
+    /**
+     * Waits for the login success packet and removes itself afterwards, so packets of the play phase
+     * do not pass through it.
+     */
+    private class LoginSuccessListener extends ChannelOutboundHandlerAdapter {
+        @Override
+        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg.getClass() == LOGIN_SUCCESS_PACKET) {
+                ctx.pipeline().remove(this);
+                loginSucceeded(msg);
+            }
+            super.write(ctx, msg, promise);
+        }
+    }
 }
@@ -19,8 +19,10 @@
  */
 package com.replaymod.sponge.recording.spongecommon;
 
+import com.replaymod.sponge.recording.CachedClock;
 import com.replaymod.sponge.recording.Implementation;
 import com.replaymod.sponge.recording.Reflection;
+import com.replaymod.sponge.recording.TickClock;
 import io.netty.channel.ChannelFuture;
 import org.spongepowered.api.Game;
 import org.spongepowered.api.Server;
@@ -34,11 +36,18 @@ import org.spongepowered.api.plugin.PluginContainer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.List;
+import java.util.UUID;
 
 /**
  * Platform for servers based on SpongeCommon.
  */
 public class SpongeImplementation implements Implementation {
+
+    /**
+     * Connections of all players which are online.
+     */
+    private final ConnectionIndex connections = new ConnectionIndex();
+
     @Override
     public boolean isFunctional(Game game) {
         try {
@@ -52,6 +61,16 @@ public class SpongeImplementation implements Implementation {
     @Override
     public void initialize(PluginContainer plugin, Game game) {
         game.getEventManager().registerListeners(plugin, this);
+
+        // Drive the tick clock and the cached clock, the task runs once per server tick
+        game.getScheduler().createTaskBuilder().intervalTicks(1)
+                .execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        TickClock.getInstance().tick();
+                        CachedClock.getInstance().update();
+                    }
+                }).submit(plugin);
     }
 
     @Listener
@@ -89,10 +108,26 @@ public class SpongeImplementation implements Implementation {
         Player player = event.getTargetEntity();
         SpongeConnection connection = SpongeConnection.get(player.getConnection());
         connection.setPlayer(player);
+        connections.add(player, connection);
+    }
+
+    @Listener(order = Order.POST)
+    public void onPlayerDisconnect(ClientConnectionEvent.Disconnect event) {
+        connections.remove(event.getTargetEntity());
     }
 
     @Override
     public SpongeConnection getConnection(Player player) {
-        return SpongeConnection.get(player.getConnection());
+        SpongeConnection connection = connections.get(player.getConnection());
+        if (connection == null) {
+            // Player hasn't fully joined yet
+            connection = SpongeConnection.get(player.getConnection());
+        }
+        return connection;
+    }
+
+    @Override
+    public SpongeConnection getConnection(UUID uuid) {
+        return connections.get(uuid);
     }
 }
@@ -19,18 +19,21 @@
  */
 package com.replaymod.sponge.recording.spongecommon;
 
+import com.google.common.base.Optional;
 import com.replaymod.sponge.recording.AbstractRecorder;
+import com.replaymod.sponge.recording.CachedClock;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.*;
 import org.spongepowered.api.Game;
 
-import java.io.IOException;
-import java.util.Map;
+import java.util.List;
 
 public class SpongeRecorder extends AbstractRecorder<SpongeConnection> {
 
     public SpongeRecorder(Game game, SpongeConnection connection) {
         super(game, connection);
+        setLoginPhase(true);
 
         ChannelPipeline pipeline = connection.getChannel().get().pipeline();
         pipeline.addLast("recorder_compression_order", new PipelineOrderHandler());
@@ -39,8 +42,15 @@ public class SpongeRecorder extends AbstractRecorder<SpongeConnection> {
     }
 
     @Override
-    protected synchronized void writePacket(boolean fromServer, ByteBuf data) throws IOException {
-        super.writePacket(fromServer, data);
+    protected Object getWriterAffinity() {
+        Optional<Channel> channel = getConnection().getChannel();
+        return channel.isPresent() ? channel.get().eventLoop() : this;
+    }
+
+    @Override
+    protected ByteBufAllocator getAllocator() {
+        Optional<Channel> channel = getConnection().getChannel();
+        return channel.isPresent() ? channel.get().alloc() : super.getAllocator();
     }
 
     /**
@@ -60,39 +70,55 @@ public class SpongeRecorder extends AbstractRecorder<SpongeConnection> {
      *   fml:packet_handler=net.minecraftforge.fml.common.network.handshake.NetworkDispatcher<br>
      *   packet_handler=net.minecraft.network.NetworkManager<br>
      * > recorder_compression_order=de.johni0702.sponge.recording.spongecommon.SpongeRecorder$PipelineOrderHandler<br>
+     * <br>
+     * Compression is enabled by a listener of the write of the packet enabling it during login. Therefore the order
+     * is only verified after each packet of the login phase has been written. Once the first packet of any other
+     * phase is written, compression can no longer be enabled and this handler removes itself from the pipeline.
+     * This is also when the login phase is over and the filter applies to the following packets.
      */
     private class PipelineOrderHandler extends ChannelOutboundHandlerAdapter {
         @Override
-        public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
-            ChannelPipeline pipeline = ctx.pipeline();
-            // First make sure the outbound recorder is at the right place
-            boolean foundRecorder = false;
-            for (Map.Entry<String, ChannelHandler> e : pipeline) {
-                if ("outbound_recorder".equals(e.getKey())) {
-                    foundRecorder = true;
-                }
-                if (foundRecorder && "compress".equals(e.getKey())) {
-                    // They're in the wrong order :(
-                    ChannelHandler recorder = pipeline.remove("outbound_recorder");
-                    pipeline.addBefore("encoder", "outbound_recorder", recorder);
-                    break;
-                }
-            }
-            // Then verify the inbound recorder
-            foundRecorder = false;
-            for (Map.Entry<String, ChannelHandler> e : pipeline) {
-                if ("inbound_recorder".equals(e.getKey())) {
-                    foundRecorder = true;
-                }
-                if (foundRecorder && "decompress".equals(e.getKey())) {
-                    // They're in the wrong order :(
-                    ChannelHandler recorder = pipeline.remove("inbound_recorder");
-                    pipeline.addBefore("decoder", "inbound_recorder", recorder);
-                    break;
+        public void write(final ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+            if (msg.getClass().getName().startsWith("net.minecraft.network.login.")) {
+                if (promise != ctx.voidPromise()) {
+                    promise.addListener(new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            // Run after all other listeners, one of them might enable compression
+                            ctx.channel().eventLoop().execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    verifyOrder(ctx.pipeline());
+                                }
+                            });
+                        }
+                    });
                 }
+            } else {
+                verifyOrder(ctx.pipeline());
+                ctx.pipeline().remove(this);
+                setLoginPhase(false);
             }
             super.write(ctx, msg, promise);
         }
+
+        /**
+         * Move the recorders back to their place if compression has been enabled in front of them.
+         * @param pipeline The pipeline
+         */
+        private void verifyOrder(ChannelPipeline pipeline) {
+            List<String> names = pipeline.names();
+            int recorder = names.indexOf("outbound_recorder");
+            if (recorder != -1 && names.indexOf("compress") > recorder) {
+                // They're in the wrong order :(
+                pipeline.addBefore("encoder", "outbound_recorder", pipeline.remove("outbound_recorder"));
+            }
+            recorder = names.indexOf("inbound_recorder");
+            if (recorder != -1 && names.indexOf("decompress") > recorder) {
+                // They're in the wrong order :(
+                pipeline.addBefore("decoder", "inbound_recorder", pipeline.remove("inbound_recorder"));
+            }
+        }
     }
 
     /**
@@ -103,10 +129,7 @@ public class SpongeRecorder extends AbstractRecorder<SpongeConnection> {
         @Override
         public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
             if (msg instanceof ByteBuf) {
-                ByteBuf buf = (ByteBuf) msg;
-                int index = buf.readerIndex();
-                writePacket(true, buf);
-                buf.readerIndex(index);
+                writePacket(true, (ByteBuf) msg);
             }
             super.write(ctx, msg, promise);
         }
@@ -120,12 +143,16 @@ public class SpongeRecorder extends AbstractRecorder<SpongeConnection> {
         @Override
         public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
             if (msg instanceof ByteBuf) {
-                ByteBuf buf = (ByteBuf) msg;
-                int index = buf.readerIndex();
-                writePacket(false, buf);
-                buf.readerIndex(index);
+                writePacket(false, (ByteBuf) msg);
             }
             super.channelRead(ctx, msg);
         }
+
+        @Override
+        public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+            // Once per read from the connection instead of once per packet
+            CachedClock.getInstance().update();
+            super.channelReadComplete(ctx);
+        }
     }
 }
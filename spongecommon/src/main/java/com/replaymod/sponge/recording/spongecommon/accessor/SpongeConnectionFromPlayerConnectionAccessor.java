@@ -28,26 +28,23 @@ import io.netty.channel.ChannelPipeline;
 import org.spongepowered.api.network.PlayerConnection;
 
 import javax.annotation.Nullable;
-import java.lang.reflect.Field;
+import java.lang.invoke.MethodHandle;
 
 /**
  * Provides access to the {@link SpongeConnection} of a {@link PlayerConnection}.
  */
 public class SpongeConnectionFromPlayerConnectionAccessor implements Function<PlayerConnection, SpongeConnection> {
-    private final Field netManager;
-    private final Field channel;
+    private final MethodHandle netManager;
+    private final MethodHandle channel;
 
     public SpongeConnectionFromPlayerConnectionAccessor() {
         try {
             Class<?> NetHandlerPlayServer = Class.forName("net.minecraft.network.NetHandlerPlayServer");
             Class<?> NetworkManager = Class.forName("net.minecraft.network.NetworkManager");
 
-            netManager = Reflection.getFieldByType(NetHandlerPlayServer, NetworkManager);
-            channel = Reflection.getFieldByType(NetworkManager, Channel.class);
-
-            netManager.setAccessible(true);
-            channel.setAccessible(true);
-        } catch (ClassNotFoundException | NoSuchFieldException e) {
+            netManager = Reflection.getGetterByType(NetHandlerPlayServer, NetworkManager);
+            channel = Reflection.getGetterByType(NetworkManager, Channel.class);
+        } catch (ClassNotFoundException | NoSuchFieldException | IllegalAccessException e) {
             throw new RuntimeException(e);
         }
 
@@ -56,12 +53,8 @@ public class SpongeConnectionFromPlayerConnectionAccessor implements Function<Pl
     @Nullable
     @Override
     public SpongeConnection apply(PlayerConnection input) {
-        try {
-            ChannelPipeline pipeline = ((Channel) channel.get(netManager.get(input))).pipeline();
-            SpongeConnectionEventListener handler = pipeline.get(SpongeConnectionEventListener.class);
-            return handler == null ? null : handler.getConnection();
-        } catch (IllegalAccessException e) {
-            throw new RuntimeException(e);
-        }
+        ChannelPipeline pipeline = ((Channel) Reflection.get(channel, Reflection.get(netManager, input))).pipeline();
+        SpongeConnectionEventListener handler = pipeline.get(SpongeConnectionEventListener.class);
+        return handler == null ? null : handler.getConnection();
     }
 }